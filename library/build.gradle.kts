@@ -40,6 +40,13 @@ android {
     buildFeatures {
         viewBinding = true
     }
+
+    testOptions {
+        unitTests.all {
+            // Timed benchmarks are skipped unless requested with -Pbenchmarks
+            it.systemProperty("datagrail.benchmarks", project.hasProperty("benchmarks"))
+        }
+    }
 }
 
 dependencies {
@@ -48,9 +55,11 @@ dependencies {
     implementation("com.google.android.material:material:1.11.0")
     implementation("androidx.constraintlayout:constraintlayout:2.1.4")
     implementation("androidx.security:security-crypto:1.0.0")
+    api("androidx.lifecycle:lifecycle-common:2.6.1")
 
     // Kotlin Serialization
     implementation("org.jetbrains.kotlinx:kotlinx-serialization-json:1.6.0")
+    implementation("org.jetbrains.kotlinx:kotlinx-serialization-cbor:1.6.0")
 
     // Coroutines
     implementation("org.jetbrains.kotlinx:kotlinx-coroutines-android:1.7.3")
@@ -0,0 +1,199 @@
+package com.datagrail.consent
+
+import com.datagrail.consent.models.CategoryConsent
+import com.datagrail.consent.models.CategoryTable
+import com.datagrail.consent.models.ConfigHeader
+import com.datagrail.consent.models.ConsentConfig
+import com.datagrail.consent.models.ConsentLayer
+import com.datagrail.consent.models.ConsentLayerCategory
+import com.datagrail.consent.models.ConsentLayerElement
+import com.datagrail.consent.models.ConsentPreferences
+import com.datagrail.consent.models.LazyConfig
+import com.datagrail.consent.models.Layout
+import com.datagrail.consent.utils.ConfigLocalizer
+
+/**
+ * Immutable lookup tables derived from a [ConsentConfig].
+ * Built once when a config is loaded or swapped in, so consent and UI code never re-walk the layout.
+ *
+ * Tables derived from the [ConfigHeader] are built with the index; those derived from the layout are
+ * built on first access. Banner and consent checks only need the header, so a launch that shows no
+ * banner never decodes or walks the layout.
+ *
+ * Layout tables hold a projection of the layout for one [locale], keeping only the translations that
+ * locale resolves to (see [ConfigLocalizer]). The projection is built from a layout that is decoded
+ * and then dropped, so only resolved strings stay in memory; use [withLocale] when the locale changes.
+ */
+internal class ConfigIndex private constructor(
+    private val source: LazyConfig,
+    /** Locale the layout tables are resolved for */
+    val locale: String,
+) {
+    /**
+     * Config fields outside the layout
+     */
+    val header: ConfigHeader
+        get() = source.header
+
+    /**
+     * The full config; decodes a fresh copy of the layout on each access unless the source keeps one
+     */
+    val config: ConsentConfig
+        get() = source.config
+
+    /**
+     * Whether the layout tables have been built
+     */
+    val isLayoutLoaded: Boolean
+        get() = lazyLayoutTables.isInitialized()
+
+    /**
+     * Build the layout tables now, decoding the layout if it has not been yet
+     * @throws Exception if the layout cannot be decoded
+     */
+    fun loadLayout() {
+        lazyLayoutTables.value
+    }
+
+    /** Preferences with every initial category enabled */
+    val defaultPreferences: ConsentPreferences =
+        ConsentPreferences(
+            isCustomised = false,
+            cookieOptions =
+                header.initialCategories.initial.map { category ->
+                    CategoryConsent(gtmKey = category, isEnabled = true)
+                },
+        )
+
+    /** Snapshot of [defaultPreferences] for O(1) category lookups */
+    val defaultSnapshot: ConsentSnapshot = ConsentSnapshot.of(defaultPreferences)
+
+    private val lazyLayoutTables =
+        lazy { LayoutTables.of(header, ConfigLocalizer.localize(source.readLayout(), locale)) }
+
+    private val layoutTables: LayoutTables
+        get() = lazyLayoutTables.value
+
+    /** Every category GTM key: initial categories first, then layout categories, without duplicates */
+    val categoryKeys: List<String>
+        get() = layoutTables.categoryTable.keys
+
+    /** Stable bit index of each key in [categoryKeys], versioned with the config */
+    val categoryTable: CategoryTable
+        get() = layoutTables.categoryTable
+
+    /** GTM keys of always-on categories */
+    val essentialKeys: Set<String>
+        get() = layoutTables.essentialKeys
+
+    /** Layout categories by id */
+    val categoriesById: Map<String, ConsentLayerCategory>
+        get() = layoutTables.categoriesById
+
+    /** Key of the layer the banner opens on */
+    val firstLayerId: String
+        get() = layoutTables.firstLayerId
+
+    /**
+     * Get a layer, with translations resolved for [locale]
+     * @param layerKey Key of the layer in the layout
+     * @return The layer, or null if it does not exist
+     */
+    fun layerOf(layerKey: String): ConsentLayer? {
+        return layoutTables.layers[layerKey]
+    }
+
+    /**
+     * Get an index over the same config with layout tables resolved for another locale
+     * @param locale The locale to resolve for
+     * @return This index if it already uses the locale, else a new one; header tables are cheap to rebuild
+     */
+    fun withLocale(locale: String): ConfigIndex {
+        return if (locale == this.locale) this else ConfigIndex(source, locale)
+    }
+
+    /**
+     * Get a layer's elements in display order
+     * @param layerKey Key of the layer in the layout
+     * @return Elements sorted by order, or null if the layer does not exist
+     */
+    fun elementsOf(layerKey: String): List<ConsentLayerElement>? {
+        return layoutTables.sortedElements[layerKey]
+    }
+
+    private class LayoutTables(
+        val firstLayerId: String,
+        val layers: Map<String, ConsentLayer>,
+        val categoryTable: CategoryTable,
+        val essentialKeys: Set<String>,
+        val categoriesById: Map<String, ConsentLayerCategory>,
+        val sortedElements: Map<String, List<ConsentLayerElement>>,
+    ) {
+        companion object {
+            fun of(
+                header: ConfigHeader,
+                layout: Layout,
+            ): LayoutTables {
+                val categoryKeys = LinkedHashSet<String>(header.initialCategories.initial)
+
+                val essentialKeys = LinkedHashSet<String>()
+                val categoriesById = HashMap<String, ConsentLayerCategory>()
+                val sortedElements = HashMap<String, List<ConsentLayerElement>>(layout.consentLayers.size * 2)
+                for ((layerKey, layer) in layout.consentLayers) {
+                    sortedElements[layerKey] = layer.elements.sortedBy { it.order }
+                    for (element in layer.elements) {
+                        val categories = element.consentLayerCategories ?: continue
+                        for (category in categories) {
+                            categoryKeys.add(category.gtmKey)
+                            categoriesById[category.id] = category
+                            // Only category elements mark categories as essential
+                            if (element.type == CATEGORY_ELEMENT_TYPE && category.alwaysOn) {
+                                essentialKeys.add(category.gtmKey)
+                            }
+                        }
+                    }
+                }
+
+                return LayoutTables(
+                    firstLayerId = layout.firstLayerId,
+                    layers = layout.consentLayers,
+                    categoryTable = CategoryTable.of(header.version, categoryKeys.toList()),
+                    essentialKeys = essentialKeys,
+                    categoriesById = categoriesById,
+                    sortedElements = sortedElements,
+                )
+            }
+        }
+    }
+
+    companion object {
+        private const val CATEGORY_ELEMENT_TYPE = "ConsentLayerCategoryElement"
+
+        /**
+         * Build the index for a config
+         * @param config The config to index
+         * @param locale Locale to resolve layout translations for
+         * @return Index over the config
+         */
+        fun of(
+            config: ConsentConfig,
+            locale: String = ConfigLocalizer.deviceLocale(),
+        ): ConfigIndex {
+            return ConfigIndex(LazyConfig.of(config), locale)
+        }
+
+        /**
+         * Build the index for a config whose layout may not be decoded yet.
+         * The layout is not touched until a layout table is first used.
+         * @param source The config to index
+         * @param locale Locale to resolve layout translations for
+         * @return Index over the config
+         */
+        fun of(
+            source: LazyConfig,
+            locale: String = ConfigLocalizer.deviceLocale(),
+        ): ConfigIndex {
+            return ConfigIndex(source, locale)
+        }
+    }
+}
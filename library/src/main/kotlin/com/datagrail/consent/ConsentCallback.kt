@@ -1,5 +1,6 @@
 package com.datagrail.consent
 
+import com.datagrail.consent.models.ConsentConfig
 import com.datagrail.consent.models.ConsentException
 import com.datagrail.consent.models.ConsentPreferences
 
@@ -79,19 +80,16 @@ interface PreferencesCallback {
 }
 
 /**
- * Java-friendly callback interface for consent change listeners
+ * Listener for consent changes, registered with DataGrailConsent.addConsentChangeListener()
  *
  * Example (Java):
  * ```java
- * DataGrailConsent.getInstance().onConsentChanged(new ConsentChangeListener() {
- *     @Override
- *     public void onConsentChanged(ConsentPreferences preferences) {
- *         // Handle consent change
- *     }
+ * ConsentSubscription subscription = DataGrailConsent.getInstance().addConsentChangeListener(preferences -> {
+ *     // Handle consent change
  * });
  * ```
  */
-interface ConsentChangeListener {
+fun interface ConsentChangeListener {
     /**
      * Called when consent preferences change
      * @param preferences The new preferences
@@ -120,3 +118,98 @@ interface RetryCallback {
      */
     fun onRetryComplete(successCount: Int, failureCount: Int)
 }
+
+/**
+ * Listener for SDK initialization timings
+ *
+ * Example (Java):
+ * ```java
+ * ConsentOptions options = new ConsentOptions.Builder()
+ *     .initTimingsListener(timings -> Log.d("Consent", "Init: " + timings.getTotalMs() + "ms"))
+ *     .build();
+ * ```
+ */
+fun interface InitTimingsListener {
+    /**
+     * Called once initialization completes or fails
+     * @param timings Durations of each initialization phase
+     */
+    fun onInitTimings(timings: InitTimings)
+}
+
+/**
+ * Listener for background configuration refreshes
+ * Used with ConsentOptions.staleWhileRevalidate
+ *
+ * Example (Java):
+ * ```java
+ * ConsentOptions options = new ConsentOptions.Builder()
+ *     .staleWhileRevalidate(true)
+ *     .configUpdateListener(config -> showBannerAgain())
+ *     .build();
+ * ```
+ */
+fun interface ConfigUpdateListener {
+    /**
+     * Called when a refreshed configuration with a new version requires the banner to be shown again
+     * @param config The refreshed configuration now in use
+     */
+    fun onConfigUpdated(config: ConsentConfig)
+}
+
+/**
+ * Listener for pending request uploads
+ *
+ * Example (Java):
+ * ```java
+ * ConsentOptions options = new ConsentOptions.Builder()
+ *     .uploadBatchListener(stats -> Log.d("Consent", "Batch took " + stats.getLatencyMs() + "ms"))
+ *     .build();
+ * ```
+ */
+fun interface UploadBatchListener {
+    /**
+     * Called after each batch of pending requests has been uploaded
+     * @param stats Outcome and latency of the batch
+     */
+    fun onBatchUploaded(stats: UploadBatchStats)
+}
+
+/**
+ * Listener for changes to a single consent category, registered with
+ * DataGrailConsent.addCategoryChangeListener()
+ *
+ * Example (Java):
+ * ```java
+ * DataGrailConsent.getInstance().addCategoryChangeListener("category_marketing",
+ *     (gtmKey, isEnabled) -> adSdk.setPersonalizedAds(isEnabled));
+ * ```
+ */
+fun interface CategoryChangeListener {
+    /**
+     * Called when the category is enabled or disabled; not called for saves that leave it unchanged
+     * @param gtmKey GTM key of the category
+     * @param isEnabled Whether the category is now enabled
+     */
+    fun onCategoryChanged(
+        gtmKey: String,
+        isEnabled: Boolean,
+    )
+}
+
+/**
+ * Handle for a registered listener
+ *
+ * Example (Java):
+ * ```java
+ * ConsentSubscription subscription = DataGrailConsent.getInstance().addConsentChangeListener(listener);
+ * // Later
+ * subscription.remove();
+ * ```
+ */
+fun interface ConsentSubscription {
+    /**
+     * Stop delivering changes to the listener. Calling it again has no effect.
+     */
+    fun remove()
+}
@@ -0,0 +1,205 @@
+package com.datagrail.consent
+
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleEventObserver
+import androidx.lifecycle.LifecycleOwner
+import com.datagrail.consent.models.ConsentBits
+import com.datagrail.consent.models.ConsentPreferences
+import com.datagrail.consent.utils.ConsentLogger
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Holds the current consent preferences as a [StateFlow] and fans changes out to registered listeners.
+ * Outlives individual ConsentManager instances so subscriptions survive re-initialization.
+ *
+ * Changes arrive as [ConsentSnapshot]s, whose [ConsentBits] are compared with the current ones: over the
+ * config's category table the check and the diff are word operations, and only listeners of categories
+ * whose enabled bit flipped are woken.
+ */
+internal class ConsentChangeNotifier {
+    private val lock = Any()
+    private val state = MutableStateFlow<ConsentPreferences?>(null)
+    private val listeners = CopyOnWriteArrayList<ConsentChangeListener>()
+
+    // Bitset form of the current preferences, or null if none exist
+    private var current: ConsentBits? = null
+
+    // Category listeners by GTM key; guarded by [lock]
+    private val categoryListeners = HashMap<String, CopyOnWriteArrayList<CategoryChangeListener>>()
+
+    private class CategoryChange(
+        val gtmKey: String,
+        val isEnabled: Boolean,
+        val listeners: List<CategoryChangeListener>,
+    )
+
+    /**
+     * Current preferences; emits only when they change
+     */
+    val preferences: StateFlow<ConsentPreferences?> = state.asStateFlow()
+
+    // MARK: - Publishing
+
+    /**
+     * Set the preferences loaded from storage without notifying listeners, since the user changed nothing
+     * @param snapshot The saved preferences
+     */
+    fun load(snapshot: ConsentSnapshot) {
+        synchronized(lock) {
+            state.value = snapshot.preferences
+            current = snapshot.bits
+        }
+    }
+
+    /**
+     * Set new preferences and notify listeners if they differ from the current ones
+     * @param snapshot The new preferences, or [ConsentSnapshot.EMPTY] when consent was cleared
+     * @param defaults Consent in effect while none is saved, which category changes of a first save
+     * are diffed against
+     */
+    fun publish(
+        snapshot: ConsentSnapshot,
+        defaults: ConsentSnapshot = ConsentSnapshot.EMPTY,
+    ) {
+        val preferences = snapshot.preferences
+        val changes = ArrayList<CategoryChange>()
+        synchronized(lock) {
+            val previous = current
+            val bits = snapshot.bits
+            if (previous == bits) return
+            current = bits
+            state.value = preferences
+
+            // Before the first save, queries answer from the defaults, so that is what a save changes
+            val base = previous ?: defaults.bits
+            val changed =
+                when {
+                    base != null -> base.changedKeys(bits)
+                    bits != null -> bits.changedKeys(null)
+                    else -> emptySet()
+                }
+            for (gtmKey in changed) {
+                val subscribers = categoryListeners[gtmKey]
+                if (!subscribers.isNullOrEmpty()) {
+                    changes.add(CategoryChange(gtmKey, bits?.isCategoryEnabled(gtmKey) ?: false, subscribers))
+                }
+            }
+        }
+
+        // Listeners take non-null preferences; a cleared state is only visible through the flow
+        if (preferences == null) return
+        for (listener in listeners) {
+            deliver { listener.onConsentChanged(preferences) }
+        }
+        for (change in changes) {
+            for (listener in change.listeners) {
+                deliver { listener.onCategoryChanged(change.gtmKey, change.isEnabled) }
+            }
+        }
+    }
+
+    private inline fun deliver(block: () -> Unit) {
+        try {
+            block()
+        } catch (e: Exception) {
+            // One failing listener must not keep the change from the others
+            ConsentLogger.e("Consent change listener failed: ${e.javaClass.simpleName}")
+        }
+    }
+
+    // MARK: - Listeners
+
+    /**
+     * Register a listener until it is removed
+     * @param listener Listener to notify of changes
+     * @return Subscription that removes the listener
+     */
+    fun addListener(listener: ConsentChangeListener): ConsentSubscription {
+        listeners.add(listener)
+        return ConsentSubscription { listeners.remove(listener) }
+    }
+
+    /**
+     * Register a listener that is removed when the owner's lifecycle is destroyed.
+     * Must be called on the main thread, as required by [Lifecycle.addObserver].
+     * @param owner Lifecycle that bounds the registration
+     * @param listener Listener to notify of changes
+     * @return Subscription that removes the listener early
+     */
+    fun addListener(
+        owner: LifecycleOwner,
+        listener: ConsentChangeListener,
+    ): ConsentSubscription {
+        return bindToLifecycle(owner) { addListener(listener) }
+    }
+
+    /**
+     * Remove every registration of a listener
+     * @param listener Listener to remove
+     */
+    fun removeListener(listener: ConsentChangeListener) {
+        listeners.removeAll { it === listener }
+    }
+
+    /**
+     * Register a listener for one category until it is removed
+     * @param gtmKey GTM key of the category
+     * @param listener Listener to notify when the category is enabled or disabled
+     * @return Subscription that removes the listener
+     */
+    fun addCategoryListener(
+        gtmKey: String,
+        listener: CategoryChangeListener,
+    ): ConsentSubscription {
+        val subscribers =
+            synchronized(lock) {
+                categoryListeners.getOrPut(gtmKey) { CopyOnWriteArrayList() }.also { it.add(listener) }
+            }
+        return ConsentSubscription { subscribers.remove(listener) }
+    }
+
+    /**
+     * Register a listener for one category that is removed when the owner's lifecycle is destroyed.
+     * Must be called on the main thread, as required by [Lifecycle.addObserver].
+     * @param owner Lifecycle that bounds the registration
+     * @param gtmKey GTM key of the category
+     * @param listener Listener to notify when the category is enabled or disabled
+     * @return Subscription that removes the listener early
+     */
+    fun addCategoryListener(
+        owner: LifecycleOwner,
+        gtmKey: String,
+        listener: CategoryChangeListener,
+    ): ConsentSubscription {
+        return bindToLifecycle(owner) { addCategoryListener(gtmKey, listener) }
+    }
+
+    private fun bindToLifecycle(
+        owner: LifecycleOwner,
+        register: () -> ConsentSubscription,
+    ): ConsentSubscription {
+        val lifecycle = owner.lifecycle
+        if (lifecycle.currentState == Lifecycle.State.DESTROYED) {
+            return ConsentSubscription { }
+        }
+
+        val subscription = register()
+        lifecycle.addObserver(
+            object : LifecycleEventObserver {
+                override fun onStateChanged(
+                    source: LifecycleOwner,
+                    event: Lifecycle.Event,
+                ) {
+                    if (event == Lifecycle.Event.ON_DESTROY) {
+                        subscription.remove()
+                        source.lifecycle.removeObserver(this)
+                    }
+                }
+            },
+        )
+        return subscription
+    }
+}
@@ -1,12 +1,14 @@
 package com.datagrail.consent
 
-import com.datagrail.consent.models.CategoryConsent
 import com.datagrail.consent.models.ConsentConfig
 import com.datagrail.consent.models.ConsentException
 import com.datagrail.consent.models.ConsentPreferences
+import com.datagrail.consent.models.LazyConfig
 import com.datagrail.consent.network.ConfigService
 import com.datagrail.consent.network.ConsentService
 import com.datagrail.consent.storage.ConsentStorage
+import com.datagrail.consent.utils.ConsentLogger
+import java.util.concurrent.atomic.AtomicReference
 
 /**
  * Manages consent state and coordinates between storage, network, and configuration
@@ -15,8 +17,87 @@ internal class ConsentManager(
     private val storage: ConsentStorage,
     private val configService: ConfigService,
     private val consentService: ConsentService,
+    private val changeNotifier: ConsentChangeNotifier = ConsentChangeNotifier(),
 ) {
-    internal var currentConfig: ConsentConfig? = null
+    // Config and its lookup tables, swapped as one volatile reference so readers on other threads
+    // never see a config paired with another config's index
+    @Volatile
+    internal var configIndex: ConfigIndex? = null
+        private set
+
+    // Reading the full config decodes its layout; consent checks use configIndex.header instead
+    internal var currentConfig: ConsentConfig?
+        get() = configIndex?.config
+        set(value) {
+            synchronized(this) { configIndex = value?.let { ConfigIndex.of(it) } }
+        }
+
+    private fun use(source: LazyConfig) {
+        synchronized(this) { configIndex = ConfigIndex.of(source) }
+    }
+
+    /**
+     * Get the config index with layout tables resolved for a locale, keeping it for later calls
+     * @param locale The locale to resolve translations for
+     * @return The localized index, or null if no config is loaded
+     */
+    fun localizedIndex(locale: String): ConfigIndex? {
+        val index = configIndex ?: return null
+        if (index.locale == locale) return index
+
+        val localized = index.withLocale(locale)
+        synchronized(this) {
+            // A config swapped in meanwhile was indexed for the current locale already
+            if (configIndex === index) configIndex = localized
+        }
+        return localized
+    }
+
+    /**
+     * Decode an index's layout before it is shown. A layout that fails to decode is not retried: the
+     * config is dropped here and from the config service, so the next load fetches it again.
+     * @param index The index about to be shown
+     * @return true if the layout is decoded, false if the config was discarded
+     */
+    fun loadLayout(index: ConfigIndex): Boolean {
+        return try {
+            index.loadLayout()
+            true
+        } catch (e: Exception) {
+            discard(index, e)
+            false
+        }
+    }
+
+    /**
+     * Get the full config, decoding its layout. Like [loadLayout], a layout that fails to decode
+     * discards the config instead of throwing.
+     * @return The config, or null if none is loaded or it was discarded
+     */
+    fun readConfig(): ConsentConfig? {
+        val index = configIndex ?: return null
+        return try {
+            index.config
+        } catch (e: Exception) {
+            discard(index, e)
+            null
+        }
+    }
+
+    private fun discard(
+        index: ConfigIndex,
+        error: Exception,
+    ) {
+        ConsentLogger.e("Discarding config with unreadable layout: ${error.javaClass.simpleName}")
+        synchronized(this) {
+            // Indexes of one config share its header; a config swapped in meanwhile is kept
+            if (configIndex?.header === index.header) configIndex = null
+        }
+        configService.discardCachedConfig()
+    }
+
+    // In-memory view of saved preferences; null until first read from storage
+    private val snapshotRef = AtomicReference<ConsentSnapshot?>(null)
 
     // MARK: - Configuration
 
@@ -27,17 +108,50 @@ internal class ConsentManager(
      */
     suspend fun loadConfig(
         configUrl: String,
-        callback: (Result<ConsentConfig>) -> Unit,
+        callback: (Result<Unit>) -> Unit,
     ) {
         try {
-            val config = configService.fetchConfigWithRetry(configUrl)
-            currentConfig = config
-            callback(Result.success(config))
+            use(configService.fetchConfigWithRetry(configUrl))
+            callback(Result.success(Unit))
         } catch (e: Exception) {
             callback(Result.failure(e))
         }
     }
 
+    /**
+     * Attempts made by the most recent config fetch, or 0 if none has run
+     */
+    val lastConfigFetchAttempts: Int
+        get() = configService.lastFetchAttempts
+
+    /**
+     * Serve a valid cached configuration immediately, if one exists.
+     * Only its header is decoded; the layout is decoded when the banner or categories need it.
+     * @return The cached config now in use, or null if there is no usable cache
+     */
+    fun loadCachedConfig(): LazyConfig? {
+        val cached = configService.loadCachedConfig() ?: return null
+        use(cached)
+        return cached
+    }
+
+    /**
+     * Refresh configuration from the network and swap it in
+     * @param configUrl URL to fetch configuration from
+     * @return true if the config version changed and the banner must be shown again
+     * @throws ConsentException if the refresh fails and no cache is available
+     */
+    suspend fun revalidateConfig(configUrl: String): Boolean {
+        val previous = configIndex?.header
+        val refreshed = configService.fetchConfigWithRetry(configUrl)
+        use(refreshed)
+
+        if (previous == null || previous.version == refreshed.header.version) {
+            return false
+        }
+        return needsConsent()
+    }
+
     // MARK: - Consent Check
 
     /**
@@ -45,24 +159,21 @@ internal class ConsentManager(
      * @return true if consent is needed, false otherwise
      */
     fun needsConsent(): Boolean {
-        val config = currentConfig ?: return false
+        val config = configIndex?.header ?: return false
 
         // Check if banner should be shown
         if (!config.showBanner) {
             return false
         }
 
-        // Check if preferences exist
-        val preferences = storage.loadPreferences()
-
         // If no preferences, always show
-        if (preferences == null) {
+        val snapshot = snapshot()
+        if (!snapshot.hasPreferences) {
             return true
         }
 
         // Check if config version has changed
-        val storedVersion = storage.loadConfigVersion()
-        if (storedVersion != config.version) {
+        if (snapshot.configVersion != config.version) {
             return true
         }
 
@@ -76,7 +187,7 @@ internal class ConsentManager(
      * @return Saved preferences, or null if user hasn't saved consent yet
      */
     fun getUserPreferences(): ConsentPreferences? {
-        return storage.loadPreferences()
+        return snapshot().preferences
     }
 
     /**
@@ -85,7 +196,7 @@ internal class ConsentManager(
      * @return Consent preferences representing the current category state
      */
     fun getCategories(): ConsentPreferences? {
-        storage.loadPreferences()?.let { return it }
+        snapshot().preferences?.let { return it }
         return getDefaultPreferences()
     }
 
@@ -94,17 +205,7 @@ internal class ConsentManager(
      * @return Default preferences with initial categories enabled
      */
     fun getDefaultPreferences(): ConsentPreferences? {
-        val config = currentConfig ?: return null
-
-        val cookieOptions =
-            config.initialCategories.initial.map { category ->
-                CategoryConsent(gtmKey = category, isEnabled = true)
-            }
-
-        return ConsentPreferences(
-            isCustomised = false,
-            cookieOptions = cookieOptions,
-        )
+        return configIndex?.defaultPreferences
     }
 
     /**
@@ -116,19 +217,26 @@ internal class ConsentManager(
         preferences: ConsentPreferences,
         callback: (Result<Unit>) -> Unit,
     ) {
-        val config = currentConfig
-        if (config == null) {
+        val index = configIndex
+        if (index == null) {
             callback(Result.failure(ConsentException.NotInitialized()))
             return
         }
+        val config = index.header
 
         try {
-            // Save locally
-            storage.savePreferences(preferences)
-            storage.saveConfigVersion(config.version)
+            // Reuse the config's category table only if the layout is decoded already; otherwise the
+            // preferences index their own keys, so saving never decodes (or fails on) the layout
+            val table = index.takeIf { it.isLayoutLoaded }?.categoryTable
+
+            // One local commit; the decision stands even if the backend can't be reached
+            val uniqueId = storage.saveConsent(preferences, config.version, table)
+            val snapshot = ConsentSnapshot.of(preferences, config.version, table)
+            snapshotRef.set(snapshot)
+            changeNotifier.publish(snapshot, index.defaultSnapshot)
 
             // Send to backend
-            consentService.savePreferences(preferences, config)
+            consentService.savePreferences(preferences, config, uniqueId)
             callback(Result.success(Unit))
         } catch (e: Exception) {
             callback(Result.failure(e))
@@ -140,7 +248,7 @@ internal class ConsentManager(
      * @param callback Callback with result
      */
     suspend fun trackBannerOpen(callback: (Result<Unit>) -> Unit) {
-        val config = currentConfig
+        val config = configIndex?.header
         if (config == null) {
             callback(Result.failure(ConsentException.NotInitialized()))
             return
@@ -160,38 +268,52 @@ internal class ConsentManager(
      * @return true if enabled, false otherwise
      */
     fun isCategoryEnabled(category: String): Boolean {
-        val preferences = storage.loadPreferences()
-        if (preferences == null) {
+        val snapshot = snapshot()
+        if (!snapshot.hasPreferences) {
             // No preferences - check if it's in initial categories
-            return currentConfig?.initialCategories?.initial?.contains(category) ?: false
+            return configIndex?.defaultSnapshot?.isCategoryEnabled(category) ?: false
         }
 
-        return preferences.isCategoryEnabled(category)
+        return snapshot.isCategoryEnabled(category)
     }
 
     /**
-     * Get list of essential/always-on category GTM keys from config
-     * @return List of GTM keys for categories that are always enabled
+     * Get essential/always-on category GTM keys from config
+     * @return GTM keys for categories that are always enabled
      */
-    fun getEssentialCategories(): List<String> {
-        val config = currentConfig ?: return emptyList()
+    fun getEssentialCategories(): Set<String> {
+        return configIndex?.essentialKeys ?: emptySet()
+    }
 
-        val essentialKeys = mutableListOf<String>()
+    // MARK: - Snapshot
 
-        // Check all layers for categories marked as alwaysOn
-        for ((_, layer) in config.layout.consentLayers) {
-            for (element in layer.elements) {
-                if (element.type == "ConsentLayerCategoryElement") {
-                    element.consentLayerCategories?.forEach { category ->
-                        if (category.alwaysOn) {
-                            essentialKeys.add(category.gtmKey)
-                        }
-                    }
-                }
-            }
-        }
+    /**
+     * Load saved consent state into memory so the read APIs never touch storage afterwards.
+     * Reads from disk; call it on the thread doing storage setup, before the manager is published.
+     */
+    fun warmUp() {
+        snapshot()
+    }
 
-        return essentialKeys
+    /**
+     * Get the in-memory preferences snapshot, loading it from storage on first access.
+     * The snapshot is only replaced by savePreferences() and reset().
+     * @return The current snapshot
+     */
+    private fun snapshot(): ConsentSnapshot {
+        snapshotRef.get()?.let { return it }
+
+        val loaded =
+            ConsentSnapshot.of(
+                storage.loadPreferences(),
+                storage.loadConfigVersion(),
+                // Only reuse the config's table if the layout is decoded already
+                configIndex?.takeIf { it.isLayoutLoaded }?.categoryTable,
+            )
+        // A concurrent save or reset wins over a stale load
+        if (!snapshotRef.compareAndSet(null, loaded)) return snapshotRef.get() ?: loaded
+        changeNotifier.load(loaded)
+        return loaded
     }
 
     // MARK: - Retry
@@ -211,6 +333,8 @@ internal class ConsentManager(
      */
     fun reset() {
         storage.clearAll()
+        snapshotRef.set(ConsentSnapshot.EMPTY)
+        changeNotifier.publish(ConsentSnapshot.EMPTY)
         currentConfig = null
     }
 
@@ -0,0 +1,228 @@
+package com.datagrail.consent
+
+import com.datagrail.consent.network.ConsentService
+import com.datagrail.consent.network.HttpTransport
+
+/**
+ * Optional settings for [DataGrailConsent.initialize].
+ *
+ * Example (Kotlin):
+ * ```kotlin
+ * val options = ConsentOptions.Builder()
+ *     .asyncStorageInit(true)
+ *     .initTimingsListener { timings -> Log.d("Consent", "init took ${timings.totalMs}ms") }
+ *     .staleWhileRevalidate(true)
+ *     .configUpdateListener { config -> showBannerAgain() }
+ *     .retryPolicy(RetryPolicy.Builder().deadlineMs(10_000).build())
+ *     .build()
+ * DataGrailConsent.getInstance().initialize(context, configUrl, options) { result -> }
+ * ```
+ */
+class ConsentOptions private constructor(
+    /**
+     * When true, keystore and encrypted storage setup run on a background dispatcher
+     * instead of the thread calling initialize(). Until setup completes, query APIs
+     * throw [com.datagrail.consent.models.ConsentException.NotInitialized]; use
+     * [DataGrailConsent.isReady] or [DataGrailConsent.awaitReady] to check readiness.
+     */
+    val asyncStorageInit: Boolean,
+    /**
+     * Listener notified with phase timings once initialization finishes
+     */
+    val initTimingsListener: InitTimingsListener?,
+    /**
+     * When true, a valid cached config completes initialize() immediately and the
+     * network refresh runs in the background, replacing the config when it lands
+     */
+    val staleWhileRevalidate: Boolean,
+    /**
+     * Listener notified when a background refresh brings a new config version
+     * that requires the banner to be shown again
+     */
+    val configUpdateListener: ConfigUpdateListener?,
+    /**
+     * When true, request bodies sent to the privacy domain are gzip-compressed.
+     * Only enable this if your privacy domain accepts Content-Encoding: gzip.
+     */
+    val compressRequestBodies: Boolean,
+    /**
+     * Maximum number of pending requests uploaded concurrently when retrying
+     */
+    val maxConcurrentUploads: Int,
+    /**
+     * Listener notified with the outcome and latency of each pending request upload batch
+     */
+    val uploadBatchListener: UploadBatchListener?,
+    /**
+     * Transport for all SDK requests, e.g. an adapter over the app's own OkHttp client.
+     * When null the SDK uses its built-in transport on the platform HTTP stack.
+     */
+    val transport: HttpTransport?,
+    /**
+     * How failed config requests are retried, including an optional best-effort deadline
+     */
+    val retryPolicy: RetryPolicy,
+    /**
+     * Socket timeouts applied to each request attempt
+     */
+    val timeoutPolicy: TimeoutPolicy,
+    /**
+     * When true, the config is cached and served with only the translations the device locale
+     * resolves to. This shrinks the cache and the config kept in memory when the config has many
+     * locales. [DataGrailConsent.getConfig] then only holds those strings too. After a locale change
+     * the cached config is not reused; it is downloaded again and pruned for the new locale.
+     */
+    val pruneCachedLocales: Boolean,
+) {
+    /**
+     * Builder for [ConsentOptions]
+     */
+    class Builder {
+        private var asyncStorageInit: Boolean = false
+        private var initTimingsListener: InitTimingsListener? = null
+        private var staleWhileRevalidate: Boolean = false
+        private var configUpdateListener: ConfigUpdateListener? = null
+        private var compressRequestBodies: Boolean = false
+        private var maxConcurrentUploads: Int = ConsentService.DEFAULT_MAX_CONCURRENT_UPLOADS
+        private var uploadBatchListener: UploadBatchListener? = null
+        private var transport: HttpTransport? = null
+        private var retryPolicy: RetryPolicy = RetryPolicy.DEFAULT
+        private var timeoutPolicy: TimeoutPolicy = TimeoutPolicy.DEFAULT
+        private var pruneCachedLocales: Boolean = false
+
+        /**
+         * Run keystore and storage setup off the calling thread (default: false)
+         */
+        fun asyncStorageInit(enabled: Boolean) = apply { this.asyncStorageInit = enabled }
+
+        /**
+         * Receive initialization phase timings
+         */
+        fun initTimingsListener(listener: InitTimingsListener?) = apply { this.initTimingsListener = listener }
+
+        /**
+         * Serve the cached config immediately and refresh it in the background (default: false)
+         */
+        fun staleWhileRevalidate(enabled: Boolean) = apply { this.staleWhileRevalidate = enabled }
+
+        /**
+         * Be notified when a background refresh requires the banner to be shown again
+         */
+        fun configUpdateListener(listener: ConfigUpdateListener?) = apply { this.configUpdateListener = listener }
+
+        /**
+         * Gzip request bodies sent to the privacy domain (default: false)
+         */
+        fun compressRequestBodies(enabled: Boolean) = apply { this.compressRequestBodies = enabled }
+
+        /**
+         * Upload up to this many pending requests at once when retrying (default: 4)
+         * @throws IllegalArgumentException if [count] is less than 1
+         */
+        fun maxConcurrentUploads(count: Int) =
+            apply {
+                require(count >= 1) { "maxConcurrentUploads must be at least 1" }
+                this.maxConcurrentUploads = count
+            }
+
+        /**
+         * Receive the outcome and latency of each pending request upload batch
+         */
+        fun uploadBatchListener(listener: UploadBatchListener?) = apply { this.uploadBatchListener = listener }
+
+        /**
+         * Send SDK requests through the app's own HTTP stack so they share its connection pool
+         * (default: null, the built-in transport)
+         */
+        fun transport(transport: HttpTransport?) = apply { this.transport = transport }
+
+        /**
+         * Retry attempts, backoff and deadline for config requests (default: [RetryPolicy.DEFAULT])
+         */
+        fun retryPolicy(policy: RetryPolicy) = apply { this.retryPolicy = policy }
+
+        /**
+         * Per-attempt connect and read timeouts (default: [TimeoutPolicy.DEFAULT])
+         */
+        fun timeoutPolicy(policy: TimeoutPolicy) = apply { this.timeoutPolicy = policy }
+
+        /**
+         * Cache and serve only the device locale's config translations (default: false)
+         */
+        fun pruneCachedLocales(enabled: Boolean) = apply { this.pruneCachedLocales = enabled }
+
+        fun build(): ConsentOptions =
+            ConsentOptions(
+                asyncStorageInit = asyncStorageInit,
+                initTimingsListener = initTimingsListener,
+                staleWhileRevalidate = staleWhileRevalidate,
+                configUpdateListener = configUpdateListener,
+                compressRequestBodies = compressRequestBodies,
+                maxConcurrentUploads = maxConcurrentUploads,
+                uploadBatchListener = uploadBatchListener,
+                transport = transport,
+                retryPolicy = retryPolicy,
+                timeoutPolicy = timeoutPolicy,
+                pruneCachedLocales = pruneCachedLocales,
+            )
+    }
+
+    companion object {
+        /**
+         * Options used by the initialize() overloads that don't take options
+         */
+        @JvmField
+        val DEFAULT: ConsentOptions = Builder().build()
+    }
+}
+
+/**
+ * Durations of the SDK initialization phases, in milliseconds
+ */
+data class InitTimings(
+    /** Time spent creating the keystore master key and encrypted storage */
+    val storageInitMs: Long,
+    /** Time spent loading the configuration (network and/or cache) */
+    val configLoadMs: Long,
+    /** Time from the initialize() call until completion */
+    val totalMs: Long,
+    /** Whether storage setup ran off the calling thread */
+    val asyncStorageInit: Boolean,
+    /** Whether initialization succeeded */
+    val success: Boolean,
+    /** Config fetch attempts made, including retries; 0 when a cached config was served without fetching */
+    val configAttempts: Int = 0,
+)
+
+/**
+ * Outcome of uploading one batch of pending requests
+ */
+data class UploadBatchStats(
+    /** Position of the batch within the retry pass, starting at 0 */
+    val batchIndex: Int,
+    /** Number of queued requests in the batch */
+    val eventCount: Int,
+    /** Requests the backend accepted */
+    val successCount: Int,
+    /** Requests that failed and remain queued */
+    val failureCount: Int,
+    /** Time from the first request starting until the last one finished */
+    val latencyMs: Long,
+)
+
+/**
+ * Connection reuse counters for the SDK's HTTP requests
+ */
+data class TransportMetrics(
+    /** Requests that received a response */
+    val requestCount: Long,
+    /** New TLS connections opened, each paying a full handshake */
+    val handshakeCount: Long,
+) {
+    /** Fraction of requests served on an already-open connection, from 0.0 to 1.0 */
+    val reuseRatio: Double
+        get() {
+            if (requestCount == 0L) return 0.0
+            return (requestCount - handshakeCount).coerceAtLeast(0L).toDouble() / requestCount
+        }
+}
@@ -0,0 +1,63 @@
+package com.datagrail.consent
+
+import com.datagrail.consent.models.CategoryTable
+import com.datagrail.consent.models.ConsentBits
+import com.datagrail.consent.models.ConsentPreferences
+
+/**
+ * Immutable in-memory view of the user's saved consent preferences and the config version they were given for.
+ * Built once per load/save so category lookups are O(1) and never touch storage.
+ */
+internal class ConsentSnapshot private constructor(
+    val preferences: ConsentPreferences?,
+    /** Config version the preferences were saved against, or null if none is stored */
+    val configVersion: String?,
+    /** Bitset form of [preferences], or null if none exist */
+    val bits: ConsentBits?,
+) {
+    /**
+     * Whether the user has saved preferences
+     */
+    val hasPreferences: Boolean
+        get() = preferences != null
+
+    /**
+     * Check if a category is enabled in the saved preferences
+     * @param gtmKey The category GTM key
+     * @return true if the category is saved as enabled, false otherwise
+     */
+    fun isCategoryEnabled(gtmKey: String): Boolean {
+        return bits?.isCategoryEnabled(gtmKey) ?: false
+    }
+
+    companion object {
+        /**
+         * Snapshot representing "no saved preferences"
+         */
+        val EMPTY = ConsentSnapshot(null, null, null)
+
+        /**
+         * Build a snapshot from saved preferences
+         * @param preferences The saved preferences, or null if none exist
+         * @param configVersion The stored config version, or null if none exists
+         * @param table Category indices of the loaded config; without one the preferences index their own keys
+         * @return Snapshot for the given preferences
+         */
+        fun of(
+            preferences: ConsentPreferences?,
+            configVersion: String? = null,
+            table: CategoryTable? = null,
+        ): ConsentSnapshot {
+            if (preferences == null && configVersion == null) return EMPTY
+            if (preferences == null) return ConsentSnapshot(null, configVersion, null)
+
+            val bits =
+                if (table != null) {
+                    ConsentBits.of(preferences, table)
+                } else {
+                    ConsentBits.of(preferences, configVersion.orEmpty())
+                }
+            return ConsentSnapshot(preferences, configVersion, bits)
+        }
+    }
+}
@@ -1,20 +1,31 @@
 package com.datagrail.consent
 
 import android.content.Context
+import androidx.lifecycle.LifecycleOwner
 import com.datagrail.consent.models.CategoryConsent
 import com.datagrail.consent.models.ConsentConfig
 import com.datagrail.consent.models.ConsentException
 import com.datagrail.consent.models.ConsentPreferences
+import com.datagrail.consent.network.AndroidConnectivityMonitor
 import com.datagrail.consent.network.ConfigService
+import com.datagrail.consent.network.ConnectivityMonitor
 import com.datagrail.consent.network.ConsentService
+import com.datagrail.consent.network.HttpUrlConnectionTransport
 import com.datagrail.consent.network.NetworkClient
+import com.datagrail.consent.network.PendingEventScheduler
 import com.datagrail.consent.storage.ConsentStorage
 import com.datagrail.consent.ui.BannerDisplayStyle
+import com.datagrail.consent.utils.ConfigLocalizer
 import com.datagrail.consent.utils.ConsentLogger
 import com.datagrail.consent.utils.LogLevel
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import java.net.URL
 
 /**
@@ -33,11 +44,33 @@ import java.net.URL
  * over the lambda-based implementations. See [JAVA_INTEGRATION.md] for Java usage examples.
  */
 class DataGrailConsent private constructor() {
+    @Volatile
     private var manager: ConsentManager? = null
+
+    @Volatile
+    private var readyDeferred: Deferred<ConsentManager>? = null
+
+    // Built-in transport of the current manager, kept for its connection metrics
+    @Volatile
+    private var transport: HttpUrlConnectionTransport? = null
     private var configUrl: String? = null
-    private var onConsentChangedCallback: ((ConsentPreferences) -> Unit)? = null
+
+    // Consent state and listeners, kept across re-initialization
+    private val changeNotifier = ConsentChangeNotifier()
+
+    // Listener slot set by onConsentChanged()
+    private var consentChangedSubscription: ConsentSubscription? = null
     private val scope = CoroutineScope(Dispatchers.Main)
 
+    // Dispatcher for keystore/storage setup when ConsentOptions.asyncStorageInit is set, and for cache and queue I/O
+    internal var storageDispatcher: CoroutineDispatcher = Dispatchers.IO
+    internal var storageFactory: (Context) -> ConsentStorage = ConsentStorage::create
+    internal var connectivityMonitorFactory: (Context) -> ConnectivityMonitor = ::AndroidConnectivityMonitor
+
+    // Drains the current manager's pending events whenever the device is online
+    @Volatile
+    private var pendingEventScheduler: PendingEventScheduler? = null
+
     companion object {
         @Volatile
         private var instance: DataGrailConsent? = null
@@ -93,7 +126,23 @@ class DataGrailConsent private constructor() {
         configUrl: String,
         callback: ConsentCallback,
     ) {
-        initialize(context, configUrl) { result -> adaptResult(result, callback) }
+        initialize(context, configUrl, ConsentOptions.DEFAULT, callback)
+    }
+
+    /**
+     * Initialize the DataGrail Consent SDK with options (Java-friendly)
+     * @param context Android application context
+     * @param configUrl URL to fetch consent configuration from
+     * @param options Initialization options
+     * @param callback Callback interface for success/failure
+     */
+    fun initialize(
+        context: Context,
+        configUrl: String,
+        options: ConsentOptions,
+        callback: ConsentCallback,
+    ) {
+        initialize(context, configUrl, options) { result -> adaptResult(result, callback) }
     }
 
     /**
@@ -107,6 +156,24 @@ class DataGrailConsent private constructor() {
         configUrl: String,
         callback: (Result<Unit>) -> Unit,
     ) {
+        initialize(context, configUrl, ConsentOptions.DEFAULT, callback)
+    }
+
+    /**
+     * Initialize the DataGrail Consent SDK with options (Kotlin-friendly)
+     * @param context Android application context
+     * @param configUrl URL to fetch consent configuration from
+     * @param options Initialization options
+     * @param callback Callback with result
+     */
+    fun initialize(
+        context: Context,
+        configUrl: String,
+        options: ConsentOptions,
+        callback: (Result<Unit>) -> Unit,
+    ) {
+        val initStartNs = System.nanoTime()
+
         // Validate URL format and scheme
         val url =
             try {
@@ -142,42 +209,224 @@ class DataGrailConsent private constructor() {
 
         this.configUrl = configUrl
 
-        val storage = ConsentStorage.create(context)
-        val networkClient = NetworkClient()
-        val configService = ConfigService(networkClient, storage)
-
         // Extract privacy domain from config URL (already validated non-empty above)
         val privacyDomain = url.host
 
-        val consentService = ConsentService(networkClient, storage, privacyDomain)
+        if (!options.asyncStorageInit) {
+            val manager = createManager(context, privacyDomain, options)
+            val storageInitMs = elapsedMs(initStartNs)
+            this.manager = manager
+            this.readyDeferred = CompletableDeferred(manager)
 
-        val manager = ConsentManager(storage, configService, consentService)
-        this.manager = manager
+            scope.launch {
+                loadConfiguration(manager, configUrl, options, initStartNs, storageInitMs, callback)
+            }
+            return
+        }
+
+        // Keystore and EncryptedSharedPreferences setup off the calling thread
+        val ready = CompletableDeferred<ConsentManager>()
+        this.manager = null
+        this.readyDeferred = ready
 
-        // Load configuration
         scope.launch {
-            manager.loadConfig(configUrl) { result ->
-                when {
-                    result.isSuccess -> {
-                        // Retry any pending requests on initialization
-                        scope.launch {
-                            manager.retryPendingRequests()
-                        }
-                        callback(Result.success(Unit))
-                    }
-                    else -> callback(Result.failure(result.exceptionOrNull()!!))
+            val manager =
+                try {
+                    withContext(storageDispatcher) { createManager(context, privacyDomain, options) }
+                } catch (e: ConsentException) {
+                    ready.completeExceptionally(e)
+                    val elapsed = elapsedMs(initStartNs)
+                    reportTimings(
+                        options,
+                        InitTimings(
+                            storageInitMs = elapsed,
+                            configLoadMs = 0,
+                            totalMs = elapsed,
+                            asyncStorageInit = true,
+                            success = false,
+                        ),
+                    )
+                    callback(Result.failure(e))
+                    return@launch
+                }
+            val storageInitMs = elapsedMs(initStartNs)
+            this@DataGrailConsent.manager = manager
+            ready.complete(manager)
+
+            loadConfiguration(manager, configUrl, options, initStartNs, storageInitMs, callback)
+        }
+    }
+
+    /**
+     * Check whether storage setup has completed and query APIs can be used
+     * @return true if the SDK is ready, false if initialization is pending, failed, or was never started
+     */
+    fun isReady(): Boolean {
+        return manager != null
+    }
+
+    /**
+     * Suspend until storage setup started by initialize() has completed.
+     * Configuration loading continues independently; use the initialize() callback to observe it.
+     * @throws ConsentException.NotInitialized if initialize() has not been called
+     * @throws ConsentException.InvalidConfiguration if encrypted storage could not be created
+     */
+    suspend fun awaitReady() {
+        awaitManager()
+    }
+
+    private suspend fun awaitManager(): ConsentManager {
+        val deferred = readyDeferred ?: throw ConsentException.NotInitialized()
+        return deferred.await()
+    }
+
+    private fun createManager(
+        context: Context,
+        privacyDomain: String,
+        options: ConsentOptions,
+    ): ConsentManager {
+        val storage = storageFactory(context)
+        val transport = options.transport ?: HttpUrlConnectionTransport()
+        // Connection metrics are only available from the built-in transport
+        this.transport = transport as? HttpUrlConnectionTransport
+        val networkClient = NetworkClient(options.compressRequestBodies, transport, options.timeoutPolicy)
+        val configService =
+            ConfigService(
+                networkClient,
+                storage,
+                options.retryPolicy,
+                options.pruneCachedLocales,
+                ioDispatcher = storageDispatcher,
+            )
+        val consentService =
+            ConsentService(
+                networkClient,
+                storage,
+                privacyDomain,
+                maxConcurrentUploads = options.maxConcurrentUploads,
+                uploadBatchListener = options.uploadBatchListener,
+                ioDispatcher = storageDispatcher,
+                retryPolicy = options.retryPolicy,
+            )
+
+        val manager = ConsentManager(storage, configService, consentService, changeNotifier)
+        // Read saved consent here, off the main thread when asyncStorageInit is set, so queries never hit disk
+        manager.warmUp()
+        pendingEventScheduler?.stop()
+        pendingEventScheduler =
+            PendingEventScheduler(
+                connectivityMonitorFactory(context.applicationContext ?: context),
+                manager::retryPendingRequests,
+            )
+        return manager
+    }
+
+    private suspend fun loadConfiguration(
+        manager: ConsentManager,
+        configUrl: String,
+        options: ConsentOptions,
+        initStartNs: Long,
+        storageInitMs: Long,
+        callback: (Result<Unit>) -> Unit,
+    ) {
+        val configStartNs = System.nanoTime()
+
+        if (options.staleWhileRevalidate) {
+            val cached = withContext(storageDispatcher) { manager.loadCachedConfig() }
+            if (cached != null) {
+                reportTimings(
+                    options,
+                    InitTimings(
+                        storageInitMs = storageInitMs,
+                        configLoadMs = elapsedMs(configStartNs),
+                        totalMs = elapsedMs(initStartNs),
+                        asyncStorageInit = options.asyncStorageInit,
+                        success = true,
+                    ),
+                )
+                callback(Result.success(Unit))
+
+                // Refresh in the background; pending requests are retried once the refresh settles
+                scope.launch {
+                    revalidateConfiguration(manager, configUrl, options)
+                    pendingEventScheduler?.start()
                 }
+                return
+            }
+        }
+
+        manager.loadConfig(configUrl) { result ->
+            val timings =
+                InitTimings(
+                    storageInitMs = storageInitMs,
+                    configLoadMs = elapsedMs(configStartNs),
+                    totalMs = elapsedMs(initStartNs),
+                    asyncStorageInit = options.asyncStorageInit,
+                    success = result.isSuccess,
+                    configAttempts = manager.lastConfigFetchAttempts,
+                )
+            reportTimings(options, timings)
+
+            when {
+                result.isSuccess -> {
+                    // Retry pending requests now if online, otherwise once connectivity returns
+                    pendingEventScheduler?.start()
+                    callback(Result.success(Unit))
+                }
+                else -> callback(Result.failure(result.exceptionOrNull()!!))
+            }
+        }
+    }
+
+    private suspend fun revalidateConfiguration(
+        manager: ConsentManager,
+        configUrl: String,
+        options: ConsentOptions,
+    ) {
+        try {
+            if (manager.revalidateConfig(configUrl)) {
+                val config = manager.readConfig() ?: return
+                ConsentLogger.i("Config version changed, banner must be shown again")
+                options.configUpdateListener?.onConfigUpdated(config)
+            }
+        } catch (e: Exception) {
+            // Keep serving the cached config
+            ConsentLogger.w("Background config refresh failed: ${e.javaClass.simpleName}")
+        }
+    }
+
+    /**
+     * Fetch the configuration again after the loaded one was discarded, so the next banner can be shown
+     */
+    private fun refetchConfiguration(manager: ConsentManager) {
+        val url = configUrl ?: return
+        scope.launch {
+            manager.loadConfig(url) { result ->
+                result.exceptionOrNull()?.let { ConsentLogger.w("Config refetch failed: ${it.javaClass.simpleName}") }
             }
         }
     }
 
+    private fun reportTimings(
+        options: ConsentOptions,
+        timings: InitTimings,
+    ) {
+        ConsentLogger.i(
+            "Initialization ${if (timings.success) "completed" else "failed"}: " +
+                "storage=${timings.storageInitMs}ms config=${timings.configLoadMs}ms total=${timings.totalMs}ms",
+        )
+        options.initTimingsListener?.onInitTimings(timings)
+    }
+
+    private fun elapsedMs(startNs: Long): Long = (System.nanoTime() - startNs) / 1_000_000
+
     // MARK: - Consent Status
 
     /**
      * Check if consent banner should be shown based on config and user state.
      * This is the recommended API for determining whether to display the banner.
      * @return true if banner should be displayed, false otherwise
-     * @throws ConsentException.NotInitialized if SDK not initialized
+     * @throws ConsentException.NotInitialized if SDK not initialized or asynchronous storage setup is still running
      */
     fun shouldDisplayBanner(): Boolean {
         val mgr = manager ?: throw ConsentException.NotInitialized()
@@ -189,7 +438,7 @@ class DataGrailConsent private constructor() {
      * This differs from shouldDisplayBanner() - a user may have consent saved
      * but the banner could still need to be shown (e.g., config version changed).
      * @return true if user has previously made a consent decision
-     * @throws ConsentException.NotInitialized if SDK not initialized
+     * @throws ConsentException.NotInitialized if SDK not initialized or asynchronous storage setup is still running
      */
     fun hasUserConsent(): Boolean {
         val mgr = manager ?: throw ConsentException.NotInitialized()
@@ -200,7 +449,7 @@ class DataGrailConsent private constructor() {
      * @deprecated Use shouldDisplayBanner() instead
      * Check if consent banner should be shown
      * @return true if consent is needed, false otherwise
-     * @throws ConsentException.NotInitialized if SDK not initialized
+     * @throws ConsentException.NotInitialized if SDK not initialized or asynchronous storage setup is still running
      */
     @Deprecated("Use shouldDisplayBanner() instead", ReplaceWith("shouldDisplayBanner()"))
     fun needsConsent(): Boolean {
@@ -209,16 +458,16 @@ class DataGrailConsent private constructor() {
 
     /**
      * Get the current consent configuration
-     * @return The config if initialized, null otherwise
+     * @return The config if initialized, null otherwise or if the cached config turned out unreadable
      */
     fun getConfig(): ConsentConfig? {
-        return manager?.currentConfig
+        return manager?.readConfig()
     }
 
     /**
      * Get user's saved consent preferences
      * @return Saved preferences, or null if user hasn't saved consent yet
-     * @throws ConsentException.NotInitialized if SDK not initialized
+     * @throws ConsentException.NotInitialized if SDK not initialized or asynchronous storage setup is still running
      */
     fun getUserPreferences(): ConsentPreferences? {
         val mgr = manager ?: throw ConsentException.NotInitialized()
@@ -230,7 +479,7 @@ class DataGrailConsent private constructor() {
      * Returns saved preferences if available, otherwise returns default preferences from initialCategories
      * Use this to always get category status regardless of whether the user has saved consent
      * @return Consent preferences representing the current category state
-     * @throws ConsentException.NotInitialized if SDK not initialized
+     * @throws ConsentException.NotInitialized if SDK not initialized or asynchronous storage setup is still running
      */
     fun getCategories(): ConsentPreferences? {
         val mgr = manager ?: throw ConsentException.NotInitialized()
@@ -241,13 +490,56 @@ class DataGrailConsent private constructor() {
      * Check if a specific category is enabled
      * @param category The category GTM key (e.g., "category_marketing")
      * @return true if enabled, false otherwise
-     * @throws ConsentException.NotInitialized if SDK not initialized
+     * @throws ConsentException.NotInitialized if SDK not initialized or asynchronous storage setup is still running
      */
     fun isCategoryEnabled(category: String): Boolean {
         val mgr = manager ?: throw ConsentException.NotInitialized()
         return mgr.isCategoryEnabled(category)
     }
 
+    // MARK: - Suspending Queries
+
+    /**
+     * Suspending variant of [shouldDisplayBanner] that waits for storage setup instead of throwing
+     * @return true if banner should be displayed, false otherwise
+     * @throws ConsentException.NotInitialized if initialize() has not been called
+     * @throws ConsentException.InvalidConfiguration if encrypted storage could not be created
+     */
+    suspend fun awaitShouldDisplayBanner(): Boolean {
+        return awaitManager().needsConsent()
+    }
+
+    /**
+     * Suspending variant of [hasUserConsent] that waits for storage setup instead of throwing
+     * @return true if user has previously made a consent decision
+     * @throws ConsentException.NotInitialized if initialize() has not been called
+     * @throws ConsentException.InvalidConfiguration if encrypted storage could not be created
+     */
+    suspend fun awaitUserConsent(): Boolean {
+        return awaitManager().getUserPreferences() != null
+    }
+
+    /**
+     * Suspending variant of [getCategories] that waits for storage setup instead of throwing
+     * @return Consent preferences representing the current category state
+     * @throws ConsentException.NotInitialized if initialize() has not been called
+     * @throws ConsentException.InvalidConfiguration if encrypted storage could not be created
+     */
+    suspend fun awaitCategories(): ConsentPreferences? {
+        return awaitManager().getCategories()
+    }
+
+    /**
+     * Suspending variant of [isCategoryEnabled] that waits for storage setup instead of throwing
+     * @param category The category GTM key (e.g., "category_marketing")
+     * @return true if enabled, false otherwise
+     * @throws ConsentException.NotInitialized if initialize() has not been called
+     * @throws ConsentException.InvalidConfiguration if encrypted storage could not be created
+     */
+    suspend fun awaitCategoryEnabled(category: String): Boolean {
+        return awaitManager().isCategoryEnabled(category)
+    }
+
     // MARK: - Consent Management
 
     /**
@@ -278,13 +570,8 @@ class DataGrailConsent private constructor() {
         }
 
         scope.launch {
-            mgr.savePreferences(preferences) { result ->
-                if (result.isSuccess) {
-                    // Notify callback
-                    onConsentChangedCallback?.invoke(preferences)
-                }
-                callback(result)
-            }
+            // Change listeners are notified by the manager once the preferences are committed
+            mgr.savePreferences(preferences, callback)
         }
     }
 
@@ -412,21 +699,94 @@ class DataGrailConsent private constructor() {
     // MARK: - Callbacks
 
     /**
-     * Set callback to be notified when consent changes (Java-friendly)
+     * Current consent preferences. Null until storage setup has loaded them, while the user has not
+     * saved consent, and after reset(). Emits only when the preferences actually change.
+     */
+    val consentState: StateFlow<ConsentPreferences?>
+        get() = changeNotifier.preferences
+
+    /**
+     * Register a listener for consent changes, alongside any others already registered.
+     * Listeners are called on the main thread when saved preferences change, not when they are loaded
+     * from storage or cleared by reset().
+     * @param listener Listener to invoke with new preferences
+     * @return Subscription that removes the listener
+     */
+    fun addConsentChangeListener(listener: ConsentChangeListener): ConsentSubscription {
+        return changeNotifier.addListener(listener)
+    }
+
+    /**
+     * Register a listener for consent changes that is removed when [owner] is destroyed.
+     * Call on the main thread.
+     * @param owner Lifecycle owner, e.g. an Activity or Fragment, bounding the registration
+     * @param listener Listener to invoke with new preferences
+     * @return Subscription that removes the listener before the owner is destroyed
+     */
+    fun addConsentChangeListener(
+        owner: LifecycleOwner,
+        listener: ConsentChangeListener,
+    ): ConsentSubscription {
+        return changeNotifier.addListener(owner, listener)
+    }
+
+    /**
+     * Register a listener for changes to one category. It is only called when a save enables or
+     * disables that category, on the main thread, and not for saves that leave it unchanged.
+     * @param gtmKey The category GTM key (e.g., "category_marketing")
+     * @param listener Listener to invoke with the category's new state
+     * @return Subscription that removes the listener
+     */
+    fun addCategoryChangeListener(
+        gtmKey: String,
+        listener: CategoryChangeListener,
+    ): ConsentSubscription {
+        return changeNotifier.addCategoryListener(gtmKey, listener)
+    }
+
+    /**
+     * Register a listener for changes to one category that is removed when [owner] is destroyed.
+     * Call on the main thread.
+     * @param owner Lifecycle owner, e.g. an Activity or Fragment, bounding the registration
+     * @param gtmKey The category GTM key (e.g., "category_marketing")
+     * @param listener Listener to invoke with the category's new state
+     * @return Subscription that removes the listener before the owner is destroyed
+     */
+    fun addCategoryChangeListener(
+        owner: LifecycleOwner,
+        gtmKey: String,
+        listener: CategoryChangeListener,
+    ): ConsentSubscription {
+        return changeNotifier.addCategoryListener(owner, gtmKey, listener)
+    }
+
+    /**
+     * Remove a listener registered with addConsentChangeListener()
+     * @param listener The listener to remove
+     */
+    fun removeConsentChangeListener(listener: ConsentChangeListener) {
+        changeNotifier.removeListener(listener)
+    }
+
+    /**
+     * Set callback to be notified when consent changes (Java-friendly).
+     * Replaces the listener set by a previous call; use addConsentChangeListener() to register several.
      * @param listener Listener interface to invoke with new preferences
      */
     fun onConsentChanged(listener: ConsentChangeListener) {
-        this.onConsentChangedCallback = { preferences ->
-            listener.onConsentChanged(preferences)
+        synchronized(changeNotifier) {
+            consentChangedSubscription?.remove()
+            consentChangedSubscription = changeNotifier.addListener(listener)
         }
     }
 
     /**
-     * Set callback to be notified when consent changes (Kotlin-friendly)
+     * Set callback to be notified when consent changes (Kotlin-friendly).
+     * Replaces the callback set by a previous call; use addConsentChangeListener() to register several.
      * @param callback Callback to invoke with new preferences
      */
     fun onConsentChanged(callback: (ConsentPreferences) -> Unit) {
-        this.onConsentChangedCallback = callback
+        onConsentChanged(ConsentChangeListener { callback(it) })
     }
 
     // MARK: - Utility
@@ -458,6 +818,15 @@ class DataGrailConsent private constructor() {
         }
     }
 
+    /**
+     * Connection reuse metrics for requests the SDK has made
+     * @return Request and TLS handshake counts, or null if initialize() has not been called or
+     * requests go through a transport set with [ConsentOptions.Builder.transport]
+     */
+    fun getTransportMetrics(): TransportMetrics? {
+        return transport?.metrics()
+    }
+
     // MARK: - UI Methods
 
     /**
@@ -494,7 +863,9 @@ class DataGrailConsent private constructor() {
 
 
     /**
-     * Show the consent banner dialog with specified display style (Kotlin-friendly)
+     * Show the consent banner dialog with specified display style (Kotlin-friendly).
+     * The dialog is shown once the config's layout is decoded in the background; if the activity is
+     * finishing or has saved its state by then, the callback reports a dismissal instead.
      * @param activity The activity to show the dialog on
      * @param style The display style for the banner (MODAL or FULL_SCREEN)
      * @param callback Called when the dialog is dismissed with updated preferences (null if dismissed without saving)
@@ -511,20 +882,44 @@ class DataGrailConsent private constructor() {
             return
         }
 
-        // Get current config and preferences
-        val cfg = mgr.currentConfig
-        if (cfg == null) {
-            callback?.invoke(null)
-            return
+        scope.launch {
+            // Resolve the config for the device locale and decode its layout off the main thread, rather
+            // than inside the dialog; an unreadable cached layout is discarded
+            val locale = ConfigLocalizer.deviceLocale()
+            val configIndex = withContext(storageDispatcher) { mgr.localizedIndex(locale) }
+            if (configIndex == null) {
+                callback?.invoke(null)
+                return@launch
+            }
+            if (!withContext(storageDispatcher) { mgr.loadLayout(configIndex) }) {
+                refetchConfiguration(mgr)
+                callback?.invoke(null)
+                return@launch
+            }
+
+            // The activity may have gone away while the layout was decoded
+            if (activity.isFinishing || activity.isDestroyed || activity.supportFragmentManager.isStateSaved) {
+                callback?.invoke(null)
+                return@launch
+            }
+            showBannerDialog(activity, mgr, configIndex, style, callback)
         }
+    }
 
+    private fun showBannerDialog(
+        activity: androidx.fragment.app.FragmentActivity,
+        mgr: ConsentManager,
+        configIndex: ConfigIndex,
+        style: BannerDisplayStyle,
+        callback: ((ConsentPreferences?) -> Unit)?,
+    ) {
         // Use getCategories() to get effective preferences (saved or default from initialCategories)
         val prefs = mgr.getCategories()
 
         // Create and show dialog
         val dialog =
             com.datagrail.consent.ui.BannerDialog.newInstance(
-                config = cfg,
+                configIndex = configIndex,
                 preferences = prefs,
                 displayStyle = style,
             ) { updatedPreferences ->
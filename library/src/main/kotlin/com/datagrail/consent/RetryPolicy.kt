@@ -0,0 +1,100 @@
+package com.datagrail.consent
+
+import com.datagrail.consent.models.ConsentException
+
+/**
+ * How failed config requests are retried.
+ *
+ * Attempt `n` (starting at 1) that fails is followed by a delay of `baseDelayMs * 2^n` plus up to
+ * 25% jitter. A deadline is a best-effort budget for the socket timeouts: no attempt or delay starts
+ * past it, and each attempt's connect and read timeouts are shortened to the time left. It is not a hard
+ * limit. The read timeout applies to each read, so a body that keeps trickling in can run past the
+ * deadline, and DNS lookups are not bounded by it.
+ *
+ * Example (Kotlin):
+ * ```kotlin
+ * val retryPolicy = RetryPolicy.Builder()
+ *     .maxAttempts(3)
+ *     .deadlineMs(10_000)
+ *     .build()
+ * ```
+ */
+class RetryPolicy private constructor(
+    /**
+     * Maximum number of attempts, including the first
+     */
+    val maxAttempts: Int,
+    /**
+     * Base for the exponential backoff between attempts, in milliseconds
+     */
+    val baseDelayMs: Long,
+    /**
+     * Best-effort time budget for all attempts and delays in milliseconds, or null for no deadline
+     */
+    val deadlineMs: Long?,
+) {
+    /**
+     * Builder for [RetryPolicy]
+     */
+    class Builder {
+        private var maxAttempts: Int = DEFAULT_MAX_ATTEMPTS
+        private var baseDelayMs: Long = DEFAULT_BASE_DELAY_MS
+        private var deadlineMs: Long? = null
+
+        /**
+         * Maximum number of attempts, including the first (default: 5)
+         * @throws IllegalArgumentException if [attempts] is less than 1
+         */
+        fun maxAttempts(attempts: Int) =
+            apply {
+                require(attempts >= 1) { "maxAttempts must be at least 1" }
+                this.maxAttempts = attempts
+            }
+
+        /**
+         * Base for the exponential backoff between attempts (default: 250 ms)
+         * @throws IllegalArgumentException if [delayMs] is negative
+         */
+        fun baseDelayMs(delayMs: Long) =
+            apply {
+                require(delayMs >= 0) { "baseDelayMs must not be negative" }
+                this.baseDelayMs = delayMs
+            }
+
+        /**
+         * Best-effort time budget for all attempts and delays (default: null, no deadline)
+         * @throws IllegalArgumentException if [deadlineMs] is not positive
+         */
+        fun deadlineMs(deadlineMs: Long?) =
+            apply {
+                require(deadlineMs == null || deadlineMs > 0) { "deadlineMs must be positive" }
+                this.deadlineMs = deadlineMs
+            }
+
+        fun build(): RetryPolicy = RetryPolicy(maxAttempts, baseDelayMs, deadlineMs)
+    }
+
+    /**
+     * Whether a failed attempt is worth retrying. Client errors (4xx other than 408 Request Timeout and
+     * 429 Too Many Requests) will fail the same way again, so they are not retried.
+     * @param error The error the attempt failed with
+     * @return true if another attempt may succeed
+     */
+    fun isRetryable(error: Throwable): Boolean {
+        val statusCode = (error as? ConsentException.NetworkError)?.statusCode ?: return true
+        return statusCode !in 400..499 || statusCode == HTTP_REQUEST_TIMEOUT || statusCode == HTTP_TOO_MANY_REQUESTS
+    }
+
+    companion object {
+        private const val DEFAULT_MAX_ATTEMPTS = 5
+        private const val DEFAULT_BASE_DELAY_MS = 250L
+        private const val HTTP_REQUEST_TIMEOUT = 408
+        private const val HTTP_TOO_MANY_REQUESTS = 429
+
+        /**
+         * 5 attempts, 250 ms base delay, no deadline
+         */
+        @JvmField
+        val DEFAULT: RetryPolicy = Builder().build()
+    }
+}
@@ -0,0 +1,56 @@
+package com.datagrail.consent
+
+/**
+ * Socket timeouts applied to each request attempt.
+ * A [RetryPolicy] deadline shortens them further when less time is left.
+ */
+class TimeoutPolicy private constructor(
+    /**
+     * Time allowed to establish a connection, in milliseconds
+     */
+    val connectTimeoutMs: Int,
+    /**
+     * Time allowed between bytes while reading the response, in milliseconds
+     */
+    val readTimeoutMs: Int,
+) {
+    /**
+     * Builder for [TimeoutPolicy]
+     */
+    class Builder {
+        private var connectTimeoutMs: Int = DEFAULT_TIMEOUT_MS
+        private var readTimeoutMs: Int = DEFAULT_TIMEOUT_MS
+
+        /**
+         * Time allowed to establish a connection (default: 30000 ms)
+         * @throws IllegalArgumentException if [timeoutMs] is not positive
+         */
+        fun connectTimeoutMs(timeoutMs: Int) =
+            apply {
+                require(timeoutMs > 0) { "connectTimeoutMs must be positive" }
+                this.connectTimeoutMs = timeoutMs
+            }
+
+        /**
+         * Time allowed between bytes while reading the response (default: 30000 ms)
+         * @throws IllegalArgumentException if [timeoutMs] is not positive
+         */
+        fun readTimeoutMs(timeoutMs: Int) =
+            apply {
+                require(timeoutMs > 0) { "readTimeoutMs must be positive" }
+                this.readTimeoutMs = timeoutMs
+            }
+
+        fun build(): TimeoutPolicy = TimeoutPolicy(connectTimeoutMs, readTimeoutMs)
+    }
+
+    companion object {
+        private const val DEFAULT_TIMEOUT_MS = 30_000
+
+        /**
+         * 30 second connect and read timeouts
+         */
+        @JvmField
+        val DEFAULT: TimeoutPolicy = Builder().build()
+    }
+}
@@ -0,0 +1,343 @@
+package com.datagrail.consent.models
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+
+/**
+ * Stable category index table: position of each GTM key, fixed for one config version.
+ * Tables are built once per config, so bitsets over the same table compare word by word.
+ */
+internal class CategoryTable private constructor(
+    /** Version of the config the indices were assigned for */
+    val version: String,
+    /** GTM keys in index order */
+    val keys: List<String>,
+    private val indexByKey: Map<String, Int>,
+) {
+    /**
+     * Number of categories in the table
+     */
+    val size: Int
+        get() = keys.size
+
+    /**
+     * Get a category's index
+     * @param gtmKey The category GTM key
+     * @return The index, or -1 if the table has no such category
+     */
+    fun indexOf(gtmKey: String): Int = indexByKey[gtmKey] ?: -1
+
+    /**
+     * Check whether two tables assign the same indices
+     * @param other The other table
+     * @return true if both have the same version and keys in the same order
+     */
+    fun sameAs(other: CategoryTable): Boolean {
+        return this === other || (version == other.version && keys == other.keys)
+    }
+
+    /**
+     * Encode to the versioned binary form: `format (1) | version | key count (2) | keys`,
+     * strings as modified UTF-8 with a 2-byte length
+     * @return The encoded bytes
+     */
+    fun encode(): ByteArray {
+        val bytes = ByteArrayOutputStream(8 + size * 24)
+        DataOutputStream(bytes).use { output ->
+            output.writeByte(FORMAT_VERSION)
+            output.writeUTF(version)
+            output.writeShort(size)
+            keys.forEach { output.writeUTF(it) }
+        }
+        return bytes.toByteArray()
+    }
+
+    companion object {
+        private const val FORMAT_VERSION = 1
+
+        /**
+         * Decode the binary form written by [encode]
+         * @param bytes The encoded bytes
+         * @return The decoded table
+         * @throws IOException if the bytes are truncated, malformed, or from an unknown format version
+         */
+        fun decode(bytes: ByteArray): CategoryTable {
+            DataInputStream(ByteArrayInputStream(bytes)).use { input ->
+                val format = input.readUnsignedByte()
+                if (format != FORMAT_VERSION) throw IOException("Unknown category table format $format")
+                return read(input)
+            }
+        }
+
+        /**
+         * Read a version and key list, rejecting duplicate keys
+         * @param input Stream positioned at the version
+         * @return The table
+         * @throws IOException if the stream is truncated or lists a key twice
+         */
+        internal fun read(input: DataInputStream): CategoryTable {
+            val version = input.readUTF()
+            val keys = List(input.readUnsignedShort()) { input.readUTF() }
+            val table = of(version, keys)
+            if (table.size != keys.size) throw IOException("Duplicate keys in category table")
+            return table
+        }
+
+        /**
+         * Build a table
+         * @param version Version of the config the indices belong to
+         * @param keys GTM keys in index order; later duplicates are ignored
+         * @return The table
+         */
+        fun of(
+            version: String,
+            keys: List<String>,
+        ): CategoryTable {
+            val indexByKey = LinkedHashMap<String, Int>(keys.size * 2)
+            keys.forEach { indexByKey.getOrPut(it) { indexByKey.size } }
+            return CategoryTable(version, indexByKey.keys.toList(), indexByKey)
+        }
+    }
+}
+
+/**
+ * Compact form of [ConsentPreferences]: two bitmasks over a [CategoryTable], one marking the categories
+ * the preferences list and one marking those enabled. Lookups are a map probe and a bit test, and
+ * equality and diffs compare a few machine words instead of lists of objects.
+ *
+ * Categories the table does not know are kept as [extras], so converting back loses nothing but
+ * order: [toPreferences] lists table categories in index order, then extras. As with
+ * [ConsentPreferences.isCategoryEnabled], the first entry for a key wins.
+ */
+internal class ConsentBits private constructor(
+    val table: CategoryTable,
+    val isCustomised: Boolean,
+    private val listed: LongArray,
+    private val enabled: LongArray,
+    /** Entries whose key is not in [table], in their original order */
+    val extras: List<CategoryConsent>,
+) {
+    /**
+     * Check if a category is enabled
+     * @param gtmKey The category GTM key
+     * @return true if the category is listed as enabled, false otherwise
+     */
+    fun isCategoryEnabled(gtmKey: String): Boolean {
+        val index = table.indexOf(gtmKey)
+        if (index < 0) return extras.any { it.gtmKey == gtmKey && it.isEnabled }
+        return testBit(enabled, index)
+    }
+
+    /**
+     * Find the categories whose enabled state differs between two consents
+     * @param other The consent to compare with, or null for no consent (nothing enabled)
+     * @return GTM keys enabled in exactly one of the two
+     */
+    fun changedKeys(other: ConsentBits?): Set<String> {
+        if (other != null && !table.sameAs(other.table)) {
+            // Different index tables: fall back to comparing by key
+            val keys = LinkedHashSet<String>()
+            for (key in table.keys + extras.map { it.gtmKey } + other.table.keys + other.extras.map { it.gtmKey }) {
+                if (isCategoryEnabled(key) != other.isCategoryEnabled(key)) keys.add(key)
+            }
+            return keys
+        }
+
+        val changed = LinkedHashSet<String>()
+        for (word in enabled.indices) {
+            var flipped = enabled[word] xor (other?.enabled?.get(word) ?: 0L)
+            while (flipped != 0L) {
+                val bit = flipped.countTrailingZeroBits()
+                changed.add(table.keys[word * Long.SIZE_BITS + bit])
+                flipped = flipped and (flipped - 1)
+            }
+        }
+        for (extra in extras) {
+            if (extra.isEnabled != (other?.isCategoryEnabled(extra.gtmKey) ?: false)) changed.add(extra.gtmKey)
+        }
+        other?.extras?.filter { it.isEnabled != isCategoryEnabled(it.gtmKey) }?.forEach { changed.add(it.gtmKey) }
+        return changed
+    }
+
+    /**
+     * Map every listed category to its enabled state, for comparing consents over different tables
+     * @return Enabled state per listed GTM key
+     */
+    private fun listedStates(): Map<String, Boolean> {
+        val states = HashMap<String, Boolean>(table.size + extras.size)
+        for (index in 0 until table.size) {
+            if (testBit(listed, index)) states[table.keys[index]] = testBit(enabled, index)
+        }
+        extras.forEach { states[it.gtmKey] = it.isEnabled }
+        return states
+    }
+
+    /**
+     * Convert back to the public data class
+     * @return Preferences listing table categories in index order, then extras
+     */
+    fun toPreferences(): ConsentPreferences {
+        val options = ArrayList<CategoryConsent>(table.size + extras.size)
+        for (index in 0 until table.size) {
+            if (testBit(listed, index)) {
+                options.add(CategoryConsent(gtmKey = table.keys[index], isEnabled = testBit(enabled, index)))
+            }
+        }
+        options.addAll(extras)
+        return ConsentPreferences(isCustomised = isCustomised, cookieOptions = options)
+    }
+
+    // MARK: - Serialization
+
+    /**
+     * Encode to the versioned binary form:
+     * ```
+     * format (1) | flags (1) | table | listed words | enabled words | extra count (2) | extras (key, enabled (1))
+     * ```
+     * where `table` is either the whole table (`version | key count (2) | keys`), so stored consent decodes
+     * before any config is loaded, or only `version | key count (2)` when the reader already has the table.
+     * Strings are modified UTF-8 with a 2-byte length; words are 8 bytes, `ceil(key count / 64)` of each.
+     * @param embedTable Whether to write the table keys; without them [decode] needs the table passed in
+     * @return The encoded bytes
+     */
+    fun encode(embedTable: Boolean = true): ByteArray {
+        val bytes = ByteArrayOutputStream(32 + (if (embedTable) table.size * 24 else 0) + listed.size * 16)
+        DataOutputStream(bytes).use { output ->
+            output.writeByte(if (embedTable) FORMAT_EMBEDDED_TABLE else FORMAT_TABLE_REFERENCE)
+            output.writeByte(if (isCustomised) FLAG_CUSTOMISED else 0)
+            output.writeUTF(table.version)
+            output.writeShort(table.size)
+            if (embedTable) table.keys.forEach { output.writeUTF(it) }
+            listed.forEach { output.writeLong(it) }
+            enabled.forEach { output.writeLong(it) }
+            output.writeShort(extras.size)
+            for (extra in extras) {
+                output.writeUTF(extra.gtmKey)
+                output.writeBoolean(extra.isEnabled)
+            }
+        }
+        return bytes.toByteArray()
+    }
+
+    /**
+     * Consents are equal if they list the same categories with the same states. Over the same table
+     * this compares words; over different tables it falls back to comparing by key.
+     */
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is ConsentBits || isCustomised != other.isCustomised) return false
+        if (!table.sameAs(other.table)) return listedStates() == other.listedStates()
+        return listed.contentEquals(other.listed) &&
+            enabled.contentEquals(other.enabled) &&
+            extras.toSet() == other.extras.toSet()
+    }
+
+    override fun hashCode(): Int {
+        // Must agree with the by-key comparison across tables
+        return 31 * isCustomised.hashCode() + listedStates().hashCode()
+    }
+
+    companion object {
+        private const val FORMAT_EMBEDDED_TABLE = 1
+        private const val FORMAT_TABLE_REFERENCE = 2
+        private const val FLAG_CUSTOMISED = 1
+        private const val MAX_KEYS = 0xFFFF
+
+        /**
+         * Encode preferences over a table
+         * @param preferences The preferences to encode
+         * @param table Index table, usually the loaded config's
+         * @return The compact form
+         */
+        fun of(
+            preferences: ConsentPreferences,
+            table: CategoryTable,
+        ): ConsentBits {
+            val listed = LongArray(wordCount(table.size))
+            val enabled = LongArray(listed.size)
+            val extras = ArrayList<CategoryConsent>()
+            val seenExtras = HashSet<String>()
+            for (option in preferences.cookieOptions) {
+                val index = table.indexOf(option.gtmKey)
+                if (index < 0) {
+                    if (seenExtras.add(option.gtmKey)) extras.add(option)
+                    continue
+                }
+                if (testBit(listed, index)) continue
+                setBit(listed, index)
+                if (option.isEnabled) setBit(enabled, index)
+            }
+            return ConsentBits(table, preferences.isCustomised, listed, enabled, extras)
+        }
+
+        /**
+         * Encode preferences over a table of their own keys, for when no config table is at hand
+         * @param preferences The preferences to encode
+         * @param version Version of the config the preferences were given for
+         * @return The compact form
+         */
+        fun of(
+            preferences: ConsentPreferences,
+            version: String,
+        ): ConsentBits {
+            return of(preferences, CategoryTable.of(version, preferences.cookieOptions.map { it.gtmKey }))
+        }
+
+        /**
+         * Decode the binary form written by [encode]
+         * @param bytes The encoded bytes
+         * @param tables Looks up the table for a config version, for bytes encoded without their table
+         * @return The decoded consent
+         * @throws IOException if the bytes are truncated, malformed, from an unknown format version,
+         * or reference a table that [tables] does not have
+         */
+        fun decode(
+            bytes: ByteArray,
+            tables: (String) -> CategoryTable? = { null },
+        ): ConsentBits {
+            DataInputStream(ByteArrayInputStream(bytes)).use { input ->
+                val format = input.readUnsignedByte()
+                val isCustomised = (input.readUnsignedByte() and FLAG_CUSTOMISED) != 0
+                val table =
+                    when (format) {
+                        FORMAT_EMBEDDED_TABLE -> CategoryTable.read(input)
+                        FORMAT_TABLE_REFERENCE -> {
+                            val version = input.readUTF()
+                            val size = input.readUnsignedShort()
+                            tables(version)?.takeIf { it.size == size }
+                                ?: throw IOException("No category table for version $version")
+                        }
+                        else -> throw IOException("Unknown consent format $format")
+                    }
+
+                val listed = LongArray(wordCount(table.size)) { input.readLong() }
+                val enabled = LongArray(listed.size) { input.readLong() }
+                val extras =
+                    List(input.readUnsignedShort()) {
+                        CategoryConsent(gtmKey = input.readUTF(), isEnabled = input.readBoolean())
+                    }
+                return ConsentBits(table, isCustomised, listed, enabled, extras)
+            }
+        }
+
+        private fun wordCount(bits: Int): Int {
+            require(bits <= MAX_KEYS) { "Too many categories: $bits" }
+            return (bits + Long.SIZE_BITS - 1) / Long.SIZE_BITS
+        }
+
+        private fun testBit(
+            words: LongArray,
+            index: Int,
+        ): Boolean = (words[index ushr 6] and (1L shl index)) != 0L
+
+        private fun setBit(
+            words: LongArray,
+            index: Int,
+        ) {
+            words[index ushr 6] = words[index ushr 6] or (1L shl index)
+        }
+    }
+}
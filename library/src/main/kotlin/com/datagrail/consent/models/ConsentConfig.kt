@@ -1,5 +1,6 @@
 package com.datagrail.consent.models
 
+import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.KSerializer
 import kotlinx.serialization.SerialName
 import kotlinx.serialization.Serializable
@@ -235,34 +236,40 @@ data class CategoryTranslation(
  * - Array format: [{"id": "...", "locale": "en", "value": "..."}]
  * - Dictionary format: {"en": {"locale": "en", "value": "..."}}
  */
+@OptIn(ExperimentalSerializationApi::class)
 object TrackingDetailsLinkTranslationsSerializer : KSerializer<List<TrackingDetailsLinkTranslation>?> {
     override val descriptor: SerialDescriptor = buildClassSerialDescriptor("TrackingDetailsLinkTranslations")
 
+    private val listSerializer = ListSerializer(TrackingDetailsLinkTranslation.serializer())
+
     override fun serialize(
         encoder: Encoder,
         value: List<TrackingDetailsLinkTranslation>?,
     ) {
-        if (value == null) return
-        encoder.encodeSerializableValue(ListSerializer(TrackingDetailsLinkTranslation.serializer()), value)
+        if (value == null) {
+            encoder.encodeNull()
+            return
+        }
+        encoder.encodeSerializableValue(listSerializer, value)
     }
 
     override fun deserialize(decoder: Decoder): List<TrackingDetailsLinkTranslation>? {
-        val jsonDecoder = decoder as? JsonDecoder ?: return null
-        val element = jsonDecoder.decodeJsonElement()
+        // Binary formats (the on-disk config cache) always hold the normalized list form
+        if (decoder !is JsonDecoder) {
+            return if (decoder.decodeNotNullMark()) decoder.decodeSerializableValue(listSerializer) else decoder.decodeNull()
+        }
+        val element = decoder.decodeJsonElement()
 
         return when (element) {
             is JsonArray -> {
-                jsonDecoder.json.decodeFromJsonElement(
-                    ListSerializer(TrackingDetailsLinkTranslation.serializer()),
-                    element,
-                )
+                decoder.json.decodeFromJsonElement(listSerializer, element)
             }
             is JsonObject -> {
                 // Convert dictionary format to list
                 element.entries.mapNotNull { (locale, translationElement) ->
                     try {
                         val translation =
-                            jsonDecoder.json.decodeFromJsonElement(
+                            decoder.json.decodeFromJsonElement(
                                 TrackingDetailsLinkTranslation.serializer(),
                                 translationElement,
                             )
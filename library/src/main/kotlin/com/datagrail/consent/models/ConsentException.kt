@@ -17,10 +17,17 @@ sealed class ConsentException(message: String, cause: Throwable? = null) : Excep
         "Invalid configuration URL host: ${try { java.net.URL(url).host } catch (_: Exception) { "<malformed>" }}",
     )
 
-    class NetworkError(message: String, cause: Throwable? = null) : ConsentException(
-        "Network error: $message",
-        cause,
-    )
+    /**
+     * @property statusCode HTTP status of the failed response, or null if no response was received
+     */
+    class NetworkError(
+        message: String,
+        cause: Throwable? = null,
+        val statusCode: Int? = null,
+    ) : ConsentException(
+            "Network error: $message",
+            cause,
+        )
 
     class ParseError(message: String, cause: Throwable? = null) : ConsentException(
         "Failed to parse configuration: $message",
@@ -0,0 +1,189 @@
+package com.datagrail.consent.models
+
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.cbor.Cbor
+
+/**
+ * Every [ConsentConfig] field except the layout: all that banner and consent checks need on startup
+ */
+@Serializable
+internal data class ConfigHeader(
+    val version: String,
+    val consentContainerVersionId: String,
+    val dgCustomerId: String,
+    val p: Long,
+    val dch: String,
+    val dc: String? = null,
+    val privacyDomain: String,
+    val plugins: Plugins,
+    val testMode: Boolean,
+    val ignoreDoNotTrack: Boolean,
+    val trackingDetailsUrl: String,
+    val consentMode: String,
+    val showBanner: Boolean,
+    val consentPolicy: ConsentPolicy,
+    val gppUsNat: Boolean,
+    val initialCategories: InitialCategories,
+) {
+    /**
+     * Combine with a layout into the full config
+     * @param layout The config's layout
+     * @return The full config
+     */
+    fun withLayout(layout: Layout): ConsentConfig {
+        return ConsentConfig(
+            version = version,
+            consentContainerVersionId = consentContainerVersionId,
+            dgCustomerId = dgCustomerId,
+            p = p,
+            dch = dch,
+            dc = dc,
+            privacyDomain = privacyDomain,
+            plugins = plugins,
+            testMode = testMode,
+            ignoreDoNotTrack = ignoreDoNotTrack,
+            trackingDetailsUrl = trackingDetailsUrl,
+            consentMode = consentMode,
+            showBanner = showBanner,
+            consentPolicy = consentPolicy,
+            gppUsNat = gppUsNat,
+            initialCategories = initialCategories,
+            layout = layout,
+        )
+    }
+}
+
+/**
+ * Get the config without its layout
+ * @return The config header
+ */
+internal fun ConsentConfig.header(): ConfigHeader {
+    return ConfigHeader(
+        version = version,
+        consentContainerVersionId = consentContainerVersionId,
+        dgCustomerId = dgCustomerId,
+        p = p,
+        dch = dch,
+        dc = dc,
+        privacyDomain = privacyDomain,
+        plugins = plugins,
+        testMode = testMode,
+        ignoreDoNotTrack = ignoreDoNotTrack,
+        trackingDetailsUrl = trackingDetailsUrl,
+        consentMode = consentMode,
+        showBanner = showBanner,
+        consentPolicy = consentPolicy,
+        gppUsNat = gppUsNat,
+        initialCategories = initialCategories,
+    )
+}
+
+/**
+ * A config whose header is decoded and whose layout is decoded on first use.
+ * The layout (layers, elements, every locale's translations) is most of a config, and launches that
+ * show no banner never need it.
+ *
+ * A config read from the cache, or made [compact] after a fetch, keeps only its encoded layout, which
+ * is much smaller than the decoded object graph; [config] and [readLayout] decode a fresh copy on
+ * each call and keep nothing.
+ */
+internal class LazyConfig private constructor(
+    val header: ConfigHeader,
+    private val loadLayout: () -> Layout,
+    decoded: Layout?,
+    /** The layout in its cached binary form, or null if this config wraps a decoded layout */
+    val encodedLayout: ByteArray?,
+) {
+    /**
+     * @param header The decoded header
+     * @param loadLayout Decodes the layout
+     */
+    constructor(
+        header: ConfigHeader,
+        loadLayout: () -> Layout,
+    ) : this(header, loadLayout, null, null)
+
+    private val lazyLayout = if (decoded != null) lazyOf(decoded) else lazy(loadLayout)
+
+    /**
+     * The layout, decoded on first access and kept
+     */
+    val layout: Layout
+        get() = lazyLayout.value
+
+    /**
+     * The full config; decodes the layout without keeping it unless it is kept already
+     */
+    val config: ConsentConfig
+        get() = header.withLayout(readLayout())
+
+    /**
+     * Whether the layout has been decoded and kept
+     */
+    val isLayoutLoaded: Boolean
+        get() = lazyLayout.isInitialized()
+
+    /**
+     * Get the layout without keeping it: for callers that derive and keep a smaller projection
+     * @return The kept layout if there is one, else a freshly decoded layout
+     */
+    fun readLayout(): Layout {
+        return if (lazyLayout.isInitialized()) lazyLayout.value else loadLayout()
+    }
+
+    @OptIn(ExperimentalSerializationApi::class)
+    companion object {
+        private val cbor = Cbor { ignoreUnknownKeys = true }
+
+        /**
+         * Wrap a fully decoded config
+         * @param config The config
+         * @return A lazy config with the layout already loaded
+         */
+        fun of(config: ConsentConfig): LazyConfig {
+            return LazyConfig(config.header(), { config.layout }, config.layout, null)
+        }
+
+        /**
+         * Encode a config's layout and drop the decoded graph, for configs kept after a fetch
+         * @param config The config
+         * @return A lazy config holding only the encoded layout
+         */
+        fun compact(config: ConsentConfig): LazyConfig {
+            return encoded(config.header(), encodeLayout(config.layout))
+        }
+
+        /**
+         * Wrap a header and an encoded layout
+         * @param header The decoded header
+         * @param layoutBytes The layout as written by [encodeLayout]
+         * @param onDecodeError Called before a decode error is rethrown
+         * @return A lazy config that decodes the layout on each use
+         */
+        fun encoded(
+            header: ConfigHeader,
+            layoutBytes: ByteArray,
+            onDecodeError: (Exception) -> Unit = {},
+        ): LazyConfig {
+            val decode = {
+                try {
+                    cbor.decodeFromByteArray(Layout.serializer(), layoutBytes)
+                } catch (e: Exception) {
+                    onDecodeError(e)
+                    throw e
+                }
+            }
+            return LazyConfig(header, decode, null, layoutBytes)
+        }
+
+        /**
+         * Encode a layout to its cached binary form (CBOR)
+         * @param layout The layout
+         * @return The encoded bytes
+         */
+        fun encodeLayout(layout: Layout): ByteArray {
+            return cbor.encodeToByteArray(Layout.serializer(), layout)
+        }
+    }
+}
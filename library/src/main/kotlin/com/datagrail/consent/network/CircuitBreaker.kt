@@ -0,0 +1,134 @@
+package com.datagrail.consent.network
+
+import com.datagrail.consent.models.ConsentException
+import com.datagrail.consent.utils.ConsentLogger
+import kotlin.coroutines.cancellation.CancellationException
+
+/**
+ * Circuit breaker guarding requests to one endpoint.
+ *
+ * - CLOSED: requests go through; [failureThreshold] consecutive failures open the circuit
+ * - OPEN: requests are refused without touching the network until [openDurationMs] has passed
+ * - HALF_OPEN: a single probe request is let through; success closes the circuit, failure reopens it
+ *
+ * Only failures showing the endpoint is unreachable or unhealthy (no response, 5xx, 429) count.
+ * Other responses, including 4xx client errors, prove the endpoint is up and close the circuit.
+ */
+internal class CircuitBreaker(
+    private val failureThreshold: Int = DEFAULT_FAILURE_THRESHOLD,
+    private val openDurationMs: Long = DEFAULT_OPEN_DURATION_MS,
+    private val nanoTime: () -> Long = System::nanoTime,
+) {
+    companion object {
+        internal const val DEFAULT_FAILURE_THRESHOLD = 5
+        internal const val DEFAULT_OPEN_DURATION_MS = 30_000L
+        private const val HTTP_TOO_MANY_REQUESTS = 429
+
+        /**
+         * Whether an error shows the endpoint is down, as opposed to rejecting this particular request
+         * @param error The error a request failed with
+         * @return true if the error should count towards opening the circuit
+         */
+        fun isEndpointFailure(error: Throwable): Boolean {
+            val statusCode = (error as? ConsentException.NetworkError)?.statusCode ?: return true
+            return statusCode >= 500 || statusCode == HTTP_TOO_MANY_REQUESTS
+        }
+    }
+
+    enum class State { CLOSED, OPEN, HALF_OPEN }
+
+    private var state = State.CLOSED
+    private var consecutiveFailures = 0
+    private var openedAtNs = 0L
+    private var probeInFlight = false
+
+    /**
+     * Current state, moving from OPEN to HALF_OPEN once the open duration has passed
+     */
+    val currentState: State
+        @Synchronized get() {
+            if (state == State.OPEN && nanoTime() - openedAtNs >= openDurationMs * 1_000_000) {
+                state = State.HALF_OPEN
+                probeInFlight = false
+            }
+            return state
+        }
+
+    /**
+     * Ask to make a request. Every successful call must be followed by [onSuccess], [onFailure] or [release].
+     * @return true if the request may go ahead, false if it should be short-circuited
+     */
+    @Synchronized
+    fun tryAcquire(): Boolean {
+        return when (currentState) {
+            State.CLOSED -> true
+            State.OPEN -> false
+            State.HALF_OPEN -> {
+                if (probeInFlight) {
+                    false
+                } else {
+                    probeInFlight = true
+                    true
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that the endpoint answered
+     */
+    @Synchronized
+    fun onSuccess() {
+        if (state != State.CLOSED) {
+            ConsentLogger.i("Circuit closed, endpoint recovered")
+        }
+        state = State.CLOSED
+        consecutiveFailures = 0
+        probeInFlight = false
+    }
+
+    /**
+     * Record that the endpoint could not be reached or failed
+     */
+    @Synchronized
+    fun onFailure() {
+        consecutiveFailures++
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != State.OPEN) {
+                ConsentLogger.w("Circuit opened after $consecutiveFailures consecutive failures")
+            }
+            state = State.OPEN
+            openedAtNs = nanoTime()
+            probeInFlight = false
+        }
+    }
+
+    /**
+     * Give back a request that ended without telling anything about the endpoint, e.g. cancelled
+     */
+    @Synchronized
+    fun release() {
+        probeInFlight = false
+    }
+
+    /**
+     * Run a request through the breaker, recording its outcome
+     * @param request The request to make
+     * @return The request result
+     * @throws ConsentException.NetworkError without making the request while the circuit is open
+     */
+    suspend fun <T> call(request: suspend () -> T): T {
+        if (!tryAcquire()) {
+            throw ConsentException.NetworkError("Circuit open, request not sent")
+        }
+        try {
+            return request().also { onSuccess() }
+        } catch (e: CancellationException) {
+            release()
+            throw e
+        } catch (e: Exception) {
+            if (isEndpointFailure(e)) onFailure() else onSuccess()
+            throw e
+        }
+    }
+}
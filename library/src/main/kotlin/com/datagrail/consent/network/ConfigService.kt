@@ -1,37 +1,133 @@
 package com.datagrail.consent.network
 
+import com.datagrail.consent.RetryPolicy
 import com.datagrail.consent.models.ConsentConfig
 import com.datagrail.consent.models.ConsentException
+import com.datagrail.consent.models.LazyConfig
 import com.datagrail.consent.storage.ConsentStorage
+import com.datagrail.consent.utils.ConfigLocalizer
 import com.datagrail.consent.utils.ConfigValidator
 import com.datagrail.consent.utils.ConsentLogger
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.decodeFromStream
+import java.io.InputStream
+import java.security.DigestInputStream
+import java.security.MessageDigest
 
 /**
- * Service for fetching and managing consent configuration
+ * Service for fetching and managing consent configuration.
+ *
+ * With [pruneCachedLocales], fetched configs are projected to the device locale's translations
+ * before they are cached and served (see [ConfigLocalizer]), and the locale is recorded in the cache file header.
+ * A cache pruned for a locale other than the current one is never revalidated with a 304 or served
+ * on startup; it is only used as a fallback when the network fails.
+ *
+ * The cache records a hash of the response body it was decoded from. A downloaded body with the same
+ * hash was already validated, so it is not validated again, and it is not written again unless its
+ * HTTP validators or cache locale changed.
+ * @param retryPolicy How failed config fetches are retried
+ * @param pruneCachedLocales Whether to keep only the device locale's translations
+ * @param localeProvider Current locale, read on each fetch
+ * @param ioDispatcher Dispatcher for cache file reads and writes and the work on a downloaded config
  */
 internal class ConfigService(
     private val networkClient: NetworkClient,
     private val storage: ConsentStorage,
+    private val retryPolicy: RetryPolicy = RetryPolicy.DEFAULT,
+    private val pruneCachedLocales: Boolean = false,
+    private val localeProvider: () -> String = ConfigLocalizer::deviceLocale,
+    private val ioDispatcher: CoroutineDispatcher = Dispatchers.IO,
 ) {
     private val json =
         Json {
             ignoreUnknownKeys = true
         }
 
+    // Last config served or cached, reused for 304 responses without decoding JSON again
+    @Volatile
+    private var cachedConfig: LazyConfig? = null
+
+    /**
+     * Forget the last config served, so a 304 response is not answered with it
+     */
+    fun discardCachedConfig() {
+        cachedConfig = null
+    }
+
+    /**
+     * Attempts made by the most recent [fetchConfigWithRetry], or 0 if none has run
+     */
+    @Volatile
+    var lastFetchAttempts: Int = 0
+        private set
+
     /**
-     * Fetch configuration from URL
+     * Fetch configuration from URL.
+     * Sends If-None-Match / If-Modified-Since when a cached config exists, and reuses it on 304.
+     * A config served from cache has only its header decoded; its layout is decoded on first use.
      * @param url The configuration URL
      * @return The parsed configuration
      * @throws ConsentException if fetch or parse fails
      */
-    suspend fun fetchConfig(url: String): ConsentConfig {
+    suspend fun fetchConfig(url: String): LazyConfig {
         return try {
-            // Try to fetch from network
-            val response = networkClient.request(url, HTTPMethod.GET)
-            val config = json.decodeFromString<ConsentConfig>(response)
+            // Try to fetch from network, decoding straight from the response stream
+            val locale = localeProvider()
+            val digest = MessageDigest.getInstance(CONTENT_HASH_ALGORITHM)
+            val headers = withContext(ioDispatcher) { conditionalHeaders(locale) }
+            var response = networkClient.stream(url, HTTPMethod.GET, headers = headers) { decode(it, digest) }
+            if (response.isNotModified) {
+                val cached = cachedConfig ?: withContext(ioDispatcher) { storage.loadConfigCache() }
+                if (cached != null) {
+                    ConsentLogger.d("Config not modified, reusing cached config")
+                    cachedConfig = cached
+                    return cached
+                }
+                // Validators outlived the cached body; fetch it unconditionally
+                digest.reset()
+                response = networkClient.stream(url, HTTPMethod.GET) { decode(it, digest) }
+            }
 
-            // Validate config structure
+            // Validation, pruning and encoding are CPU work next to reads and writes of the cache file
+            withContext(ioDispatcher) { serve(response, digest, locale) }
+        } catch (e: ConsentException.NetworkError) {
+            // If network fails, try cached config
+            withContext(ioDispatcher) { storage.loadConfigCache() }
+                ?: throw e
+        } catch (e: ConsentException.ValidationError) {
+            throw e
+        } catch (e: Exception) {
+            // Parse error or other error
+            withContext(ioDispatcher) { storage.loadConfigCache() }
+                ?: throw ConsentException.ParseError(e.message ?: "Failed to parse config", e)
+        }
+    }
+
+    /**
+     * Validate a downloaded config, cache it if anything changed, and make it the config served
+     * @param response The config response
+     * @param digest Digest of the response body
+     * @param locale Locale to prune translations for, if pruning
+     * @return The config to serve
+     * @throws ConsentException.ValidationError if the config is invalid and no cache is available
+     */
+    private fun serve(
+        response: HTTPResponse<ConsentConfig?>,
+        digest: MessageDigest,
+        locale: String,
+    ): LazyConfig {
+        val config = checkNotNull(response.body) { "Empty config response" }
+        val contentHash = digest.digest().joinToString("") { "%02x".format(it) }
+        val isUnchanged = contentHash == storage.loadConfigContentHash()
+
+        // Validate config structure; an unchanged body was validated before it was cached
+        if (isUnchanged) {
+            ConsentLogger.d("Config unchanged, skipping validation")
+        } else {
             try {
                 ConfigValidator.validate(config)
             } catch (e: ConsentException.ValidationError) {
@@ -39,33 +135,106 @@ internal class ConfigService(
                 return storage.loadConfigCache()
                     ?: throw e
             }
+        }
 
-            // Cache the configuration
-            storage.saveConfigCache(config)
+        // Cache the configuration with its HTTP validators and content hash. Only the encoded layout
+        // is kept from here on; the decoded graph holds every locale's translations
+        val localized = if (pruneCachedLocales) ConfigLocalizer.localize(config, locale) else config
+        val served = LazyConfig.compact(localized)
+        val cacheLocale = if (pruneCachedLocales) locale else null
+        val etag = response.header("ETag")
+        val lastModified = response.header("Last-Modified")
+        if (!isUnchanged || !isCacheCurrent(etag, lastModified, cacheLocale)) {
+            storage.saveConfigCache(served, etag, lastModified, contentHash, cacheLocale)
+        }
+        cachedConfig = served
+        return served
+    }
 
-            config
-        } catch (e: ConsentException.NetworkError) {
-            // If network fails, try cached config
-            storage.loadConfigCache()
-                ?: throw e
+    /**
+     * Decode a config response, hashing the body as it is read
+     * @param stream The response body
+     * @param digest Updated with every byte read from the body
+     * @return The decoded config
+     */
+    @OptIn(ExperimentalSerializationApi::class)
+    private fun decode(
+        stream: InputStream,
+        digest: MessageDigest,
+    ): ConsentConfig {
+        // Reads through a fixed-size char buffer; the raw JSON text is never held in memory
+        return json.decodeFromStream<ConsentConfig>(DigestInputStream(stream, digest))
+    }
+
+    /**
+     * Check whether the cache was written with the given validators and locale
+     * @param etag ETag of the response
+     * @param lastModified Last-Modified of the response
+     * @param cacheLocale Locale the cache would be pruned for, or null if unpruned
+     * @return true if rewriting the same body would store nothing new
+     */
+    private fun isCacheCurrent(
+        etag: String?,
+        lastModified: String?,
+        cacheLocale: String?,
+    ): Boolean {
+        return etag == storage.loadConfigETag() &&
+            lastModified == storage.loadConfigLastModified() &&
+            cacheLocale == storage.loadConfigCacheLocale()
+    }
+
+    private fun conditionalHeaders(locale: String): Map<String, String>? {
+        // A 304 would keep serving translations pruned for another locale
+        if (!isCacheUsableFor(locale)) return null
+
+        val headers = mutableMapOf<String, String>()
+        storage.loadConfigETag()?.let { headers["If-None-Match"] = it }
+        storage.loadConfigLastModified()?.let { headers["If-Modified-Since"] = it }
+        return headers.ifEmpty { null }
+    }
+
+    /**
+     * Check whether the cache holds the translations a locale needs
+     * @param locale The current locale
+     * @return true if the cache is unpruned or was pruned for this locale
+     */
+    private fun isCacheUsableFor(locale: String): Boolean {
+        val cachedLocale = storage.loadConfigCacheLocale() ?: return true
+        return pruneCachedLocales && cachedLocale == locale
+    }
+
+    /**
+     * Load the cached configuration if it is still valid.
+     * Only the header is decoded and checked here; the layout was validated before it was cached.
+     * @return The cached configuration, or null if none is cached, it fails validation, or it was pruned
+     * for another locale
+     */
+    fun loadCachedConfig(): LazyConfig? {
+        if (!isCacheUsableFor(localeProvider())) return null
+        val cached = storage.loadConfigCache() ?: return null
+        return try {
+            ConfigValidator.validateHeader(cached.header)
+            cachedConfig = cached
+            cached
         } catch (e: ConsentException.ValidationError) {
-            throw e
-        } catch (e: Exception) {
-            // Parse error or other error
-            storage.loadConfigCache()
-                ?: throw ConsentException.ParseError(e.message ?: "Failed to parse config", e)
+            ConsentLogger.w("Cached config failed validation: ${e.message}")
+            null
         }
     }
 
     /**
-     * Fetch configuration with retry logic
+     * Fetch configuration, retrying as described by the retry policy
      * @param url The configuration URL
      * @return The parsed configuration
      * @throws ConsentException if all retries fail
      */
-    suspend fun fetchConfigWithRetry(url: String): ConsentConfig {
-        return networkClient.retryWithBackoff {
+    suspend fun fetchConfigWithRetry(url: String): LazyConfig {
+        return networkClient.retryWithPolicy(retryPolicy, onAttempt = { lastFetchAttempts = it }) {
             fetchConfig(url)
         }
     }
+
+    companion object {
+        private const val CONTENT_HASH_ALGORITHM = "SHA-256"
+    }
 }
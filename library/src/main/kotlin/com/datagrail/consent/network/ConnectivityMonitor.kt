@@ -0,0 +1,80 @@
+package com.datagrail.consent.network
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkRequest
+import com.datagrail.consent.utils.ConsentLogger
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flowOf
+
+/**
+ * Source of network connectivity changes
+ */
+internal interface ConnectivityMonitor {
+    /**
+     * Observe whether the device has a network with internet access
+     * @return A flow emitting the current state on collection, then every change
+     */
+    fun observe(): Flow<Boolean>
+}
+
+/**
+ * [ConnectivityMonitor] backed by [ConnectivityManager] network callbacks.
+ * If connectivity cannot be observed, the device is reported as always online so retries still run.
+ */
+internal class AndroidConnectivityMonitor(
+    private val context: Context,
+) : ConnectivityMonitor {
+    override fun observe(): Flow<Boolean> {
+        val connectivityManager =
+            context.getSystemService(Context.CONNECTIVITY_SERVICE) as? ConnectivityManager
+                ?: return flowOf(true)
+
+        return callbackFlow {
+            val networks = mutableSetOf<Network>()
+            val callback =
+                object : ConnectivityManager.NetworkCallback() {
+                    override fun onAvailable(network: Network) {
+                        synchronized(networks) { networks.add(network) }
+                        trySend(true)
+                    }
+
+                    override fun onLost(network: Network) {
+                        val online =
+                            synchronized(networks) {
+                                networks.remove(network)
+                                networks.isNotEmpty()
+                            }
+                        trySend(online)
+                    }
+                }
+
+            trySend(isOnline(connectivityManager))
+            val request =
+                NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build()
+            try {
+                connectivityManager.registerNetworkCallback(request, callback)
+            } catch (e: RuntimeException) {
+                // e.g. too many callbacks registered by the app; fall back to assuming online
+                ConsentLogger.w("Cannot observe connectivity: ${e.javaClass.simpleName}")
+                trySend(true)
+                awaitClose()
+                return@callbackFlow
+            }
+            awaitClose { connectivityManager.unregisterNetworkCallback(callback) }
+        }.distinctUntilChanged()
+    }
+
+    private fun isOnline(connectivityManager: ConnectivityManager): Boolean {
+        val network = connectivityManager.activeNetwork ?: return false
+        val capabilities = connectivityManager.getNetworkCapabilities(network) ?: return false
+        return capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+    }
+}
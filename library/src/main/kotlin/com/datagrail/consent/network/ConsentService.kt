@@ -1,9 +1,24 @@
 package com.datagrail.consent.network
 
-import com.datagrail.consent.models.ConsentConfig
+import com.datagrail.consent.RetryPolicy
+import com.datagrail.consent.UploadBatchListener
+import com.datagrail.consent.UploadBatchStats
+import com.datagrail.consent.models.ConfigHeader
 import com.datagrail.consent.models.ConsentException
 import com.datagrail.consent.models.ConsentPreferences
 import com.datagrail.consent.storage.ConsentStorage
+import com.datagrail.consent.storage.PendingEvent
+import com.datagrail.consent.storage.PendingEventCoalescer
+import com.datagrail.consent.utils.ConsentLogger
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
@@ -11,13 +26,36 @@ import java.net.URLEncoder
 import java.util.UUID
 
 /**
- * Service for sending consent data to backend
+ * Service for sending consent data to backend.
+ * Requests to the privacy domain go through [circuitBreaker]: during an outage they are queued
+ * straight away instead of each waiting out a full network timeout.
+ * Event queue file reads and writes (encryption and fsync) run on [ioDispatcher].
+ * @param retryPolicy Decides which failed replays stay queued; events rejected with an error it does
+ * not retry are dropped
  */
 internal class ConsentService(
     private val networkClient: NetworkClient,
     private val storage: ConsentStorage,
     private val privacyDomain: String,
+    private val maxConcurrentUploads: Int = DEFAULT_MAX_CONCURRENT_UPLOADS,
+    private val uploadBatchListener: UploadBatchListener? = null,
+    private val nanoTime: () -> Long = System::nanoTime,
+    private val circuitBreaker: CircuitBreaker = CircuitBreaker(nanoTime = nanoTime),
+    private val ioDispatcher: CoroutineDispatcher = Dispatchers.IO,
+    private val retryPolicy: RetryPolicy = RetryPolicy.DEFAULT,
 ) {
+    companion object {
+        internal const val DEFAULT_MAX_CONCURRENT_UPLOADS = 4
+
+        // Events uploaded and then acknowledged in storage together
+        internal const val UPLOAD_BATCH_SIZE = 10
+    }
+
+    private enum class Delivery { DELIVERED, DROPPED, FAILED }
+
+    // One replay pass at a time, so scheduled and manual retries never send the same events twice
+    private val replayMutex = Mutex()
+
     @Serializable
     private data class SavePreferencesRequest(
         val consentPolicy: String,
@@ -28,23 +66,23 @@ internal class ConsentService(
         val uniqueId: String,
     )
 
-    companion object {
-        private const val MAX_PENDING_EVENTS = 100
-    }
-
     private fun encodeParam(value: String): String = URLEncoder.encode(value, "UTF-8")
 
+    private val sessionIdParam = Regex("([?&]sessionId=)[^&]*")
+
     /**
-     * Save consent preferences to backend
-     * @param preferences The consent preferences to save
-     * @param config The consent configuration
+     * Send consent preferences to the backend, queueing them for retry on failure.
+     * Does not touch local preferences; the caller has already saved them.
+     * @param preferences The consent preferences to send
+     * @param config The consent configuration fields outside the layout
+     * @param uniqueId The user's unique identifier
      * @throws ConsentException on failure
      */
     suspend fun savePreferences(
         preferences: ConsentPreferences,
-        config: ConsentConfig,
+        config: ConfigHeader,
+        uniqueId: String,
     ) {
-        val uniqueId = storage.getOrCreateUniqueId()
         val sessionId = UUID.randomUUID().toString()
 
         // Build cookie options map
@@ -67,37 +105,24 @@ internal class ConsentService(
         val jsonBody = Json.encodeToString(requestBody)
 
         try {
-            networkClient.request(
-                url = url,
-                method = HTTPMethod.POST,
-                body = jsonBody,
-            )
-
-            // Save locally after successful backend save
-            storage.savePreferences(preferences)
-            storage.saveConfigVersion(config.version)
+            circuitBreaker.call {
+                networkClient.request(
+                    url = url,
+                    method = HTTPMethod.POST,
+                    body = jsonBody,
+                )
+            }
         } catch (e: Exception) {
             // Queue for retry on failure
-            val eventJson =
-                Json.encodeToString(
-                    mapOf(
-                        "type" to "save_preferences",
-                        "url" to url,
-                        "body" to jsonBody,
-                        "timestamp" to System.currentTimeMillis().toString(),
-                    ),
+            val event =
+                PendingEvent(
+                    type = PendingEvent.TYPE_SAVE_PREFERENCES,
+                    url = url,
+                    body = jsonBody,
+                    timestamp = System.currentTimeMillis(),
+                    uniqueId = uniqueId,
                 )
-
-            val existingEvents = storage.loadPendingEvents().toMutableList()
-            existingEvents.add(eventJson)
-            if (existingEvents.size > MAX_PENDING_EVENTS) {
-                existingEvents.subList(0, existingEvents.size - MAX_PENDING_EVENTS).clear()
-            }
-            storage.savePendingEvents(existingEvents)
-
-            // Still save locally
-            storage.savePreferences(preferences)
-            storage.saveConfigVersion(config.version)
+            withContext(ioDispatcher) { storage.appendPendingEvent(event) }
 
             throw ConsentException.NetworkError("Failed to save preferences: ${e.message}")
         }
@@ -105,10 +130,10 @@ internal class ConsentService(
 
     /**
      * Save banner open event to backend
-     * @param config The consent configuration
+     * @param config The consent configuration fields outside the layout
      * @throws ConsentException on failure
      */
-    suspend fun saveOpen(config: ConsentConfig) {
+    suspend fun saveOpen(config: ConfigHeader) {
         val uniqueId = storage.getOrCreateUniqueId()
         val sessionId = UUID.randomUUID().toString()
 
@@ -120,70 +145,158 @@ internal class ConsentService(
                 "&consentPolicy=${encodeParam("ConsentPolicy")}"
 
         try {
-            networkClient.request(url = url, method = HTTPMethod.GET)
+            circuitBreaker.call { networkClient.request(url = url, method = HTTPMethod.GET) }
         } catch (e: Exception) {
             // Queue for retry on failure
-            val eventJson =
-                Json.encodeToString(
-                    mapOf(
-                        "type" to "save_open",
-                        "url" to url,
-                        "timestamp" to System.currentTimeMillis().toString(),
-                    ),
+            val event =
+                PendingEvent(
+                    type = PendingEvent.TYPE_SAVE_OPEN,
+                    url = url,
+                    timestamp = System.currentTimeMillis(),
+                    uniqueId = uniqueId,
                 )
-
-            val existingEvents = storage.loadPendingEvents().toMutableList()
-            existingEvents.add(eventJson)
-            if (existingEvents.size > MAX_PENDING_EVENTS) {
-                existingEvents.subList(0, existingEvents.size - MAX_PENDING_EVENTS).clear()
-            }
-            storage.savePendingEvents(existingEvents)
+            withContext(ioDispatcher) { storage.appendPendingEvent(event) }
 
             // Don't throw - saveOpen is fire-and-forget analytics
         }
     }
 
     /**
-     * Retry any pending requests that failed previously
-     * @return Pair of (successCount, failureCount)
+     * Retry any pending requests that failed previously.
+     * Nothing more is sent once the privacy domain circuit is open.
+     * Queued events are coalesced first (see [PendingEventCoalescer]), then uploaded in batches of
+     * [UPLOAD_BATCH_SIZE] with up to [maxConcurrentUploads] requests in flight; each batch is
+     * acknowledged in storage as soon as it completes. Preferences are sent one at a time in queue
+     * order, and none are sent after one fails, so an older consent decision never lands last.
+     * Events the backend rejects with an error [retryPolicy] does not retry (most 4xx responses) would
+     * fail the same way forever, so they are dropped instead of blocking the queue.
+     * A call made while another pass is running waits for it and then replays whatever is still queued.
+     * @return Pair of (successCount, failureCount), counting coalesced requests once
      */
-    suspend fun retryPendingRequests(): Pair<Int, Int> {
-        val pendingEvents = storage.loadPendingEvents()
+    suspend fun retryPendingRequests(): Pair<Int, Int> = replayMutex.withLock { replayPendingRequests() }
+
+    private suspend fun replayPendingRequests(): Pair<Int, Int> {
+        val pendingEvents = withContext(ioDispatcher) { PendingEventCoalescer.coalesce(storage.loadPendingEvents()) }
         if (pendingEvents.isEmpty()) {
             return Pair(0, 0)
         }
 
         var successCount = 0
         var failureCount = 0
-        val remainingEvents = mutableListOf<String>()
-
-        for (eventJson in pendingEvents) {
-            try {
-                val event = Json.decodeFromString<Map<String, String>>(eventJson)
-                val type = event["type"] ?: continue
-                val url = event["url"] ?: continue
-
-                when (type) {
-                    "save_preferences" -> {
-                        val body = event["body"] ?: continue
-                        networkClient.request(url = url, method = HTTPMethod.POST, body = body)
-                        successCount++
+        val permits = Semaphore(maxConcurrentUploads.coerceAtLeast(1))
+        var preferencesFailed = false
+
+        for ((batchIndex, batch) in pendingEvents.chunked(UPLOAD_BATCH_SIZE).withIndex()) {
+            val circuitState = circuitBreaker.currentState
+            if (circuitState == CircuitBreaker.State.OPEN) {
+                // Everything left stays queued until the privacy domain is reachable again
+                val remaining = pendingEvents.size - batchIndex * UPLOAD_BATCH_SIZE
+                ConsentLogger.d("Privacy domain circuit open, keeping $remaining requests queued")
+                failureCount += remaining
+                break
+            }
+            // While probing, send one at a time so the probe's outcome gates the rest of the batch
+            val batchPermits = if (circuitState == CircuitBreaker.State.HALF_OPEN) Semaphore(1) else permits
+
+            val batchStartNs = nanoTime()
+            // Skipped preferences count as failed and stay queued
+            val results = Array(batch.size) { Delivery.FAILED }
+            coroutineScope {
+                val (preferences, others) =
+                    batch.indices.partition { batch[it].event.type == PendingEvent.TYPE_SAVE_PREFERENCES }
+                launch {
+                    for (i in preferences) {
+                        if (preferencesFailed) break
+                        results[i] = batchPermits.withPermit { deliver(batch[i]) }
+                        preferencesFailed = results[i] == Delivery.FAILED
                     }
-                    "save_open" -> {
-                        networkClient.request(url = url, method = HTTPMethod.GET)
-                        successCount++
+                }
+                for (i in others) {
+                    launch { results[i] = batchPermits.withPermit { deliver(batch[i]) } }
+                }
+            }
+            val latencyMs = (nanoTime() - batchStartNs) / 1_000_000
+
+            // Delivered, or malformed or rejected and dropped; failed events stay queued for next retry
+            val completedIds = batch.zip(results).filter { it.second != Delivery.FAILED }.flatMap { it.first.ids }
+            withContext(ioDispatcher) { storage.removePendingEvents(completedIds) }
+
+            val stats =
+                UploadBatchStats(
+                    batchIndex = batchIndex,
+                    eventCount = batch.size,
+                    successCount = results.count { it == Delivery.DELIVERED },
+                    failureCount = results.count { it == Delivery.FAILED },
+                    latencyMs = latencyMs,
+                )
+            successCount += stats.successCount
+            failureCount += stats.failureCount
+            ConsentLogger.d(
+                "Upload batch $batchIndex: ${stats.successCount}/${batch.size} sent in ${latencyMs}ms",
+            )
+            uploadBatchListener?.onBatchUploaded(stats)
+        }
+
+        return Pair(successCount, failureCount)
+    }
+
+    private suspend fun deliver(group: PendingEventCoalescer.Group): Delivery {
+        val event = group.event
+        return try {
+            when (event.type) {
+                PendingEvent.TYPE_SAVE_PREFERENCES -> {
+                    val body = event.body ?: return Delivery.DROPPED
+                    circuitBreaker.call {
+                        networkClient.request(url = event.url, method = HTTPMethod.POST, body = body)
                     }
                 }
-            } catch (e: Exception) {
-                failureCount++
-                // Keep failed events for next retry
-                remainingEvents.add(eventJson)
+                PendingEvent.TYPE_SAVE_OPEN -> return deliverOpens(group)
+                else -> return Delivery.DROPPED
             }
+            Delivery.DELIVERED
+        } catch (e: Exception) {
+            failedDelivery(e)
         }
+    }
 
-        // Update pending events (remove successful ones)
-        storage.savePendingEvents(remainingEvents)
+    private fun failedDelivery(error: Exception): Delivery {
+        if (retryPolicy.isRetryable(error)) return Delivery.FAILED
+        ConsentLogger.w("Dropping queued event rejected by the backend: ${error.message}")
+        return Delivery.DROPPED
+    }
 
-        return Pair(successCount, failureCount)
+    /**
+     * Send a coalesced save_open once per banner open it stands for, since the backend counts one
+     * open per request. Each open after the first gets a fresh session id, as every open had its own.
+     * If sending stops part way, the group's entries are replaced by an event for the unsent opens.
+     */
+    private suspend fun deliverOpens(group: PendingEventCoalescer.Group): Delivery {
+        val event = group.event
+        var sent = 0
+        try {
+            while (sent < event.count) {
+                val url =
+                    if (sent == 0) {
+                        event.url
+                    } else {
+                        event.url.replace(sessionIdParam, "$1${encodeParam(UUID.randomUUID().toString())}")
+                    }
+                circuitBreaker.call { networkClient.request(url = url, method = HTTPMethod.GET) }
+                sent++
+            }
+        } catch (e: Exception) {
+            // The remaining opens would be rejected the same way
+            if (!retryPolicy.isRetryable(e)) return failedDelivery(e)
+            if (sent > 0) {
+                try {
+                    val unsent = event.copy(count = event.count - sent)
+                    withContext(ioDispatcher) { storage.replacePendingEvents(group.ids, unsent) }
+                } catch (e: ConsentException.StorageError) {
+                    ConsentLogger.w("Could not record partially sent opens: ${e.message}")
+                }
+            }
+            return Delivery.FAILED
+        }
+        return Delivery.DELIVERED
     }
 }
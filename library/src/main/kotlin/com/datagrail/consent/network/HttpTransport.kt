@@ -0,0 +1,87 @@
+package com.datagrail.consent.network
+
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+
+// Past this, reading the rest costs more than a new connection; close and let the socket go
+internal const val MAX_DRAIN_BYTES = 64 * 1024L
+
+/**
+ * Moves HTTP requests and responses over the wire.
+ * [NetworkClient] handles HTTPS enforcement, compression, status codes and error mapping on top of it,
+ * so a transport only has to send the request as given and hand back the raw response.
+ *
+ * Implement this to route SDK traffic through an HTTP stack the app already runs (e.g. OkHttp or
+ * Cronet) and pass it to [com.datagrail.consent.ConsentOptions.Builder.transport]. Implementations:
+ * - Own connection pooling and redirects
+ * - Should apply the per-request timeouts in [HttpTransportRequest] so retry deadlines hold
+ * - Must be safe to call from several threads at once
+ * - Must return the body still content-encoded, or drop the `content-encoding` header if they decode it
+ */
+interface HttpTransport {
+    /**
+     * Execute a request, blocking until the response headers arrive. Called on a background thread.
+     * @param request The request to send
+     * @return The response; the caller closes it once the body has been read
+     * @throws IOException if the request cannot be completed
+     */
+    @Throws(IOException::class)
+    fun execute(request: HttpTransportRequest): HttpTransportResponse
+}
+
+/**
+ * A request handed to an [HttpTransport]
+ * @property url Absolute URL
+ * @property method HTTP method name, e.g. "GET"
+ * @property headers Request headers to send as given
+ * @property body Request body bytes, already encoded, or null for none
+ * @property connectTimeoutMs Time allowed to connect for this attempt, already shortened to any retry deadline
+ * @property readTimeoutMs Time allowed between response bytes for this attempt, likewise shortened
+ */
+class HttpTransportRequest(
+    val url: String,
+    val method: String,
+    val headers: Map<String, String>,
+    val body: ByteArray?,
+    val connectTimeoutMs: Int,
+    val readTimeoutMs: Int,
+)
+
+/**
+ * A response returned by an [HttpTransport].
+ * Closing it must release the underlying connection, returning it to the pool when possible.
+ */
+interface HttpTransportResponse : Closeable {
+    /** HTTP status code */
+    val statusCode: Int
+
+    /** Response headers keyed by lower-cased name */
+    val headers: Map<String, String>
+
+    /** Raw response body, still content-encoded; empty if the response has none */
+    val body: InputStream
+}
+
+/**
+ * Read what is left of a response body so its connection can be reused, then close it
+ * @param stream The body stream
+ */
+internal fun drainAndClose(stream: InputStream) {
+    try {
+        val buffer = ByteArray(8 * 1024)
+        var drained = 0L
+        while (drained < MAX_DRAIN_BYTES) {
+            val read = stream.read(buffer)
+            if (read < 0) break
+            drained += read
+        }
+    } catch (_: IOException) {
+        // The connection is unusable anyway; closing below discards it
+    } finally {
+        try {
+            stream.close()
+        } catch (_: IOException) {
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.datagrail.consent.network
+
+import com.datagrail.consent.TransportMetrics
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.net.HttpURLConnection
+import java.net.InetAddress
+import java.net.Socket
+import java.net.URL
+import java.util.concurrent.atomic.AtomicLong
+import javax.net.ssl.HttpsURLConnection
+import javax.net.ssl.SSLSocketFactory
+
+/**
+ * [HttpTransport] backed by the platform `HttpURLConnection`, which keeps idle connections in a
+ * keep-alive pool per host. A connection only goes back to the pool when its response body is read
+ * to the end and closed, so responses drain what is left of the body on close and connections are
+ * never disconnected on the success path.
+ *
+ * Every new TLS connection is counted through a wrapping [SSLSocketFactory] to report the
+ * handshake count and reuse ratio in [metrics].
+ */
+internal class HttpUrlConnectionTransport(
+    sslSocketFactory: SSLSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory(),
+) : HttpTransport {
+    private val requestCount = AtomicLong(0)
+    private val handshakeCount = AtomicLong(0)
+
+    // One instance for every request: the pool only shares connections created by the same factory
+    private val countingSocketFactory = CountingSSLSocketFactory(sslSocketFactory) { handshakeCount.incrementAndGet() }
+
+    override fun execute(request: HttpTransportRequest): HttpTransportResponse {
+        val connection = URL(request.url).openConnection() as HttpURLConnection
+        try {
+            if (connection is HttpsURLConnection) {
+                connection.sslSocketFactory = countingSocketFactory
+            }
+            connection.requestMethod = request.method
+            connection.connectTimeout = request.connectTimeoutMs
+            connection.readTimeout = request.readTimeoutMs
+            request.headers.forEach { (key, value) ->
+                connection.setRequestProperty(key, value)
+            }
+
+            request.body?.let { bytes ->
+                connection.doOutput = true
+                connection.setFixedLengthStreamingMode(bytes.size)
+                connection.outputStream.use { it.write(bytes) }
+            }
+
+            val statusCode = connection.responseCode
+            requestCount.incrementAndGet()
+
+            val headers =
+                connection.headerFields.orEmpty().entries
+                    .filter { it.key != null && it.value.isNotEmpty() }
+                    .associate { it.key.lowercase() to it.value.first() }
+            val body =
+                if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    connection.errorStream
+                } else {
+                    connection.inputStream
+                }
+
+            return Response(statusCode, headers, body ?: ByteArrayInputStream(ByteArray(0)))
+        } catch (e: IOException) {
+            // Failed mid-exchange: the socket's state is unknown, so don't return it to the pool
+            connection.disconnect()
+            throw e
+        }
+    }
+
+    /**
+     * Connection reuse counters since this transport was created
+     */
+    fun metrics(): TransportMetrics = TransportMetrics(requestCount.get(), handshakeCount.get())
+
+    private class Response(
+        override val statusCode: Int,
+        override val headers: Map<String, String>,
+        override val body: InputStream,
+    ) : HttpTransportResponse {
+        override fun close() = drainAndClose(body)
+    }
+}
+
+/**
+ * [SSLSocketFactory] that reports each socket it creates; every new socket is one TLS handshake
+ */
+internal class CountingSSLSocketFactory(
+    private val delegate: SSLSocketFactory,
+    private val onSocketCreated: () -> Unit,
+) : SSLSocketFactory() {
+    override fun getDefaultCipherSuites(): Array<String> = delegate.defaultCipherSuites
+
+    override fun getSupportedCipherSuites(): Array<String> = delegate.supportedCipherSuites
+
+    override fun createSocket(): Socket = delegate.createSocket().also { onSocketCreated() }
+
+    override fun createSocket(
+        socket: Socket,
+        host: String,
+        port: Int,
+        autoClose: Boolean,
+    ): Socket = delegate.createSocket(socket, host, port, autoClose).also { onSocketCreated() }
+
+    override fun createSocket(
+        host: String,
+        port: Int,
+    ): Socket = delegate.createSocket(host, port).also { onSocketCreated() }
+
+    override fun createSocket(
+        host: String,
+        port: Int,
+        localHost: InetAddress,
+        localPort: Int,
+    ): Socket = delegate.createSocket(host, port, localHost, localPort).also { onSocketCreated() }
+
+    override fun createSocket(
+        host: InetAddress,
+        port: Int,
+    ): Socket = delegate.createSocket(host, port).also { onSocketCreated() }
+
+    override fun createSocket(
+        address: InetAddress,
+        port: Int,
+        localAddress: InetAddress,
+        localPort: Int,
+    ): Socket = delegate.createSocket(address, port, localAddress, localPort).also { onSocketCreated() }
+}
@@ -1,13 +1,23 @@
 package com.datagrail.consent.network
 
+import com.datagrail.consent.RetryPolicy
+import com.datagrail.consent.TimeoutPolicy
 import com.datagrail.consent.models.ConsentException
 import com.datagrail.consent.utils.ConsentLogger
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.withContext
+import java.io.ByteArrayOutputStream
 import java.io.IOException
+import java.io.InputStream
 import java.net.HttpURLConnection
 import java.net.URL
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import java.util.zip.InflaterInputStream
+import kotlin.coroutines.AbstractCoroutineContextElement
+import kotlin.coroutines.CoroutineContext
+import kotlin.coroutines.cancellation.CancellationException
 import kotlin.math.pow
 import kotlin.random.Random
 
@@ -21,10 +31,85 @@ enum class HTTPMethod(val value: String) {
     DELETE("DELETE"),
 }
 
+/**
+ * HTTP response returned by [NetworkClient.execute] and [NetworkClient.stream]
+ * @property statusCode HTTP status code (2xx, or 304 for conditional requests)
+ * @property headers Response headers keyed by lower-cased name
+ * @property body Response body: text from execute(), decoded value (null for 304) from stream()
+ */
+data class HTTPResponse<T>(
+    val statusCode: Int,
+    val headers: Map<String, String>,
+    val body: T,
+) {
+    /**
+     * Look up a response header by name, ignoring case
+     * @param name The header name
+     * @return The header value, or null if absent
+     */
+    fun header(name: String): String? = headers[name.lowercase()]
+
+    val isNotModified: Boolean
+        get() = statusCode == HttpURLConnection.HTTP_NOT_MODIFIED
+}
+
 /**
  * Network client for making HTTP requests with retry support
+ * @param compressRequestBodies Gzip request bodies before sending them
+ * @param transport Sends requests; the default reuses pooled keep-alive connections of the platform HTTP stack
+ * @param timeoutPolicy Socket timeouts for each request attempt
  */
-class NetworkClient {
+class NetworkClient(
+    private val compressRequestBodies: Boolean = false,
+    private val transport: HttpTransport = HttpUrlConnectionTransport(),
+    private val timeoutPolicy: TimeoutPolicy = TimeoutPolicy.DEFAULT,
+) {
+    // Monotonic clock for retry deadlines; replaced in tests to follow virtual time
+    internal var nanoTime: () -> Long = System::nanoTime
+
+    // Carries a decode failure past the network error mapping below
+    private class DecodeException(override val cause: Exception) : Exception(cause)
+
+    companion object {
+        // Encodings we can decode without extra dependencies; brotli needs a native decoder
+        internal const val ACCEPT_ENCODING = "gzip, deflate"
+
+        // Below this size gzip framing outweighs the savings
+        internal const val MIN_COMPRESSIBLE_BODY_BYTES = 256
+
+        private const val NANOS_PER_MS = 1_000_000L
+
+        /**
+         * Wrap a response stream so it is decompressed while being read
+         * @param stream The raw response stream
+         * @param contentEncoding The Content-Encoding response header
+         * @return A stream yielding the decoded body
+         * @throws ConsentException.NetworkError if the encoding is not supported
+         */
+        internal fun decodedStream(
+            stream: InputStream,
+            contentEncoding: String?,
+        ): InputStream {
+            return when (contentEncoding?.trim()?.lowercase()) {
+                null, "", "identity" -> stream
+                "gzip", "x-gzip" -> GZIPInputStream(stream)
+                "deflate" -> InflaterInputStream(stream)
+                else -> throw ConsentException.NetworkError("Unsupported Content-Encoding: $contentEncoding")
+            }
+        }
+
+        /**
+         * Gzip a request body
+         * @param bytes The uncompressed body
+         * @return The gzip-compressed body
+         */
+        internal fun gzip(bytes: ByteArray): ByteArray {
+            val buffer = ByteArrayOutputStream(bytes.size / 2)
+            GZIPOutputStream(buffer).use { it.write(bytes) }
+            return buffer.toByteArray()
+        }
+    }
+
     /**
      * Make an HTTP request
      * @param url The URL to request
@@ -39,7 +124,47 @@ class NetworkClient {
         method: HTTPMethod = HTTPMethod.GET,
         body: String? = null,
         headers: Map<String, String>? = null,
-    ): String =
+    ): String = execute(url, method, body, headers).body
+
+    /**
+     * Make an HTTP request and return status, headers and body.
+     * A 304 Not Modified response is returned rather than treated as an error.
+     * @param url The URL to request
+     * @param method The HTTP method
+     * @param body Optional request body string
+     * @param headers Optional HTTP headers
+     * @return The HTTP response, with an empty body for 304
+     * @throws ConsentException.NetworkError if the request fails
+     */
+    suspend fun execute(
+        url: String,
+        method: HTTPMethod = HTTPMethod.GET,
+        body: String? = null,
+        headers: Map<String, String>? = null,
+    ): HTTPResponse<String> {
+        val response = stream(url, method, body, headers) { it.bufferedReader().readText() }
+        return HTTPResponse(response.statusCode, response.headers, response.body ?: "")
+    }
+
+    /**
+     * Make an HTTP request and decode the response body directly from the (decompressed) stream,
+     * without first materializing it as a String.
+     * A 304 Not Modified response is returned with a null body rather than treated as an error.
+     * @param url The URL to request
+     * @param method The HTTP method
+     * @param body Optional request body string
+     * @param headers Optional HTTP headers
+     * @param decode Reads the response body; exceptions other than IOException propagate unchanged
+     * @return The HTTP response with the decoded body
+     * @throws ConsentException.NetworkError if the request fails
+     */
+    suspend fun <T> stream(
+        url: String,
+        method: HTTPMethod = HTTPMethod.GET,
+        body: String? = null,
+        headers: Map<String, String>? = null,
+        decode: (InputStream) -> T,
+    ): HTTPResponse<T?> =
         withContext(Dispatchers.IO) {
             ConsentLogger.d("Making ${method.value} request")
             try {
@@ -48,46 +173,73 @@ class NetworkClient {
                     throw ConsentException.NetworkError("Only HTTPS connections are allowed")
                 }
 
-                val connection = parsedUrl.openConnection() as HttpURLConnection
-
-                connection.requestMethod = method.value
-                connection.connectTimeout = 30000
-                connection.readTimeout = 30000
+                // Setting Accept-Encoding ourselves disables transparent gzip, so we decode below
+                val requestHeaders = linkedMapOf("Accept-Encoding" to ACCEPT_ENCODING)
+                headers?.let { requestHeaders.putAll(it) }
 
-                // Set headers
-                headers?.forEach { (key, value) ->
-                    connection.setRequestProperty(key, value)
+                var bodyBytes: ByteArray? = null
+                if (body != null) {
+                    // Set default content type for POST/PUT
+                    if (requestHeaders.keys.none { it.equals("Content-Type", ignoreCase = true) }) {
+                        requestHeaders["Content-Type"] = "application/json"
+                    }
+                    bodyBytes = body.toByteArray(Charsets.UTF_8)
+                    if (compressRequestBodies && bodyBytes.size >= MIN_COMPRESSIBLE_BODY_BYTES) {
+                        bodyBytes = gzip(bodyBytes)
+                        requestHeaders["Content-Encoding"] = "gzip"
+                    }
                 }
 
-                // Set default content type for POST/PUT
-                if (body != null && connection.getRequestProperty("Content-Type") == null) {
-                    connection.setRequestProperty("Content-Type", "application/json")
+                // Never let one attempt's socket timeouts run past the retry deadline
+                val remainingMs = coroutineContext[RetryDeadline]?.remainingMs(nanoTime())
+                if (remainingMs != null && remainingMs <= 0) {
+                    throw ConsentException.NetworkError("Retry deadline exceeded")
                 }
+                val request =
+                    HttpTransportRequest(
+                        url = url,
+                        method = method.value,
+                        headers = requestHeaders,
+                        body = bodyBytes,
+                        connectTimeoutMs = minOf(timeoutPolicy.connectTimeoutMs, remainingMs ?: Int.MAX_VALUE),
+                        readTimeoutMs = minOf(timeoutPolicy.readTimeoutMs, remainingMs ?: Int.MAX_VALUE),
+                    )
 
-                // Write body if present
-                if (body != null) {
-                    connection.doOutput = true
-                    connection.outputStream.use { outputStream ->
-                        outputStream.write(body.toByteArray(Charsets.UTF_8))
-                    }
-                }
+                // Closing the response drains any unread body so the connection can be reused
+                transport.execute(request).use { response ->
+                    val responseCode = response.statusCode
+                    ConsentLogger.d("Response code: $responseCode")
 
-                val responseCode = connection.responseCode
-                ConsentLogger.d("Response code: $responseCode")
+                    if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        ConsentLogger.d("Resource not modified")
+                        return@withContext HTTPResponse<T?>(responseCode, response.headers, null)
+                    }
 
-                if (responseCode !in 200..299) {
-                    // Read error stream but do not log its contents
-                    try {
-                        connection.errorStream?.bufferedReader()?.use { it.readText() }
-                    } catch (_: Exception) {
+                    if (responseCode !in 200..299) {
+                        // The error body is drained on close but never logged
+                        ConsentLogger.e("HTTP error $responseCode")
+                        throw ConsentException.NetworkError("HTTP $responseCode", statusCode = responseCode)
                     }
-                    ConsentLogger.e("HTTP error $responseCode")
-                    throw ConsentException.NetworkError("HTTP $responseCode")
-                }
 
-                val responseBody = connection.inputStream.bufferedReader().use { it.readText() }
-                ConsentLogger.d("Response received successfully")
-                responseBody
+                    // Decompress while reading so the compressed payload is never buffered separately
+                    val decoded = decodedStream(response.body, response.headers["content-encoding"])
+                    val responseBody =
+                        try {
+                            decode(decoded)
+                        } catch (e: IOException) {
+                            throw e
+                        } catch (e: Exception) {
+                            throw DecodeException(e)
+                        } finally {
+                            // Read to the end (e.g. past a gzip trailer) before the transport drains the raw body
+                            drainAndClose(decoded)
+                        }
+                    ConsentLogger.d("Response received successfully")
+                    HTTPResponse<T?>(responseCode, response.headers, responseBody)
+                }
+            } catch (e: DecodeException) {
+                // Not a network failure; let the caller handle its own decode error
+                throw e.cause
             } catch (e: ConsentException) {
                 ConsentLogger.e("Request failed: ${e.javaClass.simpleName}")
                 throw e
@@ -106,33 +258,67 @@ class NetworkClient {
      * @param baseDelayMs Base delay in milliseconds (default: 250)
      * @param operation The suspend operation to retry
      * @return The result of the operation
-     * @throws The last error if all attempts fail
+     * @throws The last error if all attempts fail or it is not retryable
      */
     suspend fun <T> retryWithBackoff(
         maxAttempts: Int = 5,
         baseDelayMs: Long = 250,
         operation: suspend () -> T,
     ): T {
+        val policy = RetryPolicy.Builder().maxAttempts(maxAttempts).baseDelayMs(baseDelayMs).build()
+        return retryWithPolicy(policy, operation = operation)
+    }
+
+    /**
+     * Retry an operation as described by a [RetryPolicy].
+     * With a deadline, requests made by the operation shorten their socket timeouts to the time left,
+     * and no retry is started if its backoff delay would end past the deadline. The deadline is not
+     * enforced on a request already in flight, so a slow body or DNS lookup can overrun it.
+     * @param policy Attempt limit, backoff, deadline and retry classification
+     * @param onAttempt Called with the attempt number (starting at 1) before each attempt
+     * @param operation The suspend operation to retry
+     * @return The result of the operation
+     * @throws The last error if attempts are exhausted, the deadline is reached, or it is not retryable
+     */
+    suspend fun <T> retryWithPolicy(
+        policy: RetryPolicy,
+        onAttempt: ((attempt: Int) -> Unit)? = null,
+        operation: suspend () -> T,
+    ): T {
+        val deadline = policy.deadlineMs?.let { RetryDeadline(nanoTime() + it * NANOS_PER_MS) }
         var attempt = 1
-        var lastException: Exception? = null
 
-        while (attempt <= maxAttempts) {
+        while (true) {
+            onAttempt?.invoke(attempt)
             try {
-                return operation()
+                return if (deadline != null) withContext(deadline) { operation() } else operation()
+            } catch (e: CancellationException) {
+                throw e
             } catch (e: Exception) {
-                lastException = e
-
-                if (attempt >= maxAttempts) {
+                if (attempt >= policy.maxAttempts || !policy.isRetryable(e)) {
                     throw e
                 }
 
-                val baseDelay = (baseDelayMs * 2.0.pow(attempt.toDouble())).toLong()
+                val baseDelay = (policy.baseDelayMs * 2.0.pow(attempt.toDouble())).toLong()
                 val jitter = (baseDelay * Random.nextDouble(0.0, 0.25)).toLong()
+                if (deadline != null && deadline.remainingMs(nanoTime()) <= baseDelay + jitter) {
+                    ConsentLogger.w("Retry deadline reached after $attempt attempts")
+                    throw e
+                }
                 delay(baseDelay + jitter)
                 attempt++
             }
         }
+    }
+
+    /**
+     * Deadline of the retry loop an operation runs in, carried in the coroutine context so requests
+     * made anywhere inside the operation can honour it
+     */
+    private class RetryDeadline(private val deadlineNanos: Long) : AbstractCoroutineContextElement(RetryDeadline) {
+        companion object Key : CoroutineContext.Key<RetryDeadline>
 
-        throw lastException ?: ConsentException.NetworkError("Retry failed")
+        fun remainingMs(nowNanos: Long): Int =
+            ((deadlineNanos - nowNanos) / NANOS_PER_MS).coerceIn(0, Int.MAX_VALUE.toLong()).toInt()
     }
 }
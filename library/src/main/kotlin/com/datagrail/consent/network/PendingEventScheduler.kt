@@ -0,0 +1,88 @@
+package com.datagrail.consent.network
+
+import com.datagrail.consent.utils.ConsentLogger
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.launch
+import kotlin.random.Random
+
+/**
+ * Drains the pending event queue whenever the device is online.
+ *
+ * Each time connectivity returns (and once on start, if online) a drain cycle runs. While a cycle
+ * leaves events queued, the next one waits with exponential backoff and jitter, from
+ * [baseBackoffMs] up to [maxBackoffMs]. Losing connectivity cancels the wait, and regaining it
+ * starts a fresh cycle with the backoff reset. Nothing runs while offline.
+ *
+ * Cycles never overlap; each one is bounded by the upload concurrency of [drain].
+ * @param drain Uploads pending events, returning (successCount, failureCount)
+ */
+internal class PendingEventScheduler(
+    private val connectivity: ConnectivityMonitor,
+    private val drain: suspend () -> Pair<Int, Int>,
+    private val baseBackoffMs: Long = DEFAULT_BASE_BACKOFF_MS,
+    private val maxBackoffMs: Long = DEFAULT_MAX_BACKOFF_MS,
+    private val random: Random = Random.Default,
+    dispatcher: CoroutineDispatcher = Dispatchers.IO,
+) {
+    companion object {
+        internal const val DEFAULT_BASE_BACKOFF_MS = 30_000L
+        internal const val DEFAULT_MAX_BACKOFF_MS = 15 * 60_000L
+    }
+
+    private val scope = CoroutineScope(SupervisorJob() + dispatcher)
+    private var started = false
+
+    /**
+     * Start following connectivity; does nothing if already started
+     */
+    @Synchronized
+    fun start() {
+        if (started) return
+        started = true
+        scope.launch {
+            // collectLatest cancels a backoff wait as soon as connectivity changes
+            connectivity.observe().collectLatest { online ->
+                if (online) {
+                    drainWithBackoff()
+                } else {
+                    ConsentLogger.d("Offline, pending event retries paused")
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop scheduling drain cycles, cancelling any in progress
+     */
+    fun stop() {
+        scope.cancel()
+    }
+
+    private suspend fun drainWithBackoff() {
+        var backoffMs = baseBackoffMs
+        while (true) {
+            val (successCount, failureCount) =
+                try {
+                    drain()
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    ConsentLogger.w("Pending event drain failed: ${e.javaClass.simpleName}")
+                    Pair(0, 1)
+                }
+            if (failureCount == 0) return
+
+            val jitterMs = (backoffMs * random.nextDouble(0.0, 0.25)).toLong()
+            ConsentLogger.d("$successCount sent, $failureCount still pending; next retry in ${backoffMs + jitterMs}ms")
+            delay(backoffMs + jitterMs)
+            backoffMs = (backoffMs * 2).coerceAtMost(maxBackoffMs)
+        }
+    }
+}
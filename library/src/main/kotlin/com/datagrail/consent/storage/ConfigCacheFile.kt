@@ -0,0 +1,287 @@
+package com.datagrail.consent.storage
+
+import com.datagrail.consent.models.ConfigHeader
+import com.datagrail.consent.models.ConsentConfig
+import com.datagrail.consent.models.LazyConfig
+import com.datagrail.consent.utils.ConsentLogger
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.cbor.Cbor
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import javax.crypto.Cipher
+import javax.crypto.SecretKey
+import javax.crypto.spec.GCMParameterSpec
+
+/**
+ * Encrypted binary cache file for the consent configuration.
+ *
+ * File layout:
+ * ```
+ * magic "DGCC" (4) | format version (1) | etag (2-byte length + UTF-8) | last-modified (2-byte length + UTF-8) |
+ * content hash (2-byte length + UTF-8) | locale (2-byte length + UTF-8) | iv length (1) | iv |
+ * AES-GCM ciphertext of (config header length (4) | CBOR config header | CBOR layout)
+ * ```
+ * The header before the iv is authenticated as associated data, so the HTTP validators, content hash and
+ * the locale the config was pruned for can be read without decrypting the body but cannot be altered
+ * without failing decryption. Since they share one file write with the body, they always describe it.
+ * The config header and layout are encoded separately so a read can decode the header alone and
+ * defer the layout, which holds nearly all of the config, until it is used.
+ * Writes go to a temporary file that is synced and renamed over the cache, so readers never see a partial file.
+ */
+@OptIn(ExperimentalSerializationApi::class)
+internal class ConfigCacheFile(
+    private val file: File,
+    private val keyProvider: () -> SecretKey,
+) {
+    /**
+     * HTTP validators and response body hash the cached config was served with, and the locale its
+     * translations were pruned to (null if unpruned)
+     */
+    data class Validators(
+        val etag: String?,
+        val lastModified: String?,
+        val contentHash: String? = null,
+        val locale: String? = null,
+    )
+
+    companion object {
+        internal const val FILE_NAME = "datagrail_consent_config.cache"
+        private const val MAGIC = 0x44474343 // "DGCC"
+        private const val FORMAT_VERSION: Byte = 1
+        private const val TRANSFORMATION = "AES/GCM/NoPadding"
+        private const val GCM_TAG_BITS = 128
+        private const val NO_FIELD: Short = -1
+
+        private val NO_VALIDATORS = Validators(null, null)
+
+        private val cbor = Cbor { ignoreUnknownKeys = true }
+    }
+
+    private val tempFile = File(file.parentFile, "${file.name}.tmp")
+
+    // Header of the current file, read at most once per process; null until first read or write
+    @Volatile
+    private var cachedValidators: Validators? = null
+
+    /**
+     * Encrypt and atomically write the configuration
+     * @param config The configuration to cache; an already encoded layout is written as is
+     * @param etag ETag response header, if any
+     * @param lastModified Last-Modified response header, if any
+     * @param contentHash Hash of the response body the config was decoded from, if known
+     * @param locale Locale the config's translations were pruned to, or null if unpruned
+     * @throws IOException if the file cannot be written
+     */
+    @Synchronized
+    fun write(
+        config: LazyConfig,
+        etag: String?,
+        lastModified: String?,
+        contentHash: String? = null,
+        locale: String? = null,
+    ) {
+        val validators =
+            Validators(
+                etag.takeIfEncodable(),
+                lastModified.takeIfEncodable(),
+                contentHash.takeIfEncodable(),
+                locale.takeIfEncodable(),
+            )
+        val header = encodeHeader(validators)
+
+        val cipher = Cipher.getInstance(TRANSFORMATION)
+        cipher.init(Cipher.ENCRYPT_MODE, keyProvider())
+        cipher.updateAAD(header)
+        val ciphertext = cipher.doFinal(encodeConfig(config))
+        val iv = cipher.iv
+
+        file.parentFile?.mkdirs()
+        FileOutputStream(tempFile).use { output ->
+            output.write(header)
+            output.write(iv.size)
+            output.write(iv)
+            output.write(ciphertext)
+            output.fd.sync()
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete()
+            throw IOException("Failed to replace config cache file")
+        }
+
+        cachedValidators = validators
+    }
+
+    /**
+     * Read and decrypt the cached configuration via a memory-mapped view of the file
+     * @return The cached configuration, or null if none exists or it cannot be decrypted
+     */
+    fun read(): ConsentConfig? {
+        return readLazy()?.config
+    }
+
+    /**
+     * Read and decrypt the cached configuration, decoding only its header.
+     * The layout stays encoded until first accessed; if it then fails to decode, the cache is deleted
+     * and the error is rethrown.
+     * @return The cached configuration, or null if none exists or it cannot be decrypted
+     */
+    fun readLazy(): LazyConfig? {
+        if (!file.exists()) return null
+
+        return try {
+            FileInputStream(file).use { input ->
+                val channel = input.channel
+                val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+
+                val validators = decodeHeader(buffer) ?: throw IOException("Unrecognized config cache header")
+                val aad = buffer.duplicate()
+                aad.flip()
+
+                val iv = ByteArray(buffer.get().toInt() and 0xFF)
+                buffer.get(iv)
+
+                val cipher = Cipher.getInstance(TRANSFORMATION)
+                cipher.init(Cipher.DECRYPT_MODE, keyProvider(), GCMParameterSpec(GCM_TAG_BITS, iv))
+                cipher.updateAAD(aad)
+                val plaintext = ByteBuffer.allocate(cipher.getOutputSize(buffer.remaining()))
+                cipher.doFinal(buffer, plaintext)
+                plaintext.flip()
+
+                val config = decodeConfig(plaintext)
+                cachedValidators = validators
+                config
+            }
+        } catch (e: Exception) {
+            // Corrupt, truncated, or encrypted with a key we no longer have
+            ConsentLogger.w("Discarding unreadable config cache: ${e.javaClass.simpleName}")
+            delete()
+            null
+        }
+    }
+
+    /**
+     * Read the HTTP validators, content hash and locale from the file header without decrypting the config
+     * @return The validators, with null fields if there is no cache
+     */
+    fun readValidators(): Validators {
+        cachedValidators?.let { return it }
+        if (!file.exists()) return NO_VALIDATORS
+
+        val validators =
+            try {
+                FileInputStream(file).use { input ->
+                    val channel = input.channel
+                    decodeHeader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+                }
+            } catch (e: Exception) {
+                null
+            } ?: NO_VALIDATORS
+
+        cachedValidators = validators
+        return validators
+    }
+
+    /**
+     * Check whether a cache file exists
+     */
+    fun exists(): Boolean = file.exists()
+
+    /**
+     * Delete the cache file
+     */
+    @Synchronized
+    fun delete() {
+        file.delete()
+        tempFile.delete()
+        cachedValidators = NO_VALIDATORS
+    }
+
+    // MARK: - Config Sections
+
+    private fun encodeConfig(config: LazyConfig): ByteArray {
+        val header = cbor.encodeToByteArray(ConfigHeader.serializer(), config.header)
+        val layout = config.encodedLayout ?: LazyConfig.encodeLayout(config.readLayout())
+        return ByteBuffer.allocate(4 + header.size + layout.size)
+            .putInt(header.size)
+            .put(header)
+            .put(layout)
+            .array()
+    }
+
+    /**
+     * Decode the config header now and keep the layout bytes for decoding on first use
+     * @param plaintext Decrypted sections, positioned at the header length
+     * @return The lazily decoded config
+     */
+    private fun decodeConfig(plaintext: ByteBuffer): LazyConfig {
+        val headerBytes = ByteArray(plaintext.getInt())
+        plaintext.get(headerBytes)
+        val header = cbor.decodeFromByteArray(ConfigHeader.serializer(), headerBytes)
+
+        // Only the encoded layout is retained; it is much smaller than the decoded object graph
+        val layoutBytes = ByteArray(plaintext.remaining())
+        plaintext.get(layoutBytes)
+        return LazyConfig.encoded(header, layoutBytes) { e ->
+            ConsentLogger.w("Discarding config cache with unreadable layout: ${e.javaClass.simpleName}")
+            delete()
+        }
+    }
+
+    // MARK: - Header
+
+    private fun encodeHeader(validators: Validators): ByteArray {
+        val etag = validators.etag?.toByteArray(Charsets.UTF_8)
+        val lastModified = validators.lastModified?.toByteArray(Charsets.UTF_8)
+        val contentHash = validators.contentHash?.toByteArray(Charsets.UTF_8)
+        val locale = validators.locale?.toByteArray(Charsets.UTF_8)
+        val size =
+            4 + 1 + 2 + (etag?.size ?: 0) + 2 + (lastModified?.size ?: 0) + 2 + (contentHash?.size ?: 0) +
+                2 + (locale?.size ?: 0)
+
+        val header = ByteBuffer.allocate(size)
+        header.putInt(MAGIC)
+        header.put(FORMAT_VERSION)
+        putField(header, etag)
+        putField(header, lastModified)
+        putField(header, contentHash)
+        putField(header, locale)
+        return header.array()
+    }
+
+    /**
+     * Decode the header, leaving the buffer positioned just after it
+     * @return The validators, or null if the header is not recognized
+     */
+    private fun decodeHeader(buffer: ByteBuffer): Validators? {
+        if (buffer.remaining() < 5 || buffer.getInt() != MAGIC || buffer.get() != FORMAT_VERSION) return null
+        return Validators(getField(buffer), getField(buffer), getField(buffer), getField(buffer))
+    }
+
+    private fun putField(
+        buffer: ByteBuffer,
+        bytes: ByteArray?,
+    ) {
+        if (bytes == null) {
+            buffer.putShort(NO_FIELD)
+        } else {
+            buffer.putShort(bytes.size.toShort())
+            buffer.put(bytes)
+        }
+    }
+
+    private fun getField(buffer: ByteBuffer): String? {
+        val length = buffer.getShort()
+        if (length == NO_FIELD) return null
+
+        val bytes = ByteArray(length.toInt())
+        buffer.get(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    private fun String?.takeIfEncodable(): String? =
+        this?.takeIf { it.toByteArray(Charsets.UTF_8).size <= Short.MAX_VALUE }
+}
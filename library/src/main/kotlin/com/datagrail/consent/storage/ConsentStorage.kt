@@ -4,18 +4,38 @@ import android.content.Context
 import android.content.SharedPreferences
 import androidx.security.crypto.EncryptedSharedPreferences
 import androidx.security.crypto.MasterKeys
+import com.datagrail.consent.models.CategoryTable
+import com.datagrail.consent.models.ConsentBits
 import com.datagrail.consent.models.ConsentConfig
 import com.datagrail.consent.models.ConsentException
 import com.datagrail.consent.models.ConsentPreferences
-import kotlinx.serialization.encodeToString
+import com.datagrail.consent.models.LazyConfig
+import com.datagrail.consent.utils.ConfigValidator
+import com.datagrail.consent.utils.ConsentLogger
 import kotlinx.serialization.json.Json
+import java.io.File
+import java.io.IOException
 import java.util.UUID
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+import javax.crypto.spec.SecretKeySpec
+import kotlin.io.encoding.Base64
+import kotlin.io.encoding.ExperimentalEncodingApi
 
 /**
  * Handles local storage of consent data using EncryptedSharedPreferences.
+ *
+ * Data is split across independently persisted stores so a write only rewrites what changed:
+ * - [prefs]: small, hot consent state (preferences, unique ID, version, locale) and file data keys
+ * - [ConfigCacheFile]: the encrypted configuration cache
+ * - [EventQueueFile]: the append-only pending event queue, opened on first use
+ *
  * This class is internal to the SDK — consumers should not instantiate it directly.
  */
-internal class ConsentStorage(private val prefs: SharedPreferences) {
+internal class ConsentStorage(
+    private val prefs: SharedPreferences,
+    cacheDir: File,
+) {
     private val json =
         Json {
             ignoreUnknownKeys = true
@@ -24,12 +44,27 @@ internal class ConsentStorage(private val prefs: SharedPreferences) {
 
     companion object {
         internal const val PREFS_NAME = "com.datagrail.consent.prefs"
-        private const val KEY_PREFERENCES = "datagrail_consent_preferences"
+        private const val KEY_PREFERENCES_BITS = "datagrail_consent_preferences_bits"
+        private const val KEY_CATEGORY_TABLE = "datagrail_consent_category_table"
         private const val KEY_UNIQUE_ID = "datagrail_consent_id"
         private const val KEY_VERSION = "datagrail_consent_version"
         private const val KEY_LOCALE_CODE = "datagrail_consent_locale_code"
-        private const val KEY_CONFIG_CACHE = "datagrail_consent_config_cache"
-        private const val KEY_PENDING_EVENTS = "datagrail_consent_pending_events"
+        private const val KEY_CONFIG_CACHE_KEY = "datagrail_consent_config_cache_key"
+        private const val KEY_EVENT_QUEUE_KEY = "datagrail_consent_event_queue_key"
+
+        // JSON preferences read by earlier SDK versions, still written alongside the binary encoding
+        private const val LEGACY_KEY_PREFERENCES = "datagrail_consent_preferences"
+
+        // Config cache keys from before the binary cache file, removed on migration
+        private const val LEGACY_KEY_CONFIG_CACHE = "datagrail_consent_config_cache"
+        private const val LEGACY_KEY_CONFIG_ETAG = "datagrail_consent_config_etag"
+        private const val LEGACY_KEY_CONFIG_LAST_MODIFIED = "datagrail_consent_config_last_modified"
+
+        // Pending event list from before the event queue file, removed on migration
+        private const val LEGACY_KEY_PENDING_EVENTS = "datagrail_consent_pending_events"
+
+        private const val FILE_KEY_BITS = 256
+        internal const val MAX_PENDING_EVENTS = 100
 
         /**
          * Create a ConsentStorage backed by EncryptedSharedPreferences
@@ -49,7 +84,7 @@ internal class ConsentStorage(private val prefs: SharedPreferences) {
                         EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
                         EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM,
                     )
-                ConsentStorage(encryptedPrefs)
+                ConsentStorage(encryptedPrefs, appContext.noBackupFilesDir)
             } catch (e: Exception) {
                 throw ConsentException.InvalidConfiguration(
                     "Failed to initialize encrypted storage",
@@ -59,6 +94,10 @@ internal class ConsentStorage(private val prefs: SharedPreferences) {
         }
     }
 
+    // Category table the stored preferences bits refer to, once read or written
+    @Volatile
+    private var categoryTable: CategoryTable? = null
+
     // MARK: - Preferences
 
     /**
@@ -67,22 +106,130 @@ internal class ConsentStorage(private val prefs: SharedPreferences) {
      * @throws ConsentException.StorageError if encoding fails
      */
     fun savePreferences(preferences: ConsentPreferences) {
+        val editor = prefs.edit()
+        putPreferences(editor, preferences, loadConfigVersion().orEmpty(), null)
+        editor.apply()
+    }
+
+    /**
+     * Record a consent decision with a single editor commit: the preferences, the config version
+     * they were given for, and a new unique identifier if none exists yet
+     * @param preferences The consent preferences to save
+     * @param configVersion Version of the config the preferences were given for
+     * @param table Category indices of that config; the preferences are stored as bits over it
+     * @return The unique identifier the decision is recorded under
+     * @throws ConsentException.StorageError if encoding fails
+     */
+    fun saveConsent(
+        preferences: ConsentPreferences,
+        configVersion: String,
+        table: CategoryTable? = null,
+    ): String {
+        val editor = prefs.edit()
+        putPreferences(editor, preferences, configVersion, table)
+        editor.putString(KEY_VERSION, configVersion)
+        val uniqueId =
+            prefs.getString(KEY_UNIQUE_ID, null)
+                ?: UUID.randomUUID().toString().also { editor.putString(KEY_UNIQUE_ID, it) }
+        editor.apply()
+        return uniqueId
+    }
+
+    /**
+     * Load consent preferences from local storage.
+     * Preferences in the JSON form of earlier SDK versions take precedence and are migrated to bits: this
+     * SDK removes the JSON whenever it saves, so JSON is only present if an earlier version saved last,
+     * e.g. before an upgrade or after a downgrade, and any bits next to it are older.
+     * @return The stored preferences, or null if none exist
+     */
+    @OptIn(ExperimentalEncodingApi::class)
+    fun loadPreferences(): ConsentPreferences? {
+        prefs.getString(LEGACY_KEY_PREFERENCES, null)?.let { jsonString ->
+            migrateLegacyPreferences(jsonString)?.let { return it }
+        }
+
+        val encoded = prefs.getString(KEY_PREFERENCES_BITS, null) ?: return null
+        return try {
+            ConsentBits.decode(Base64.decode(encoded)) { version ->
+                loadCategoryTable()?.takeIf { it.version == version }
+            }.toPreferences()
+        } catch (e: Exception) {
+            null
+        }
+    }
+
+    /**
+     * Replace preferences saved as JSON by an earlier SDK version with their bits, in one write
+     * @param jsonString The stored JSON
+     * @return The migrated preferences, or null if the JSON cannot be decoded (it is removed either way)
+     */
+    private fun migrateLegacyPreferences(jsonString: String): ConsentPreferences? {
+        val preferences =
+            try {
+                json.decodeFromString<ConsentPreferences>(jsonString)
+            } catch (e: Exception) {
+                null
+            }
+
+        val editor = prefs.edit().remove(LEGACY_KEY_PREFERENCES)
         try {
-            val jsonString = json.encodeToString(preferences)
-            prefs.edit().putString(KEY_PREFERENCES, jsonString).apply()
+            if (preferences != null) putPreferences(editor, preferences, loadConfigVersion().orEmpty(), null)
+        } catch (e: ConsentException.StorageError) {
+            ConsentLogger.w("Failed to migrate preferences: ${e.message}")
+            return preferences
+        }
+        editor.apply()
+        return preferences
+    }
+
+    /**
+     * Add the preferences to an editor as Base64 of their [ConsentBits] binary form, removing any JSON form
+     * of earlier SDK versions. Over a config table only the version and bitmask words are stored, and the
+     * table itself is written once per config version; without one the bits embed their own key list.
+     * @param editor The editor to add to
+     * @param preferences The consent preferences to encode
+     * @param configVersion Version the preferences were given for
+     * @param table Category indices of that config, if loaded
+     * @throws ConsentException.StorageError if encoding fails
+     */
+    @OptIn(ExperimentalEncodingApi::class)
+    private fun putPreferences(
+        editor: SharedPreferences.Editor,
+        preferences: ConsentPreferences,
+        configVersion: String,
+        table: CategoryTable?,
+    ) {
+        val configTable = table?.takeIf { it.version == configVersion }
+        try {
+            if (configTable != null) {
+                val bits = ConsentBits.of(preferences, configTable)
+                val stored = loadCategoryTable()
+                if (stored == null || !stored.sameAs(configTable)) {
+                    editor.putString(KEY_CATEGORY_TABLE, Base64.encode(configTable.encode()))
+                    categoryTable = configTable
+                }
+                editor.putString(KEY_PREFERENCES_BITS, Base64.encode(bits.encode(embedTable = false)))
+            } else {
+                val bits = ConsentBits.of(preferences, configVersion)
+                editor.putString(KEY_PREFERENCES_BITS, Base64.encode(bits.encode()))
+            }
+            // JSON left behind would be taken for a newer decision by loadPreferences
+            editor.remove(LEGACY_KEY_PREFERENCES)
         } catch (e: Exception) {
             throw ConsentException.StorageError("Failed to encode preferences: ${e.message}", e)
         }
     }
 
     /**
-     * Load consent preferences from local storage
-     * @return The stored preferences, or null if none exist
+     * Load the category table stored bitmasks refer to, caching it after the first read
+     * @return The table, or null if none is stored or it cannot be decoded
      */
-    fun loadPreferences(): ConsentPreferences? {
-        val jsonString = prefs.getString(KEY_PREFERENCES, null) ?: return null
+    @OptIn(ExperimentalEncodingApi::class)
+    private fun loadCategoryTable(): CategoryTable? {
+        categoryTable?.let { return it }
+        val encoded = prefs.getString(KEY_CATEGORY_TABLE, null) ?: return null
         return try {
-            json.decodeFromString<ConsentPreferences>(jsonString)
+            CategoryTable.decode(Base64.decode(encoded)).also { categoryTable = it }
         } catch (e: Exception) {
             null
         }
@@ -149,62 +296,235 @@ internal class ConsentStorage(private val prefs: SharedPreferences) {
 
     // MARK: - Config Cache
 
+    private val configCache =
+        ConfigCacheFile(File(cacheDir, ConfigCacheFile.FILE_NAME)) { fileKey(KEY_CONFIG_CACHE_KEY) }
+
     /**
-     * Save configuration to cache
+     * Save configuration to cache along with the HTTP validators it was served with.
+     * Only validated configs are cached, so a cached layout is not re-validated when it is decoded.
      * @param config The configuration to cache
-     * @throws ConsentException.StorageError if encoding fails
+     * @param etag ETag response header, if any
+     * @param lastModified Last-Modified response header, if any
+     * @param contentHash Hash of the validated response body the config was decoded from, if known
+     * @param locale Locale the config's translations were pruned to, or null if unpruned
+     * @throws ConsentException.StorageError if encoding or writing fails
      */
-    fun saveConfigCache(config: ConsentConfig) {
+    fun saveConfigCache(
+        config: LazyConfig,
+        etag: String? = null,
+        lastModified: String? = null,
+        contentHash: String? = null,
+        locale: String? = null,
+    ) {
         try {
-            val jsonString = json.encodeToString(config)
-            prefs.edit().putString(KEY_CONFIG_CACHE, jsonString).apply()
+            configCache.write(config, etag, lastModified, contentHash, locale)
         } catch (e: Exception) {
-            throw ConsentException.StorageError("Failed to encode config: ${e.message}", e)
+            throw ConsentException.StorageError("Failed to write config cache: ${e.message}", e)
         }
     }
 
     /**
-     * Load cached configuration
+     * Load cached configuration, decoding its layout only when first accessed
      * @return The cached config, or null if none exists
      */
-    fun loadConfigCache(): ConsentConfig? {
-        val jsonString = prefs.getString(KEY_CONFIG_CACHE, null) ?: return null
-        return try {
-            json.decodeFromString<ConsentConfig>(jsonString)
-        } catch (e: Exception) {
-            null
+    fun loadConfigCache(): LazyConfig? {
+        return configCache.readLazy() ?: migrateLegacyConfigCache()
+    }
+
+    /**
+     * Load the ETag of the cached configuration
+     * @return The ETag, or null if none stored
+     */
+    fun loadConfigETag(): String? {
+        return configCache.readValidators().etag
+    }
+
+    /**
+     * Load the Last-Modified value of the cached configuration
+     * @return The Last-Modified value, or null if none stored
+     */
+    fun loadConfigLastModified(): String? {
+        return configCache.readValidators().lastModified
+    }
+
+    /**
+     * Load the hash of the response body the cached configuration was decoded from
+     * @return The hash, or null if none stored
+     */
+    fun loadConfigContentHash(): String? {
+        return configCache.readValidators().contentHash
+    }
+
+    /**
+     * Load the locale the cached configuration's translations were pruned to
+     * @return The locale, or null if the cache is unpruned or none exists
+     */
+    fun loadConfigCacheLocale(): String? {
+        return configCache.readValidators().locale
+    }
+
+    /**
+     * Move a config cached as JSON in preferences by earlier versions into the cache file
+     * @return The migrated config, or null if there was nothing to migrate
+     */
+    private fun migrateLegacyConfigCache(): LazyConfig? {
+        val jsonString = prefs.getString(LEGACY_KEY_CONFIG_CACHE, null) ?: return null
+        val config =
+            try {
+                json.decodeFromString<ConsentConfig>(jsonString)
+                    .also(ConfigValidator::validate)
+                    .let(LazyConfig::compact)
+            } catch (e: Exception) {
+                null
+            }
+
+        prefs.edit()
+            .remove(LEGACY_KEY_CONFIG_CACHE)
+            .remove(LEGACY_KEY_CONFIG_ETAG)
+            .remove(LEGACY_KEY_CONFIG_LAST_MODIFIED)
+            .apply()
+
+        // Validators are dropped so the next fetch is unconditional
+        if (config != null) {
+            try {
+                configCache.write(config, null, null)
+            } catch (e: Exception) {
+                ConsentLogger.w("Failed to migrate config cache: ${e.javaClass.simpleName}")
+            }
         }
+        return config
     }
 
     // MARK: - Pending Events
 
+    private val eventQueue =
+        EventQueueFile(File(cacheDir, EventQueueFile.FILE_NAME), MAX_PENDING_EVENTS) { fileKey(KEY_EVENT_QUEUE_KEY) }
+
+    // Guards the one-time legacy queue migration; never held while taking the storage lock for file keys
+    private val migrationLock = Any()
+
+    @Volatile
+    private var legacyEventsMigrated = false
+
     /**
-     * Save pending events queue
-     * @param events List of event JSON strings to save
-     * @throws ConsentException.StorageError if encoding fails
+     * Append an event to the pending queue, dropping the oldest beyond [MAX_PENDING_EVENTS].
+     * Queued events the new one supersedes are coalesced into it (see [PendingEventCoalescer]).
+     * @param event The event to queue
+     * @throws ConsentException.StorageError if the queue cannot be written
      */
-    fun savePendingEvents(events: List<String>) {
+    fun appendPendingEvent(event: PendingEvent) {
         try {
-            val jsonString = json.encodeToString(events)
-            prefs.edit().putString(KEY_PENDING_EVENTS, jsonString).apply()
+            migrateLegacyPendingEvents()
+            // Hold the queue lock so no other append lands between reading and merging
+            synchronized(eventQueue) {
+                val (merged, supersededIds) = PendingEventCoalescer.merge(eventQueue.entries(), event)
+                eventQueue.append(listOf(merged), supersededIds)
+            }
         } catch (e: Exception) {
-            throw ConsentException.StorageError("Failed to encode events: ${e.message}", e)
+            throw ConsentException.StorageError("Failed to queue event: ${e.message}", e)
         }
     }
 
     /**
-     * Load pending events queue
-     * @return List of pending event JSON strings, or empty list if none
+     * Load the pending event queue
+     * @return Pending events, oldest first, or empty list if none
      */
-    fun loadPendingEvents(): List<String> {
-        val jsonString = prefs.getString(KEY_PENDING_EVENTS, null) ?: return emptyList()
+    fun loadPendingEvents(): List<EventQueueFile.Entry> {
         return try {
-            json.decodeFromString<List<String>>(jsonString)
+            migrateLegacyPendingEvents()
+            eventQueue.entries()
         } catch (e: Exception) {
             emptyList()
         }
     }
 
+    /**
+     * Remove delivered events from the pending queue in one batch
+     * @param ids Ids of the delivered entries
+     * @throws ConsentException.StorageError if the queue cannot be written
+     */
+    fun removePendingEvents(ids: Collection<Long>) {
+        if (ids.isEmpty()) return
+        try {
+            eventQueue.remove(ids)
+        } catch (e: Exception) {
+            throw ConsentException.StorageError("Failed to update event queue: ${e.message}", e)
+        }
+    }
+
+    /**
+     * Replace queued entries with a single event in one write, e.g. the part of a coalesced event
+     * that is still unsent
+     * @param ids Ids of the entries to replace
+     * @param event The event to queue in their place
+     * @throws ConsentException.StorageError if the queue cannot be written
+     */
+    fun replacePendingEvents(
+        ids: Collection<Long>,
+        event: PendingEvent,
+    ) {
+        try {
+            synchronized(eventQueue) { eventQueue.append(listOf(event), ids) }
+        } catch (e: Exception) {
+            throw ConsentException.StorageError("Failed to update event queue: ${e.message}", e)
+        }
+    }
+
+    /**
+     * Move a JSON event list stored in preferences by earlier versions into the event queue file
+     */
+    private fun migrateLegacyPendingEvents() {
+        if (legacyEventsMigrated) return
+        synchronized(migrationLock) {
+            if (legacyEventsMigrated) return
+            val jsonString = prefs.getString(LEGACY_KEY_PENDING_EVENTS, null)
+            if (jsonString != null) {
+                val events =
+                    try {
+                        json.decodeFromString<List<String>>(jsonString).mapNotNull(PendingEvent::fromLegacyJson)
+                    } catch (e: Exception) {
+                        emptyList()
+                    }
+                eventQueue.append(events)
+                prefs.edit().remove(LEGACY_KEY_PENDING_EVENTS).apply()
+            }
+            legacyEventsMigrated = true
+        }
+    }
+
+    // MARK: - File Keys
+
+    // Data keys for the encrypted files, themselves stored in EncryptedSharedPreferences
+    private val fileKeys = HashMap<String, SecretKey>()
+
+    @Synchronized
+    private fun fileKey(prefKey: String): SecretKey {
+        fileKeys[prefKey]?.let { return it }
+
+        val stored = prefs.getString(prefKey, null)
+        val key =
+            if (stored != null) {
+                SecretKeySpec(stored.hexToBytes(), "AES")
+            } else {
+                val generator = KeyGenerator.getInstance("AES")
+                generator.init(FILE_KEY_BITS)
+                generator.generateKey().also { generated ->
+                    // Committed before the first file is encrypted with it: a key lost to a crash would
+                    // leave that file unreadable
+                    if (!prefs.edit().putString(prefKey, generated.encoded.toHex()).commit()) {
+                        throw IOException("Failed to store file key")
+                    }
+                }
+            }
+
+        fileKeys[prefKey] = key
+        return key
+    }
+
+    private fun ByteArray.toHex(): String = joinToString("") { "%02x".format(it) }
+
+    private fun String.hexToBytes(): ByteArray = chunked(2).map { it.toInt(16).toByte() }.toByteArray()
+
     // MARK: - Clear
 
     /**
@@ -212,5 +532,10 @@ internal class ConsentStorage(private val prefs: SharedPreferences) {
      */
     fun clearAll() {
         prefs.edit().clear().apply()
+        // The file keys were cleared with the preferences, so the files are unreadable anyway
+        configCache.delete()
+        eventQueue.clear()
+        synchronized(this) { fileKeys.clear() }
+        categoryTable = null
     }
 }
@@ -0,0 +1,330 @@
+package com.datagrail.consent.storage
+
+import com.datagrail.consent.utils.ConsentLogger
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.cbor.Cbor
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+import javax.crypto.Cipher
+import javax.crypto.SecretKey
+import javax.crypto.spec.GCMParameterSpec
+
+/**
+ * Append-only, crash-safe on-disk queue of pending events.
+ *
+ * The file is a log of records:
+ * ```
+ * body length (4) | kind (1) | event id (8) | payload | CRC32 of the body (4)
+ * ```
+ * ADD records carry the AES-GCM encrypted CBOR event (iv length (1) | iv | ciphertext, with the id as
+ * associated data). REMOVE records acknowledge an earlier ADD and have no payload.
+ *
+ * Enqueueing appends one record and acknowledging a batch appends its REMOVE records in one write,
+ * so neither rewrites existing events. On first use the log is replayed; a torn or corrupt tail left
+ * by process death is truncated away. Once dead records outnumber live ones the log is compacted
+ * through a synced temporary file and rename.
+ *
+ * Delivery is at-least-once: an event sent just before process death, but not yet acknowledged, is retried.
+ */
+@OptIn(ExperimentalSerializationApi::class)
+internal class EventQueueFile(
+    private val file: File,
+    private val maxEvents: Int,
+    private val keyProvider: () -> SecretKey,
+) {
+    /**
+     * A queued event and the id used to acknowledge it
+     */
+    data class Entry(
+        val id: Long,
+        val event: PendingEvent,
+    )
+
+    private class LiveRecord(
+        val entry: Entry,
+        val bytes: ByteArray,
+    )
+
+    companion object {
+        internal const val FILE_NAME = "datagrail_consent_events.log"
+        private const val KIND_ADD: Byte = 1
+        private const val KIND_REMOVE: Byte = 2
+        private const val BODY_HEADER_BYTES = 1 + 8
+        private const val MAX_BODY_BYTES = 256 * 1024
+        private const val COMPACT_MIN_DEAD_RECORDS = 32
+        private const val TRANSFORMATION = "AES/GCM/NoPadding"
+        private const val GCM_TAG_BITS = 128
+
+        private val cbor = Cbor { ignoreUnknownKeys = true }
+    }
+
+    private val tempFile = File(file.parentFile, "${file.name}.tmp")
+
+    // Live records in queue order; null until the log has been replayed
+    private var live: LinkedHashMap<Long, LiveRecord>? = null
+    private var nextId = 1L
+
+    // Records currently in the file, live or dead
+    private var recordCount = 0
+
+    /**
+     * Number of queued events
+     */
+    val size: Int
+        @Synchronized get() = load().size
+
+    /**
+     * Queued events, oldest first
+     */
+    @Synchronized
+    fun entries(): List<Entry> = load().values.map { it.entry }
+
+    /**
+     * Append events to the queue with a single write, dropping the oldest beyond the cap
+     * @param events Events to append, in order
+     * @param supersededIds Ids of queued entries the new events replace, removed in the same write
+     * @throws IOException if the log cannot be written
+     */
+    @Synchronized
+    fun append(
+        events: List<PendingEvent>,
+        supersededIds: Collection<Long> = emptyList(),
+    ) {
+        if (events.isEmpty()) return
+        val records = load()
+
+        val buffer = ByteArrayOutputStream()
+        val added = ArrayList<LiveRecord>(events.size)
+        for (event in events) {
+            val id = nextId++
+            val bytes = encodeRecord(KIND_ADD, id, encrypt(id, event))
+            buffer.write(bytes)
+            added.add(LiveRecord(Entry(id, event), bytes))
+        }
+
+        // Superseded entries, then the oldest events beyond the cap, are removed in the same write
+        val removed = supersededIds.filter { records.containsKey(it) }.distinct()
+        val overflowCount = maxOf(0, records.size - removed.size + added.size - maxEvents)
+        val overflow =
+            (records.keys.asSequence().filter { it !in removed } + added.asSequence().map { it.entry.id })
+                .take(overflowCount)
+                .toList()
+        for (id in removed + overflow) {
+            buffer.write(encodeRecord(KIND_REMOVE, id, ByteArray(0)))
+        }
+
+        appendToFile(buffer.toByteArray())
+        added.forEach { records[it.entry.id] = it }
+        (removed + overflow).forEach { records.remove(it) }
+        recordCount += added.size + removed.size + overflow.size
+        compactIfNeeded(records)
+    }
+
+    /**
+     * Acknowledge events so they are no longer queued, with a single write
+     * @param ids Ids of the entries to remove
+     * @throws IOException if the log cannot be written
+     */
+    @Synchronized
+    fun remove(ids: Collection<Long>) {
+        val records = load()
+        val removed = ids.filter { records.containsKey(it) }.distinct()
+        if (removed.isEmpty()) return
+
+        if (removed.size == records.size) {
+            // Everything acknowledged: dropping the file is cheaper than logging removals
+            deleteFiles()
+            records.clear()
+            recordCount = 0
+            return
+        }
+
+        val buffer = ByteArrayOutputStream()
+        removed.forEach { buffer.write(encodeRecord(KIND_REMOVE, it, ByteArray(0))) }
+        appendToFile(buffer.toByteArray())
+        removed.forEach { records.remove(it) }
+        recordCount += removed.size
+        compactIfNeeded(records)
+    }
+
+    /**
+     * Delete all queued events
+     */
+    @Synchronized
+    fun clear() {
+        deleteFiles()
+        live = LinkedHashMap()
+        recordCount = 0
+    }
+
+    // MARK: - Log
+
+    private fun load(): LinkedHashMap<Long, LiveRecord> {
+        live?.let { return it }
+
+        // A leftover temp file is from an interrupted compaction; the log itself is still intact
+        tempFile.delete()
+
+        val records = LinkedHashMap<Long, LiveRecord>()
+        recordCount = 0
+        if (file.exists()) {
+            try {
+                replay(file.readBytes(), records)
+            } catch (e: IOException) {
+                ConsentLogger.w("Discarding unreadable event queue: ${e.javaClass.simpleName}")
+                deleteFiles()
+                records.clear()
+                recordCount = 0
+            }
+        }
+
+        // The cap is applied on append; a crash between an ADD and its overflow REMOVE can leave extras
+        while (records.size > maxEvents) {
+            records.remove(records.keys.first())
+        }
+
+        live = records
+        return records
+    }
+
+    private fun replay(
+        bytes: ByteArray,
+        records: LinkedHashMap<Long, LiveRecord>,
+    ) {
+        val buffer = ByteBuffer.wrap(bytes)
+        var validEnd = 0
+
+        while (buffer.remaining() >= 4) {
+            val start = buffer.position()
+            val length = buffer.getInt()
+            if (length < BODY_HEADER_BYTES || length > MAX_BODY_BYTES || buffer.remaining() < length + 4) break
+
+            val body = ByteArray(length)
+            buffer.get(body)
+            if (crc32(body) != buffer.getInt()) break
+
+            val kind = body[0]
+            val id = ByteBuffer.wrap(body, 1, 8).getLong()
+            when (kind) {
+                KIND_ADD -> {
+                    val event = decrypt(id, body, BODY_HEADER_BYTES)
+                    // Undecryptable events (e.g. the key was cleared) are dead records
+                    if (event != null) {
+                        records[id] = LiveRecord(Entry(id, event), bytes.copyOfRange(start, buffer.position()))
+                    }
+                }
+                KIND_REMOVE -> records.remove(id)
+            }
+            nextId = maxOf(nextId, id + 1)
+            recordCount++
+            validEnd = buffer.position()
+        }
+
+        if (validEnd < bytes.size) {
+            // Torn write from process death: drop the partial record so later appends stay readable
+            ConsentLogger.w("Truncating ${bytes.size - validEnd} trailing bytes from event queue")
+            RandomAccessFile(file, "rw").use { it.setLength(validEnd.toLong()) }
+        }
+    }
+
+    private fun appendToFile(bytes: ByteArray) {
+        file.parentFile?.mkdirs()
+        FileOutputStream(file, true).use { output ->
+            output.write(bytes)
+            output.fd.sync()
+        }
+    }
+
+    private fun compactIfNeeded(records: LinkedHashMap<Long, LiveRecord>) {
+        val deadRecords = recordCount - records.size
+        if (deadRecords < COMPACT_MIN_DEAD_RECORDS || deadRecords <= records.size) return
+
+        try {
+            FileOutputStream(tempFile).use { output ->
+                records.values.forEach { output.write(it.bytes) }
+                output.fd.sync()
+            }
+            if (!tempFile.renameTo(file)) {
+                throw IOException("Failed to replace event queue file")
+            }
+            recordCount = records.size
+        } catch (e: IOException) {
+            // The uncompacted log is still valid; try again after the next write
+            tempFile.delete()
+            ConsentLogger.w("Event queue compaction failed: ${e.javaClass.simpleName}")
+        }
+    }
+
+    private fun deleteFiles() {
+        file.delete()
+        tempFile.delete()
+    }
+
+    // MARK: - Records
+
+    private fun encodeRecord(
+        kind: Byte,
+        id: Long,
+        payload: ByteArray,
+    ): ByteArray {
+        val body = ByteBuffer.allocate(BODY_HEADER_BYTES + payload.size)
+        body.put(kind)
+        body.putLong(id)
+        body.put(payload)
+
+        val record = ByteBuffer.allocate(4 + body.capacity() + 4)
+        record.putInt(body.capacity())
+        record.put(body.array())
+        record.putInt(crc32(body.array()))
+        return record.array()
+    }
+
+    private fun encrypt(
+        id: Long,
+        event: PendingEvent,
+    ): ByteArray {
+        val cipher = Cipher.getInstance(TRANSFORMATION)
+        cipher.init(Cipher.ENCRYPT_MODE, keyProvider())
+        cipher.updateAAD(idBytes(id))
+        val ciphertext = cipher.doFinal(cbor.encodeToByteArray(PendingEvent.serializer(), event))
+        val iv = cipher.iv
+
+        val payload = ByteBuffer.allocate(1 + iv.size + ciphertext.size)
+        payload.put(iv.size.toByte())
+        payload.put(iv)
+        payload.put(ciphertext)
+        return payload.array()
+    }
+
+    private fun decrypt(
+        id: Long,
+        body: ByteArray,
+        offset: Int,
+    ): PendingEvent? {
+        return try {
+            val ivLength = body[offset].toInt() and 0xFF
+            val cipher = Cipher.getInstance(TRANSFORMATION)
+            val spec = GCMParameterSpec(GCM_TAG_BITS, body, offset + 1, ivLength)
+            cipher.init(Cipher.DECRYPT_MODE, keyProvider(), spec)
+            cipher.updateAAD(idBytes(id))
+            val dataOffset = offset + 1 + ivLength
+            val plaintext = cipher.doFinal(body, dataOffset, body.size - dataOffset)
+            cbor.decodeFromByteArray(PendingEvent.serializer(), plaintext)
+        } catch (e: Exception) {
+            null
+        }
+    }
+
+    private fun idBytes(id: Long): ByteArray = ByteBuffer.allocate(8).putLong(id).array()
+
+    private fun crc32(bytes: ByteArray): Int {
+        val crc = CRC32()
+        crc.update(bytes)
+        return crc.value.toInt()
+    }
+}
@@ -0,0 +1,73 @@
+package com.datagrail.consent.storage
+
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.contentOrNull
+import kotlinx.serialization.json.jsonObject
+import kotlinx.serialization.json.jsonPrimitive
+import java.net.URLDecoder
+
+/**
+ * A backend request that failed and is queued for retry
+ */
+@Serializable
+internal data class PendingEvent(
+    val type: String,
+    val url: String,
+    val body: String? = null,
+    val timestamp: Long,
+    /** User the request was made for; events without one are never coalesced */
+    val uniqueId: String? = null,
+    /** Number of banner opens a coalesced save_open stands for */
+    val count: Int = 1,
+) {
+    companion object {
+        const val TYPE_SAVE_PREFERENCES = "save_preferences"
+        const val TYPE_SAVE_OPEN = "save_open"
+
+        /**
+         * Decode an event queued by earlier versions as a JSON string map.
+         * Earlier versions did not store the uniqueId separately, so it is read from the request
+         * body or query so that migrated events are coalesced like new ones.
+         * @param eventJson The legacy event JSON
+         * @return The event, or null if it is malformed
+         */
+        fun fromLegacyJson(eventJson: String): PendingEvent? {
+            return try {
+                val event = Json.decodeFromString<Map<String, String>>(eventJson)
+                val type = event["type"] ?: return null
+                val url = event["url"] ?: return null
+                val body = event["body"]
+                PendingEvent(
+                    type = type,
+                    url = url,
+                    body = body,
+                    timestamp = event["timestamp"]?.toLongOrNull() ?: 0L,
+                    uniqueId = legacyUniqueId(type, url, body),
+                )
+            } catch (e: Exception) {
+                null
+            }
+        }
+
+        private fun legacyUniqueId(
+            type: String,
+            url: String,
+            body: String?,
+        ): String? {
+            return try {
+                when (type) {
+                    TYPE_SAVE_PREFERENCES ->
+                        body?.let { Json.parseToJsonElement(it).jsonObject["uniqueId"]?.jsonPrimitive?.contentOrNull }
+                    TYPE_SAVE_OPEN ->
+                        url.substringAfter('?', "").split('&')
+                            .firstOrNull { it.startsWith("uniqueId=") }
+                            ?.let { URLDecoder.decode(it.substringAfter('='), "UTF-8") }
+                    else -> null
+                }
+            } catch (e: Exception) {
+                null
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.datagrail.consent.storage
+
+/**
+ * Coalescing rules for the pending event queue, applied when an event is queued and again on replay:
+ * - save_preferences: only the latest event per uniqueId is kept; older ones are superseded
+ * - save_open: events per uniqueId collapse into the latest one, counting the opens it stands for;
+ *   replay still sends one request per open. The count is capped at [MAX_OPEN_COUNT], the number of
+ *   separate opens the queue could have held, so a long offline stretch never turns into an unbounded burst
+ *
+ * Other events, and events without a uniqueId, are left as they are.
+ */
+internal object PendingEventCoalescer {
+    /** Most banner opens one coalesced save_open stands for */
+    const val MAX_OPEN_COUNT = ConsentStorage.MAX_PENDING_EVENTS
+
+    /**
+     * An event to send and the queue entries it stands for
+     */
+    data class Group(
+        val event: PendingEvent,
+        val ids: List<Long>,
+    )
+
+    /**
+     * Merge an incoming event with the queued events it supersedes
+     * @param queued Events already in the queue
+     * @param incoming The event being queued
+     * @return The event to append, and the ids of queued entries it replaces
+     */
+    fun merge(
+        queued: List<EventQueueFile.Entry>,
+        incoming: PendingEvent,
+    ): Pair<PendingEvent, List<Long>> {
+        val key = keyOf(incoming) ?: return Pair(incoming, emptyList())
+        val superseded = queued.filter { keyOf(it.event) == key }
+        if (superseded.isEmpty()) return Pair(incoming, emptyList())
+
+        return Pair(combine(superseded.map { it.event } + incoming), superseded.map { it.id })
+    }
+
+    /**
+     * Collapse queued events for replay
+     * @param entries Queued events, oldest first
+     * @return Events to send, ordered by their most recent entry
+     */
+    fun coalesce(entries: List<EventQueueFile.Entry>): List<Group> {
+        val groups = LinkedHashMap<Any, MutableList<EventQueueFile.Entry>>()
+        for (entry in entries) {
+            val key = keyOf(entry.event) ?: entry.id
+            // Re-insert so the group sorts by its latest entry
+            val members = groups.remove(key) ?: mutableListOf()
+            members.add(entry)
+            groups[key] = members
+        }
+
+        return groups.values.map { members ->
+            Group(combine(members.map { it.event }), members.map { it.id })
+        }
+    }
+
+    private fun keyOf(event: PendingEvent): Pair<String, String>? {
+        val uniqueId = event.uniqueId ?: return null
+        return when (event.type) {
+            PendingEvent.TYPE_SAVE_PREFERENCES, PendingEvent.TYPE_SAVE_OPEN -> Pair(event.type, uniqueId)
+            else -> null
+        }
+    }
+
+    /**
+     * Combine events with the same key, oldest first, into the latest one
+     */
+    private fun combine(events: List<PendingEvent>): PendingEvent {
+        val latest = events.last()
+        return when (latest.type) {
+            PendingEvent.TYPE_SAVE_OPEN -> {
+                // Summed as Long so the clamp also holds for counts near Int.MAX_VALUE
+                val count = events.sumOf { it.count.toLong() }.coerceAtMost(MAX_OPEN_COUNT.toLong())
+                latest.copy(count = count.toInt())
+            }
+            else -> latest
+        }
+    }
+}
@@ -11,18 +11,19 @@ import android.view.WindowManager
 import android.widget.*
 import androidx.core.content.ContextCompat
 import androidx.fragment.app.DialogFragment
+import com.datagrail.consent.ConfigIndex
 import com.datagrail.consent.models.CategoryConsent
 import com.datagrail.consent.models.ConsentConfig
 import com.datagrail.consent.models.ConsentLayerCategory
 import com.datagrail.consent.models.ConsentLayerElement
 import com.datagrail.consent.models.ConsentPreferences
-import java.util.Locale
+import com.datagrail.consent.utils.ConfigLocalizer
 
 /**
  * DialogFragment that displays the consent banner with configurable layers and elements
  */
 class BannerDialog : DialogFragment() {
-    private var config: ConsentConfig? = null
+    private var configIndex: ConfigIndex? = null
     private var preferences: ConsentPreferences? = null
     private var currentLayerKey: String? = null
     private var onDismissListener: ((ConsentPreferences?) -> Unit)? = null
@@ -159,8 +160,8 @@ class BannerDialog : DialogFragment() {
 
     @androidx.annotation.VisibleForTesting
     internal fun shouldShowCloseButton(): Boolean {
-        val cfg = config ?: return true
-        val layer = cfg.layout.consentLayers[currentLayerKey] ?: return true
+        val layerKey = currentLayerKey ?: return true
+        val layer = configIndex?.layerOf(layerKey) ?: return true
 
         return layer.showCloseButton
     }
@@ -212,12 +213,11 @@ class BannerDialog : DialogFragment() {
     }
 
     private fun renderLayer(layerKey: String) {
-        val cfg = config ?: return
-        val layer = cfg.layout.consentLayers[layerKey] ?: return
+        val elements = configIndex?.elementsOf(layerKey) ?: return
 
         contentLayout.removeAllViews()
 
-        layer.elements.sortedBy { it.order }.forEach { element ->
+        elements.forEach { element ->
             val elementView = createElementView(element)
             contentLayout.addView(elementView)
 
@@ -260,24 +260,13 @@ class BannerDialog : DialogFragment() {
         }
     }
 
-    /**
-     * Gets the preferred locale code based on device language, falling back to "en".
-     */
-    private fun getPreferredLocale(): String {
-        val deviceLocale = Locale.getDefault().language
-        return deviceLocale.ifEmpty { "en" }
-    }
-
     /**
      * Gets translation from a map with proper locale fallback.
-     * Priority: device locale -> "en" -> first available
+     * Priority: the index's locale -> "en" -> first available
      */
     private fun <T> getTranslationWithFallback(translations: Map<String, T>?): T? {
-        if (translations.isNullOrEmpty()) return null
-        val preferredLocale = getPreferredLocale()
-        return translations[preferredLocale]
-            ?: translations["en"]
-            ?: translations.values.firstOrNull()
+        val locale = configIndex?.locale ?: ConfigLocalizer.deviceLocale()
+        return ConfigLocalizer.resolve(translations, locale)
     }
 
     /**
@@ -617,14 +606,14 @@ class BannerDialog : DialogFragment() {
     }
 
     private fun handleAcceptAll() {
-        val cfg =
-            config ?: run {
+        val index =
+            configIndex ?: run {
                 dismiss()
                 return
             }
 
         // Build preferences with all categories enabled
-        val allCategories = getAllCategoryKeys(cfg)
+        val allCategories = index.categoryKeys
         val cookieOptions =
             allCategories.map { gtmKey ->
                 CategoryConsent(gtmKey = gtmKey, isEnabled = true)
@@ -639,15 +628,15 @@ class BannerDialog : DialogFragment() {
     }
 
     private fun handleRejectAll() {
-        val cfg =
-            config ?: run {
+        val index =
+            configIndex ?: run {
                 dismiss()
                 return
             }
 
         // Build preferences with only essential/always-on categories enabled
-        val allCategories = getAllCategoryKeys(cfg)
-        val essentialCategories = getEssentialCategoryKeys(cfg)
+        val allCategories = index.categoryKeys
+        val essentialCategories = getEssentialCategoryKeys(index)
 
         val cookieOptions =
             allCategories.map { gtmKey ->
@@ -672,12 +661,12 @@ class BannerDialog : DialogFragment() {
             dismissWithPreferences(updatedPrefs)
         } else {
             // If no preferences, build from config with current toggle states
-            val cfg =
-                config ?: run {
+            val index =
+                configIndex ?: run {
                     dismiss()
                     return
                 }
-            val allCategories = getAllCategoryKeys(cfg)
+            val allCategories = index.categoryKeys
             val cookieOptions =
                 allCategories.map { gtmKey ->
                     CategoryConsent(gtmKey = gtmKey, isEnabled = true) // Default to enabled
@@ -691,52 +680,16 @@ class BannerDialog : DialogFragment() {
         }
     }
 
-    /**
-     * Get all category GTM keys from the config
-     */
-    private fun getAllCategoryKeys(cfg: ConsentConfig): List<String> {
-        val categories = mutableSetOf<String>()
-
-        // Add categories from initialCategories
-        categories.addAll(cfg.initialCategories.initial)
-
-        // Also scan consent layers for any additional categories
-        for (layer in cfg.layout.consentLayers.values) {
-            for (element in layer.elements) {
-                element.consentLayerCategories?.forEach { category ->
-                    categories.add(category.gtmKey)
-                }
-            }
-        }
-
-        return categories.toList()
-    }
-
     /**
      * Get essential/always-on category GTM keys from the config
      */
-    private fun getEssentialCategoryKeys(cfg: ConsentConfig): Set<String> {
-        val essentialKeys = mutableSetOf<String>()
-
-        // Scan consent layers for always-on categories
-        for (layer in cfg.layout.consentLayers.values) {
-            for (element in layer.elements) {
-                element.consentLayerCategories?.forEach { category ->
-                    if (category.alwaysOn) {
-                        essentialKeys.add(category.gtmKey)
-                    }
-                }
-            }
-        }
+    private fun getEssentialCategoryKeys(index: ConfigIndex): Set<String> {
+        val essentialKeys = index.essentialKeys.toMutableSet()
 
-        // Also check for categories with "essential" in the name as fallback
-        for (layer in cfg.layout.consentLayers.values) {
-            for (element in layer.elements) {
-                element.consentLayerCategories?.forEach { category ->
-                    if (category.gtmKey.contains("essential", ignoreCase = true)) {
-                        essentialKeys.add(category.gtmKey)
-                    }
-                }
+        // Always-on categories outside category elements, and categories with "essential" in the name as fallback
+        for (category in index.categoriesById.values) {
+            if (category.alwaysOn || category.gtmKey.contains("essential", ignoreCase = true)) {
+                essentialKeys.add(category.gtmKey)
             }
         }
 
@@ -778,11 +731,23 @@ class BannerDialog : DialogFragment() {
             preferences: ConsentPreferences?,
             displayStyle: BannerDisplayStyle = BannerDisplayStyle.MODAL,
             onDismiss: (ConsentPreferences?) -> Unit,
+        ): BannerDialog {
+            return newInstance(ConfigIndex.of(config), preferences, displayStyle, onDismiss)
+        }
+
+        /**
+         * Create a dialog for an already indexed config, reusing its sorted layers and category tables
+         */
+        internal fun newInstance(
+            configIndex: ConfigIndex,
+            preferences: ConsentPreferences?,
+            displayStyle: BannerDisplayStyle = BannerDisplayStyle.MODAL,
+            onDismiss: (ConsentPreferences?) -> Unit,
         ): BannerDialog {
             return BannerDialog().apply {
-                this.config = config
+                this.configIndex = configIndex
                 this.preferences = preferences
-                this.currentLayerKey = config.layout.firstLayerId
+                this.currentLayerKey = configIndex.firstLayerId
                 this.onDismissListener = onDismiss
                 this.displayStyle = displayStyle
             }
@@ -0,0 +1,149 @@
+package com.datagrail.consent.utils
+
+import com.datagrail.consent.models.ConsentConfig
+import com.datagrail.consent.models.ConsentLayerElement
+import com.datagrail.consent.models.Layout
+import com.datagrail.consent.models.TrackingDetailsLinkTranslation
+import java.util.Locale
+
+/**
+ * Resolves config translations for one locale and projects configs down to the resolved strings.
+ *
+ * Resolution order: the requested locale, then "en", then the first available translation.
+ * A projected config keeps, for every translation map, only the entry that order picks, so
+ * resolving the projection for the same locale gives the same strings as resolving the full config.
+ */
+internal object ConfigLocalizer {
+    private const val FALLBACK_LOCALE = "en"
+
+    /**
+     * Get the locale translations are resolved for
+     * @return The device language code, or "en" if it has none
+     */
+    fun deviceLocale(): String {
+        return Locale.getDefault().language.ifEmpty { FALLBACK_LOCALE }
+    }
+
+    /**
+     * Pick the translation for a locale
+     * @param translations Translations by locale code
+     * @param locale The locale to resolve for
+     * @return The translation for the locale, else for "en", else the first one; null if there are none
+     */
+    fun <T> resolve(
+        translations: Map<String, T>?,
+        locale: String,
+    ): T? {
+        if (translations.isNullOrEmpty()) return null
+        return translations[locale]
+            ?: translations[FALLBACK_LOCALE]
+            ?: translations.values.firstOrNull()
+    }
+
+    // MARK: - Projection
+
+    /**
+     * Keep only the translations a locale resolves to
+     * @param config The config to project
+     * @param locale The locale to resolve for
+     * @return The config with single-entry translation maps
+     */
+    fun localize(
+        config: ConsentConfig,
+        locale: String,
+    ): ConsentConfig {
+        return config.copy(layout = localize(config.layout, locale))
+    }
+
+    /**
+     * Keep only the translations a locale resolves to
+     * @param layout The layout to project
+     * @param locale The locale to resolve for
+     * @return The layout with single-entry translation maps
+     */
+    fun localize(
+        layout: Layout,
+        locale: String,
+    ): Layout {
+        return layout.copy(
+            consentLayers =
+                layout.consentLayers.mapValues { (_, layer) ->
+                    val elements = layer.elements.mapIfChanged { localize(it, locale) }
+                    if (elements === layer.elements) layer else layer.copy(elements = elements)
+                },
+        )
+    }
+
+    /**
+     * Project one element, returning the same instance when it has nothing to prune
+     */
+    private fun localize(
+        element: ConsentLayerElement,
+        locale: String,
+    ): ConsentLayerElement {
+        val translations = element.translations?.let { prune(it, locale) }
+        val links =
+            element.links?.let { links ->
+                links.mapIfChanged { link ->
+                    val pruned = prune(link.translations, locale)
+                    if (pruned === link.translations) link else link.copy(translations = pruned)
+                }
+            }
+        val categories =
+            element.consentLayerCategories?.let { categories ->
+                categories.mapIfChanged { category ->
+                    val pruned = prune(category.translations, locale)
+                    if (pruned === category.translations) category else category.copy(translations = pruned)
+                }
+            }
+        val trackingDetails = element.trackingDetailsLinkTranslations?.let { prune(it, locale) }
+        val browserSignalNotice = element.browserSignalNoticeTranslations?.let { prune(it, locale) }
+
+        val unchanged =
+            translations === element.translations &&
+                links === element.links &&
+                categories === element.consentLayerCategories &&
+                trackingDetails === element.trackingDetailsLinkTranslations &&
+                browserSignalNotice === element.browserSignalNoticeTranslations
+        if (unchanged) return element
+
+        return element.copy(
+            translations = translations,
+            links = links,
+            consentLayerCategories = categories,
+            trackingDetailsLinkTranslations = trackingDetails,
+            browserSignalNoticeTranslations = browserSignalNotice,
+        )
+    }
+
+    private inline fun <T> List<T>.mapIfChanged(transform: (T) -> T): List<T> {
+        val mapped = map(transform)
+        return if (mapped.indices.all { mapped[it] === this[it] }) this else mapped
+    }
+
+    private fun <T> prune(
+        translations: Map<String, T>,
+        locale: String,
+    ): Map<String, T> {
+        if (translations.size <= 1) return translations
+        val key =
+            when {
+                locale in translations -> locale
+                FALLBACK_LOCALE in translations -> FALLBACK_LOCALE
+                else -> translations.keys.first()
+            }
+        return mapOf(key to translations.getValue(key))
+    }
+
+    private fun prune(
+        translations: List<TrackingDetailsLinkTranslation>,
+        locale: String,
+    ): List<TrackingDetailsLinkTranslation> {
+        if (translations.size <= 1) return translations
+        val resolved =
+            translations.firstOrNull { it.locale == locale }
+                ?: translations.firstOrNull { it.locale == FALLBACK_LOCALE }
+                ?: translations.first()
+        return listOf(resolved)
+    }
+}
@@ -1,12 +1,51 @@
 package com.datagrail.consent.utils
 
+import com.datagrail.consent.models.ConfigHeader
 import com.datagrail.consent.models.ConsentConfig
 import com.datagrail.consent.models.ConsentException
+import com.datagrail.consent.models.ConsentLayer
+import com.datagrail.consent.models.ConsentLayerElement
 
 /**
- * Validates consent configuration structure
+ * Validates consent configuration structure.
+ * The layout is checked in a single walk over layers, elements and categories; the first
+ * problem found in layout order is reported.
  */
 object ConfigValidator {
+    private const val LINK_ELEMENT = "ConsentLayerLinkElement"
+    private const val CATEGORY_ELEMENT = "ConsentLayerCategoryElement"
+    private const val OPEN_LAYER_ACTION = "open_layer"
+
+    private val CONSENT_MODES = setOf("optin", "optout")
+
+    private val ELEMENT_TYPES =
+        setOf(
+            "ConsentLayerTextElement",
+            "ConsentLayerButtonElement",
+            LINK_ELEMENT,
+            CATEGORY_ELEMENT,
+            "ConsentLayerTrackingDetailsElement",
+            "ConsentLayerBrowserSignalNoticeElement",
+            "ConsentLayerLanguagePickerElement",
+        )
+
+    // Element types whose text lives outside the standard translations map
+    private val UNTRANSLATED_ELEMENT_TYPES =
+        setOf(
+            CATEGORY_ELEMENT,
+            "ConsentLayerLanguagePickerElement",
+            "ConsentLayerTrackingDetailsElement",
+            "ConsentLayerBrowserSignalNoticeElement",
+        )
+
+    private val CATEGORY_PRIMITIVES =
+        setOf(
+            "dg-category-essential",
+            "dg-category-performance",
+            "dg-category-functional",
+            "dg-category-marketing",
+        )
+
     /**
      * Validate a consent configuration
      * @param config The configuration to validate
@@ -14,159 +53,132 @@ object ConfigValidator {
      */
     fun validate(config: ConsentConfig) {
         // Validate required fields
-        validateRequiredFields(config)
+        validateRequiredFields(config.version, config.dgCustomerId, config.privacyDomain, config.consentMode)
 
         // Validate layers
-        validateLayers(config)
+        val layers = config.layout.consentLayers
+        if (layers.isEmpty()) {
+            throw ConsentException.ValidationError("No consent layers defined")
+        }
 
-        // Validate elements
-        validateElements(config)
+        if (config.layout.firstLayerId !in layers) {
+            throw ConsentException.ValidationError(
+                "firstLayerId '${config.layout.firstLayerId}' does not reference an existing layer",
+            )
+        }
 
-        // Validate categories
-        validateCategories(config)
+        // Validate elements and their categories
+        for ((layerId, layer) in layers) {
+            if (layer.elements.isEmpty()) {
+                ConsentLogger.w("Layer '$layerId' has no elements")
+            }
+            for (element in layer.elements) {
+                validateElement(element, layers)
+            }
+        }
     }
 
-    private fun validateRequiredFields(config: ConsentConfig) {
-        if (config.version.isEmpty()) {
+    /**
+     * Validate the fields outside the layout, for configs whose layout has not been decoded yet
+     * @param config The config header to validate
+     * @throws ConsentException.ValidationError if validation fails
+     */
+    internal fun validateHeader(config: ConfigHeader) {
+        validateRequiredFields(config.version, config.dgCustomerId, config.privacyDomain, config.consentMode)
+    }
+
+    private fun validateRequiredFields(
+        version: String,
+        dgCustomerId: String,
+        privacyDomain: String,
+        consentMode: String,
+    ) {
+        if (version.isEmpty()) {
             throw ConsentException.ValidationError("Missing required field: version")
         }
 
-        if (config.dgCustomerId.isEmpty()) {
+        if (dgCustomerId.isEmpty()) {
             throw ConsentException.ValidationError("Missing required field: dgCustomerId")
         }
 
-        if (config.privacyDomain.isEmpty()) {
+        if (privacyDomain.isEmpty()) {
             throw ConsentException.ValidationError("Missing required field: privacyDomain")
         }
 
-        if (config.consentMode !in listOf("optin", "optout")) {
-            throw ConsentException.ValidationError("Invalid consentMode: ${config.consentMode}")
+        if (consentMode !in CONSENT_MODES) {
+            throw ConsentException.ValidationError("Invalid consentMode: $consentMode")
         }
     }
 
-    private fun validateLayers(config: ConsentConfig) {
-        if (config.layout.consentLayers.isEmpty()) {
-            throw ConsentException.ValidationError("No consent layers defined")
-        }
-
-        if (config.layout.firstLayerId !in config.layout.consentLayers.keys) {
-            throw ConsentException.ValidationError(
-                "firstLayerId '${config.layout.firstLayerId}' does not reference an existing layer",
-            )
+    private fun validateElement(
+        element: ConsentLayerElement,
+        layers: Map<String, ConsentLayer>,
+    ) {
+        // Validate element type
+        if (element.type !in ELEMENT_TYPES) {
+            throw ConsentException.ValidationError("Invalid element type: ${element.type}")
         }
 
-        // Validate that all layers have at least one element
-        config.layout.consentLayers.forEach { (layerId, layer) ->
-            if (layer.elements.isEmpty()) {
-                ConsentLogger.w("Layer '$layerId' has no elements")
+        // Validate button actions that reference layers
+        if (element.buttonAction == OPEN_LAYER_ACTION) {
+            val targetId =
+                element.targetConsentLayer
+                    ?: throw ConsentException.ValidationError(
+                        "Button with action 'open_layer' must specify targetConsentLayer",
+                    )
+            if (targetId !in layers) {
+                throw ConsentException.ValidationError("Button target layer '$targetId' does not exist")
             }
         }
-    }
 
-    private fun validateElements(config: ConsentConfig) {
-        val validElementTypes =
-            setOf(
-                "ConsentLayerTextElement",
-                "ConsentLayerButtonElement",
-                "ConsentLayerLinkElement",
-                "ConsentLayerCategoryElement",
-                "ConsentLayerTrackingDetailsElement",
-                "ConsentLayerBrowserSignalNoticeElement",
-                "ConsentLayerLanguagePickerElement"
-            )
-
-        config.layout.consentLayers.values.forEach { layer ->
-            layer.elements.forEach { element ->
-                // Validate element type
-                if (element.type !in validElementTypes) {
-                    throw ConsentException.ValidationError("Invalid element type: ${element.type}")
+        // Validate translations exist
+        when (element.type) {
+            LINK_ELEMENT -> {
+                // Links have translations in their links array
+                if (element.links.isNullOrEmpty()) {
+                    throw ConsentException.ValidationError("Link element '${element.id}' has no links")
                 }
-
-                // Validate button actions that reference layers
-                if (element.buttonAction == "open_layer") {
-                    val targetId = element.targetConsentLayer
-                    if (targetId == null) {
+                for (link in element.links) {
+                    if (link.translations.isEmpty()) {
                         throw ConsentException.ValidationError(
-                            "Button with action 'open_layer' must specify targetConsentLayer",
-                        )
-                    }
-                    if (targetId !in config.layout.consentLayers.keys) {
-                        throw ConsentException.ValidationError(
-                            "Button target layer '$targetId' does not exist",
+                            "Link '${link.id}' in element '${element.id}' has no translations",
                         )
                     }
                 }
-
-                // Validate translations exist
-                when (element.type) {
-                    "ConsentLayerLinkElement" -> {
-                        // Links have translations in their links array
-                        if (element.links == null || element.links.isEmpty()) {
-                            throw ConsentException.ValidationError(
-                                "Link element '${element.id}' has no links"
-                            )
-                        }
-                        element.links.forEach { link ->
-                            if (link.translations.isEmpty()) {
-                                throw ConsentException.ValidationError(
-                                    "Link '${link.id}' in element '${element.id}' has no translations"
-                                )
-                            }
-                        }
-                    }
-                    "ConsentLayerCategoryElement",
-                    "ConsentLayerLanguagePickerElement",
-                    "ConsentLayerTrackingDetailsElement",
-                    "ConsentLayerBrowserSignalNoticeElement" -> {
-                        // These elements don't require standard translations
-                    }
-                    else -> {
-                        // Standard elements require translations
-                        if (element.translations == null || element.translations.isEmpty()) {
-                            throw ConsentException.ValidationError("Element '${element.id}' has no translations")
-                        }
-                    }
+            }
+            CATEGORY_ELEMENT -> validateCategories(element)
+            in UNTRANSLATED_ELEMENT_TYPES -> {
+                // These elements don't require standard translations
+            }
+            else -> {
+                // Standard elements require translations
+                if (element.translations.isNullOrEmpty()) {
+                    throw ConsentException.ValidationError("Element '${element.id}' has no translations")
                 }
             }
         }
     }
 
-    private fun validateCategories(config: ConsentConfig) {
-        val validPrimitives =
-            setOf(
-                "dg-category-essential",
-                "dg-category-performance",
-                "dg-category-functional",
-                "dg-category-marketing",
-            )
-
-        // Find all category elements
-        val categoryElements =
-            config.layout.consentLayers.values
-                .flatMap { it.elements }
-                .filter { it.type == "ConsentLayerCategoryElement" }
+    private fun validateCategories(element: ConsentLayerElement) {
+        val categories = element.consentLayerCategories
+        if (categories.isNullOrEmpty()) {
+            throw ConsentException.ValidationError("Category element '${element.id}' has no categories")
+        }
 
-        categoryElements.forEach { element ->
-            val categories = element.consentLayerCategories
-            if (categories == null || categories.isEmpty()) {
-                throw ConsentException.ValidationError("Category element '${element.id}' has no categories")
+        for (category in categories) {
+            // Validate primitive
+            if (category.primitive !in CATEGORY_PRIMITIVES) {
+                throw ConsentException.ValidationError("Invalid category primitive: ${category.primitive}")
             }
 
-            categories.forEach { category ->
-                // Validate primitive
-                if (category.primitive !in validPrimitives) {
-                    throw ConsentException.ValidationError("Invalid category primitive: ${category.primitive}")
-                }
-
-                // Validate gtmKey
-                if (category.gtmKey.isEmpty()) {
-                    throw ConsentException.ValidationError("Category '${category.id}' has empty gtmKey")
-                }
+            // Validate gtmKey
+            if (category.gtmKey.isEmpty()) {
+                throw ConsentException.ValidationError("Category '${category.id}' has empty gtmKey")
+            }
 
-                // Validate translations
-                if (category.translations.isEmpty()) {
-                    throw ConsentException.ValidationError("Category '${category.id}' has no translations")
-                }
+            // Validate translations
+            if (category.translations.isEmpty()) {
+                throw ConsentException.ValidationError("Category '${category.id}' has no translations")
             }
         }
     }
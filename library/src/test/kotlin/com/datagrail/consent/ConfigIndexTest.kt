@@ -0,0 +1,256 @@
+package com.datagrail.consent
+
+import com.datagrail.consent.models.*
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for ConfigIndex:
+ * - Category key order and indices
+ * - Essential keys and default preferences
+ * - Layout tables deferred until first use
+ * - Pre-sorted layer elements and categories by id
+ * - Layout tables resolved per locale
+ */
+class ConfigIndexTest {
+    private fun category(
+        gtmKey: String,
+        alwaysOn: Boolean = false,
+    ) = ConsentLayerCategory(
+        id = "id-$gtmKey",
+        consentCategoryId = "cc-$gtmKey",
+        order = 1,
+        hidden = false,
+        primitive = "dg-category-essential",
+        alwaysOn = alwaysOn,
+        gtmKey = gtmKey,
+        uuids = emptyList(),
+        cookiePatterns = emptyList(),
+        translations = emptyMap(),
+        showTrackingDetailsLink = false,
+    )
+
+    private fun element(
+        id: String,
+        order: Int,
+        type: String = "ConsentLayerTextElement",
+        categories: List<ConsentLayerCategory>? = null,
+    ) = ConsentLayerElement(
+        id = id,
+        order = order,
+        type = type,
+        consentLayerCategories = categories,
+    )
+
+    private fun layer(
+        id: String,
+        elements: List<ConsentLayerElement>,
+    ) = ConsentLayer(
+        id = id,
+        name = id,
+        position = "bottom",
+        showCloseButton = true,
+        bannerApiId = id,
+        elements = elements,
+    )
+
+    private fun config(
+        initial: List<String>,
+        layers: List<ConsentLayer>,
+    ) = ConsentConfig(
+        version = "v1",
+        consentContainerVersionId = "container",
+        dgCustomerId = "customer",
+        p = 0,
+        dch = "categorize",
+        privacyDomain = "consent.datagrail.io",
+        plugins =
+            Plugins(
+                scriptControl = true,
+                allCookieSubdomains = true,
+                cookieBlocking = true,
+                localStorageBlocking = true,
+            ),
+        testMode = false,
+        ignoreDoNotTrack = false,
+        trackingDetailsUrl = "https://example.com/tracking",
+        consentMode = "optin",
+        showBanner = true,
+        consentPolicy = ConsentPolicy(name = "GDPR", default = true),
+        gppUsNat = false,
+        initialCategories =
+            InitialCategories(
+                respectGpc = false,
+                respectDnt = false,
+                respectOptout = false,
+                initial = initial,
+                gpc = emptyList(),
+                optout = emptyList(),
+            ),
+        layout =
+            Layout(
+                id = "layout",
+                name = "Default",
+                status = "published",
+                defaultLayout = true,
+                collapsedOnMobile = false,
+                firstLayerId = layers.first().id,
+                consentLayers = layers.associateBy { it.id },
+            ),
+    )
+
+    private val essential = category("category_essential", alwaysOn = true)
+    private val marketing = category("category_marketing")
+    private val analytics = category("category_analytics")
+
+    private val index =
+        ConfigIndex.of(
+            config(
+                initial = listOf("category_essential", "category_marketing"),
+                layers =
+                    listOf(
+                        layer(
+                            "first",
+                            listOf(
+                                element("buttons", order = 3),
+                                element(
+                                    "categories",
+                                    order = 2,
+                                    type = "ConsentLayerCategoryElement",
+                                    categories = listOf(essential, marketing),
+                                ),
+                                element("title", order = 1),
+                            ),
+                        ),
+                        layer(
+                            "second",
+                            listOf(
+                                element(
+                                    "more",
+                                    order = 1,
+                                    type = "ConsentLayerCategoryElement",
+                                    categories = listOf(marketing, analytics),
+                                ),
+                            ),
+                        ),
+                    ),
+            ),
+        )
+
+    // MARK: - Categories
+
+    @Test
+    fun `category keys list initial categories first without duplicates`() {
+        assertEquals(listOf("category_essential", "category_marketing", "category_analytics"), index.categoryKeys)
+        index.categoryKeys.forEachIndexed { i, key -> assertEquals(i, index.categoryTable.indexOf(key)) }
+        assertEquals(index.categoryKeys, index.categoryTable.keys)
+        assertEquals(index.config.version, index.categoryTable.version)
+    }
+
+    @Test
+    fun `essential keys hold always-on categories`() {
+        assertEquals(setOf("category_essential"), index.essentialKeys)
+    }
+
+    @Test
+    fun `always-on category outside a category element is not essential`() {
+        val index =
+            ConfigIndex.of(
+                config(
+                    initial = emptyList(),
+                    layers =
+                        listOf(
+                            layer("only", listOf(element("details", order = 1, categories = listOf(essential)))),
+                        ),
+                ),
+            )
+
+        assertTrue(index.essentialKeys.isEmpty())
+    }
+
+    @Test
+    fun `categories are indexed by id`() {
+        assertEquals(3, index.categoriesById.size)
+        assertSame(analytics, index.categoriesById["id-category_analytics"])
+    }
+
+    // MARK: - Defaults
+
+    @Test
+    fun `default preferences enable initial categories`() {
+        assertFalse(index.defaultPreferences.isCustomised)
+        assertEquals(
+            listOf(
+                CategoryConsent("category_essential", true),
+                CategoryConsent("category_marketing", true),
+            ),
+            index.defaultPreferences.cookieOptions,
+        )
+        assertTrue(index.defaultSnapshot.isCategoryEnabled("category_marketing"))
+        assertFalse(index.defaultSnapshot.isCategoryEnabled("category_analytics"))
+    }
+
+    @Test
+    fun `header tables do not decode the layout`() {
+        val source = config(initial = listOf("category_marketing"), layers = listOf(layer("only", emptyList())))
+        var decodes = 0
+        val index = ConfigIndex.of(LazyConfig(source.header()) { source.layout.also { decodes++ } })
+
+        assertEquals(listOf(CategoryConsent("category_marketing", true)), index.defaultPreferences.cookieOptions)
+        assertTrue(index.defaultSnapshot.isCategoryEnabled("category_marketing"))
+        assertEquals(0, decodes)
+        assertFalse(index.isLayoutLoaded)
+
+        assertEquals(listOf("category_marketing"), index.categoryKeys)
+        index.elementsOf("only")
+        assertEquals("Layout decoded once", 1, decodes)
+    }
+
+    // MARK: - Layers
+
+    @Test
+    fun `layer elements are sorted by order`() {
+        assertEquals(listOf("title", "categories", "buttons"), index.elementsOf("first")?.map { it.id })
+        assertSame("Sorted once, not per call", index.elementsOf("first"), index.elementsOf("first"))
+    }
+
+    @Test
+    fun `unknown layer has no elements`() {
+        assertNull(index.elementsOf("missing"))
+    }
+
+    // MARK: - Locale
+
+    @Test
+    fun `layers keep only the locale's translations`() {
+        val translations =
+            listOf("en", "fr").associateWith { locale ->
+                ElementTranslation(id = locale, locale = locale, text = locale)
+            }
+        val title = ConsentLayerElement(id = "title", order = 1, type = "text", translations = translations)
+        val source = config(initial = emptyList(), layers = listOf(layer("only", listOf(title))))
+        val index = ConfigIndex.of(source, "fr")
+
+        assertEquals("only", index.firstLayerId)
+        assertEquals(setOf("fr"), index.layerOf("only")?.elements?.single()?.translations?.keys)
+        assertEquals(setOf("fr"), index.elementsOf("only")?.single()?.translations?.keys)
+        val fullTitle = index.config.layout.consentLayers.getValue("only").elements.single()
+        assertEquals("Full config is untouched", setOf("en", "fr"), fullTitle.translations?.keys)
+
+        val english = index.withLocale("en")
+        assertEquals(setOf("en"), english.layerOf("only")?.elements?.single()?.translations?.keys)
+        assertSame(index, index.withLocale("fr"))
+    }
+
+    @Test
+    fun `projection does not keep the decoded layout`() {
+        val source = config(initial = emptyList(), layers = listOf(layer("only", emptyList())))
+        val lazy = LazyConfig(source.header()) { source.layout }
+        val index = ConfigIndex.of(lazy, "en")
+
+        index.elementsOf("only")
+
+        assertTrue(index.isLayoutLoaded)
+        assertFalse(lazy.isLayoutLoaded)
+    }
+}
@@ -0,0 +1,295 @@
+package com.datagrail.consent
+
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleEventObserver
+import androidx.lifecycle.LifecycleObserver
+import androidx.lifecycle.LifecycleOwner
+import com.datagrail.consent.models.CategoryConsent
+import com.datagrail.consent.models.CategoryTable
+import com.datagrail.consent.models.ConsentPreferences
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for ConsentChangeNotifier:
+ * - State flow values and distinct-change filtering
+ * - Multiple listeners and explicit removal
+ * - Lifecycle-bound removal
+ * - Per-category subscriptions and diffing
+ */
+class ConsentChangeNotifierTest {
+    private val notifier = ConsentChangeNotifier()
+
+    private fun preferences(marketing: Boolean) =
+        ConsentPreferences(
+            isCustomised = true,
+            cookieOptions = listOf(CategoryConsent(gtmKey = "category_marketing", isEnabled = marketing)),
+        )
+
+    private fun preferences(vararg enabled: Pair<String, Boolean>) =
+        ConsentPreferences(
+            isCustomised = true,
+            cookieOptions = enabled.map { (key, isEnabled) -> CategoryConsent(gtmKey = key, isEnabled = isEnabled) },
+        )
+
+    private class FakeLifecycle : Lifecycle() {
+        val observers = mutableListOf<LifecycleEventObserver>()
+        override var currentState: State = State.RESUMED
+
+        override fun addObserver(observer: LifecycleObserver) {
+            observers.add(observer as LifecycleEventObserver)
+        }
+
+        override fun removeObserver(observer: LifecycleObserver) {
+            observers.remove(observer)
+        }
+    }
+
+    private class FakeLifecycleOwner : LifecycleOwner {
+        override val lifecycle = FakeLifecycle()
+
+        fun destroy() {
+            lifecycle.currentState = Lifecycle.State.DESTROYED
+            lifecycle.observers.toList().forEach { it.onStateChanged(this, Lifecycle.Event.ON_DESTROY) }
+        }
+    }
+
+    // MARK: - State
+
+    @Test
+    fun `publish updates the state and notifies every listener`() {
+        val first = mutableListOf<ConsentPreferences>()
+        val second = mutableListOf<ConsentPreferences>()
+        notifier.addListener { first.add(it) }
+        notifier.addListener { second.add(it) }
+
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+
+        assertEquals(preferences(marketing = true), notifier.preferences.value)
+        assertEquals(listOf(preferences(marketing = true)), first)
+        assertEquals(listOf(preferences(marketing = true)), second)
+    }
+
+    @Test
+    fun `publishing equal preferences does not notify again`() {
+        val received = mutableListOf<ConsentPreferences>()
+        notifier.addListener { received.add(it) }
+
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = false)))
+
+        assertEquals(listOf(preferences(marketing = true), preferences(marketing = false)), received)
+    }
+
+    @Test
+    fun `equal preferences over a different category table do not notify again`() {
+        val received = mutableListOf<ConsentPreferences>()
+        notifier.addListener { received.add(it) }
+        val table = CategoryTable.of("v1", listOf("category_analytics", "category_marketing"))
+
+        // Loaded before the layout, over the preferences' own keys; saved again over the config's table
+        notifier.load(ConsentSnapshot.of(preferences(marketing = true), "v1"))
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true), "v1", table))
+
+        assertTrue("Same consent over another table is not a change", received.isEmpty())
+    }
+
+    @Test
+    fun `load sets the state without notifying listeners`() {
+        val received = mutableListOf<ConsentPreferences>()
+        notifier.addListener { received.add(it) }
+
+        notifier.load(ConsentSnapshot.of(preferences(marketing = true)))
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+
+        assertEquals(preferences(marketing = true), notifier.preferences.value)
+        assertTrue("Loaded preferences are not a change", received.isEmpty())
+    }
+
+    @Test
+    fun `clearing consent updates the state without notifying listeners`() {
+        val received = mutableListOf<ConsentPreferences>()
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+        notifier.addListener { received.add(it) }
+
+        notifier.publish(ConsentSnapshot.EMPTY)
+
+        assertNull(notifier.preferences.value)
+        assertTrue(received.isEmpty())
+    }
+
+    @Test
+    fun `failing listener does not block the others`() {
+        val received = mutableListOf<ConsentPreferences>()
+        notifier.addListener { throw IllegalStateException("listener bug") }
+        notifier.addListener { received.add(it) }
+
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+
+        assertEquals(1, received.size)
+    }
+
+    // MARK: - Removal
+
+    @Test
+    fun `removed subscription stops delivery`() {
+        val received = mutableListOf<ConsentPreferences>()
+        val subscription = notifier.addListener { received.add(it) }
+
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+        subscription.remove()
+        subscription.remove()
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = false)))
+
+        assertEquals(listOf(preferences(marketing = true)), received)
+    }
+
+    @Test
+    fun `removeListener removes the listener`() {
+        val received = mutableListOf<ConsentPreferences>()
+        val listener = ConsentChangeListener { received.add(it) }
+        notifier.addListener(listener)
+
+        notifier.removeListener(listener)
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+
+        assertTrue(received.isEmpty())
+    }
+
+    @Test
+    fun `lifecycle-bound listener is removed when the owner is destroyed`() {
+        val owner = FakeLifecycleOwner()
+        val received = mutableListOf<ConsentPreferences>()
+        notifier.addListener(owner) { received.add(it) }
+
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+        owner.destroy()
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = false)))
+
+        assertEquals(listOf(preferences(marketing = true)), received)
+        assertTrue("Lifecycle observer should be removed", owner.lifecycle.observers.isEmpty())
+    }
+
+    @Test
+    fun `listener bound to a destroyed owner is never registered`() {
+        val owner = FakeLifecycleOwner()
+        owner.destroy()
+        val received = mutableListOf<ConsentPreferences>()
+
+        notifier.addListener(owner) { received.add(it) }
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+
+        assertTrue(received.isEmpty())
+        assertTrue(owner.lifecycle.observers.isEmpty())
+    }
+
+    // MARK: - Category Subscriptions
+
+    @Test
+    fun `category listener only receives changes to its category`() {
+        val marketing = mutableListOf<Boolean>()
+        val analytics = mutableListOf<Boolean>()
+        notifier.load(ConsentSnapshot.of(preferences("category_marketing" to false, "category_analytics" to false)))
+        notifier.addCategoryListener("category_marketing") { _, isEnabled -> marketing.add(isEnabled) }
+        notifier.addCategoryListener("category_analytics") { _, isEnabled -> analytics.add(isEnabled) }
+
+        // When - only analytics flips
+        notifier.publish(ConsentSnapshot.of(preferences("category_marketing" to false, "category_analytics" to true)))
+
+        // Then
+        assertTrue("Unchanged category should not be woken", marketing.isEmpty())
+        assertEquals(listOf(true), analytics)
+    }
+
+    @Test
+    fun `category listener receives each flip with its key`() {
+        val received = mutableListOf<Pair<String, Boolean>>()
+        notifier.addCategoryListener("category_marketing") { key, isEnabled -> received.add(key to isEnabled) }
+
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+        notifier.publish(ConsentSnapshot.of(preferences("category_marketing" to true, "category_analytics" to true)))
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = false)))
+
+        assertEquals(listOf("category_marketing" to true, "category_marketing" to false), received)
+    }
+
+    @Test
+    fun `category subscribed after load is diffed against the loaded state`() {
+        notifier.load(ConsentSnapshot.of(preferences(marketing = true)))
+        val received = mutableListOf<Boolean>()
+        notifier.addCategoryListener("category_marketing") { _, isEnabled -> received.add(isEnabled) }
+
+        notifier.publish(ConsentSnapshot.of(preferences("category_marketing" to true, "category_analytics" to false)))
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = false)))
+
+        assertEquals(listOf(false), received)
+    }
+
+    @Test
+    fun `first save is diffed against the defaults`() {
+        val received = mutableListOf<Pair<String, Boolean>>()
+        notifier.addCategoryListener("category_marketing") { key, isEnabled -> received.add(key to isEnabled) }
+        notifier.addCategoryListener("category_analytics") { key, isEnabled -> received.add(key to isEnabled) }
+        val defaults = ConsentSnapshot.of(preferences("category_marketing" to true, "category_analytics" to true))
+
+        // When - the user rejects marketing, which was on by default
+        notifier.publish(
+            ConsentSnapshot.of(preferences("category_marketing" to false, "category_analytics" to true)),
+            defaults,
+        )
+
+        // Then - the rejected default is reported; the unchanged one is not
+        assertEquals(listOf("category_marketing" to false), received)
+    }
+
+    @Test
+    fun `category diff uses the first entry for duplicate keys`() {
+        val received = mutableListOf<Boolean>()
+        notifier.addCategoryListener("category_marketing") { _, isEnabled -> received.add(isEnabled) }
+
+        notifier.publish(ConsentSnapshot.of(preferences("category_marketing" to true, "category_marketing" to false)))
+
+        assertEquals(listOf(true), received)
+    }
+
+    @Test
+    fun `removed category listener stops delivery without affecting others`() {
+        val first = mutableListOf<Boolean>()
+        val second = mutableListOf<Boolean>()
+        val subscription = notifier.addCategoryListener("category_marketing") { _, isEnabled -> first.add(isEnabled) }
+        notifier.addCategoryListener("category_marketing") { _, isEnabled -> second.add(isEnabled) }
+
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+        subscription.remove()
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = false)))
+
+        assertEquals(listOf(true), first)
+        assertEquals(listOf(true, false), second)
+    }
+
+    @Test
+    fun `lifecycle-bound category listener is removed when the owner is destroyed`() {
+        val owner = FakeLifecycleOwner()
+        val received = mutableListOf<Boolean>()
+        notifier.addCategoryListener(owner, "category_marketing") { _, isEnabled -> received.add(isEnabled) }
+
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+        owner.destroy()
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = false)))
+
+        assertEquals(listOf(true), received)
+    }
+
+    @Test
+    fun `clearing consent resets the category baseline without notifying`() {
+        val received = mutableListOf<Boolean>()
+        notifier.addCategoryListener("category_marketing") { _, isEnabled -> received.add(isEnabled) }
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+
+        notifier.publish(ConsentSnapshot.EMPTY)
+        notifier.publish(ConsentSnapshot.of(preferences(marketing = true)))
+
+        assertEquals(listOf(true, true), received)
+    }
+}
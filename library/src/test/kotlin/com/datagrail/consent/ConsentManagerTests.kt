@@ -4,12 +4,24 @@ import com.datagrail.consent.models.*
 import com.datagrail.consent.network.ConfigService
 import com.datagrail.consent.network.ConsentService
 import com.datagrail.consent.storage.ConsentStorage
+import kotlinx.coroutines.test.runTest
 import org.junit.Assert.*
 import org.junit.Before
 import org.junit.Test
 import org.mockito.Mock
+import org.mockito.Mockito.RETURNS_DEFAULTS
 import org.mockito.MockitoAnnotations
+import org.mockito.kotlin.any
+import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.inOrder
+import org.mockito.kotlin.isNull
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.verifyNoMoreInteractions
 import org.mockito.kotlin.whenever
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
  * Tests for ConsentManager state management and category detection
@@ -260,6 +272,258 @@ class ConsentManagerTests {
         assertFalse(sut.isCategoryEnabled("dg-category-marketing"))
     }
 
+    // MARK: - Snapshot Tests
+
+    @Test
+    fun `isCategoryEnabled loads preferences from storage only once`() {
+        // Given
+        val savedPreferences =
+            ConsentPreferences(
+                isCustomised = true,
+                cookieOptions =
+                    listOf(
+                        CategoryConsent(gtmKey = "dg-category-essential", isEnabled = true),
+                        CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = false),
+                    ),
+            )
+        whenever(mockStorage.loadPreferences()).thenReturn(savedPreferences)
+
+        // When
+        repeat(100) {
+            assertTrue(sut.isCategoryEnabled("dg-category-essential"))
+            assertFalse(sut.isCategoryEnabled("dg-category-marketing"))
+        }
+        sut.getUserPreferences()
+        sut.getCategories()
+
+        // Then
+        verify(mockStorage, times(1)).loadPreferences()
+    }
+
+    @Test
+    fun `isCategoryEnabled uses first entry for duplicate keys`() {
+        // Given
+        val savedPreferences =
+            ConsentPreferences(
+                isCustomised = true,
+                cookieOptions =
+                    listOf(
+                        CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = false),
+                        CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = true),
+                    ),
+            )
+        whenever(mockStorage.loadPreferences()).thenReturn(savedPreferences)
+
+        // When/Then - same answer as ConsentPreferences.isCategoryEnabled
+        assertEquals(
+            savedPreferences.isCategoryEnabled("dg-category-marketing"),
+            sut.isCategoryEnabled("dg-category-marketing"),
+        )
+    }
+
+    @Test
+    fun `savePreferences replaces snapshot without reloading storage`() =
+        runTest {
+            // Given
+            sut.currentConfig = createMockConfigWithShowBanner(showBanner = true)
+            whenever(mockStorage.loadPreferences()).thenReturn(null)
+            assertFalse(sut.isCategoryEnabled("dg-category-marketing"))
+
+            val newPreferences =
+                ConsentPreferences(
+                    isCustomised = true,
+                    cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = true)),
+                )
+
+            whenever(mockStorage.saveConsent(any(), any(), anyOrNull())).thenReturn("user-1")
+
+            // When
+            sut.savePreferences(newPreferences) { }
+
+            // Then
+            assertTrue(sut.isCategoryEnabled("dg-category-marketing"))
+            assertEquals(newPreferences, sut.getUserPreferences())
+            verify(mockStorage, times(1)).loadPreferences()
+        }
+
+    @Test
+    fun `savePreferences commits locally once and then sends`() =
+        runTest {
+            // Given
+            val config = createMockConfigWithShowBanner(showBanner = true, version = "v2")
+            sut.currentConfig = config
+            val preferences =
+                ConsentPreferences(
+                    isCustomised = true,
+                    cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = true)),
+                )
+            whenever(mockStorage.saveConsent(eq(preferences), eq("v2"), anyOrNull())).thenReturn("user-1")
+
+            // When
+            var result: Result<Unit>? = null
+            sut.savePreferences(preferences) { result = it }
+
+            // Then - exactly one storage write for the whole decision
+            assertTrue(result!!.isSuccess)
+            val inOrder = inOrder(mockStorage, mockConsentService)
+            inOrder.verify(mockStorage).saveConsent(eq(preferences), eq("v2"), anyOrNull())
+            inOrder.verify(mockConsentService).savePreferences(preferences, config.header(), "user-1")
+            verifyNoMoreInteractions(mockStorage)
+        }
+
+    @Test
+    fun `reset clears snapshot without reloading storage`() {
+        // Given
+        val savedPreferences =
+            ConsentPreferences(
+                isCustomised = true,
+                cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = true)),
+            )
+        whenever(mockStorage.loadPreferences()).thenReturn(savedPreferences)
+        assertTrue(sut.isCategoryEnabled("dg-category-marketing"))
+
+        // When
+        sut.reset()
+
+        // Then
+        assertNull(sut.getUserPreferences())
+        assertFalse(sut.isCategoryEnabled("dg-category-marketing"))
+        verify(mockStorage, times(1)).loadPreferences()
+    }
+
+    // MARK: - Stale-While-Revalidate Tests
+
+    @Test
+    fun `loadCachedConfig serves valid cache as current config`() {
+        // Given
+        val cached = createMockConfigWithShowBanner(showBanner = true, version = "v1")
+        whenever(mockConfigService.loadCachedConfig()).thenReturn(LazyConfig.of(cached))
+
+        // When
+        val result = sut.loadCachedConfig()
+
+        // Then
+        assertEquals(cached, result?.config)
+        assertEquals(cached, sut.currentConfig)
+    }
+
+    @Test
+    fun `loadCachedConfig with no usable cache leaves config unset`() {
+        // Given
+        whenever(mockConfigService.loadCachedConfig()).thenReturn(null)
+
+        // When/Then
+        assertNull(sut.loadCachedConfig())
+        assertNull(sut.currentConfig)
+    }
+
+    @Test
+    fun `unreadable cached layout discards the config instead of throwing`() {
+        // Given - a cached config whose layout fails to decode
+        val cached = createMockConfigWithShowBanner(showBanner = true)
+        val broken = LazyConfig(cached.header()) { throw IllegalStateException("Unreadable layout") }
+        whenever(mockConfigService.loadCachedConfig()).thenReturn(broken)
+        sut.loadCachedConfig()
+        val index = sut.localizedIndex("en")!!
+
+        // When/Then
+        assertFalse(sut.loadLayout(index))
+        assertNull(sut.configIndex)
+        verify(mockConfigService).discardCachedConfig()
+    }
+
+    @Test
+    fun `readable layout is decoded and the config kept`() {
+        // Given
+        val cached = createMockConfigWithShowBanner(showBanner = true)
+        whenever(mockConfigService.loadCachedConfig()).thenReturn(LazyConfig.of(cached))
+        sut.loadCachedConfig()
+        val index = sut.localizedIndex("en")!!
+
+        // When/Then
+        assertTrue(sut.loadLayout(index))
+        assertTrue(index.isLayoutLoaded)
+        assertSame(index, sut.configIndex)
+    }
+
+    @Test
+    fun `savePreferences does not decode the layout`() =
+        runTest {
+            // Given - a cached config whose layout fails to decode
+            val cached = createMockConfigWithShowBanner(showBanner = true, version = "v2")
+            val broken = LazyConfig(cached.header()) { throw IllegalStateException("Unreadable layout") }
+            whenever(mockConfigService.loadCachedConfig()).thenReturn(broken)
+            sut.loadCachedConfig()
+            val preferences =
+                ConsentPreferences(
+                    isCustomised = true,
+                    cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = true)),
+                )
+            whenever(mockStorage.saveConsent(eq(preferences), eq("v2"), isNull())).thenReturn("user-1")
+
+            // When
+            var result: Result<Unit>? = null
+            sut.savePreferences(preferences) { result = it }
+
+            // Then - the decision is kept over the preferences' own keys and sent with the header
+            assertTrue(result!!.isSuccess)
+            assertTrue(sut.isCategoryEnabled("dg-category-marketing"))
+            verify(mockConsentService).savePreferences(preferences, cached.header(), "user-1")
+        }
+
+    @Test
+    fun `readConfig discards an unreadable layout instead of throwing`() {
+        // Given
+        val cached = createMockConfigWithShowBanner(showBanner = true)
+        val broken = LazyConfig(cached.header()) { throw IllegalStateException("Unreadable layout") }
+        whenever(mockConfigService.loadCachedConfig()).thenReturn(broken)
+        sut.loadCachedConfig()
+
+        // When/Then
+        assertNull(sut.readConfig())
+        assertNull(sut.configIndex)
+        verify(mockConfigService).discardCachedConfig()
+    }
+
+    @Test
+    fun `revalidateConfig swaps config and reports banner needed on version change`() =
+        runTest {
+            // Given - user consented under v1
+            val cached = createMockConfigWithShowBanner(showBanner = true, version = "v1")
+            val refreshed = createMockConfigWithShowBanner(showBanner = true, version = "v2")
+            sut.currentConfig = cached
+            whenever(mockConfigService.fetchConfigWithRetry("https://example.com/config.json"))
+                .thenReturn(LazyConfig.of(refreshed))
+            whenever(mockStorage.loadPreferences()).thenReturn(
+                ConsentPreferences(
+                    isCustomised = true,
+                    cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-essential", isEnabled = true)),
+                ),
+            )
+            whenever(mockStorage.loadConfigVersion()).thenReturn("v1")
+
+            // When
+            val bannerRequired = sut.revalidateConfig("https://example.com/config.json")
+
+            // Then
+            assertTrue(bannerRequired)
+            assertEquals("v2", sut.currentConfig?.version)
+        }
+
+    @Test
+    fun `revalidateConfig with same version does not require banner`() =
+        runTest {
+            // Given
+            val cached = createMockConfigWithShowBanner(showBanner = true, version = "v1")
+            sut.currentConfig = cached
+            whenever(mockConfigService.fetchConfigWithRetry("https://example.com/config.json"))
+                .thenReturn(LazyConfig.of(cached.copy()))
+
+            // When/Then
+            assertFalse(sut.revalidateConfig("https://example.com/config.json"))
+            assertEquals("v1", sut.currentConfig?.version)
+        }
+
     // MARK: - needsConsent Tests
 
     @Test
@@ -420,6 +684,220 @@ class ConsentManagerTests {
         assertTrue(essentialCategories.isEmpty())
     }
 
+    // MARK: - Main Thread Read Tests
+
+    @Test
+    fun `queries after warmUp never read storage`() {
+        // Given - consent saved under the current config version
+        val diskReadsForbidden = AtomicBoolean(false)
+        val storage = strictStorage(diskReadsForbidden)
+        val savedPreferences =
+            ConsentPreferences(
+                isCustomised = true,
+                cookieOptions =
+                    listOf(
+                        CategoryConsent(gtmKey = "dg-category-essential", isEnabled = true),
+                        CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = false),
+                    ),
+            )
+        whenever(storage.loadPreferences()).thenReturn(savedPreferences)
+        whenever(storage.loadConfigVersion()).thenReturn("v1")
+        val manager = ConsentManager(storage, mockConfigService, mockConsentService)
+        manager.currentConfig = createMockConfigWithShowBanner(showBanner = true, version = "v1")
+
+        // When
+        manager.warmUp()
+        diskReadsForbidden.set(true)
+
+        // Then - every query is answered from memory
+        repeat(100) {
+            assertFalse(manager.needsConsent())
+            assertEquals(savedPreferences, manager.getUserPreferences())
+            assertEquals(savedPreferences, manager.getCategories())
+            assertTrue(manager.isCategoryEnabled("dg-category-essential"))
+            assertFalse(manager.isCategoryEnabled("dg-category-marketing"))
+        }
+        verify(storage, times(1)).loadPreferences()
+        verify(storage, times(1)).loadConfigVersion()
+    }
+
+    @Test
+    fun `queries after savePreferences never read storage`() =
+        runTest {
+            // Given - nothing saved yet
+            val diskReadsForbidden = AtomicBoolean(false)
+            val storage = strictStorage(diskReadsForbidden)
+            whenever(storage.saveConsent(any(), any(), anyOrNull())).thenReturn("test-id")
+            val manager = ConsentManager(storage, mockConfigService, mockConsentService)
+            manager.currentConfig = createMockConfigWithShowBanner(showBanner = true, version = "v1")
+            manager.warmUp()
+            diskReadsForbidden.set(true)
+            assertTrue(manager.needsConsent())
+            val preferences =
+                ConsentPreferences(
+                    isCustomised = true,
+                    cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = true)),
+                )
+
+            // When
+            manager.savePreferences(preferences) { assertTrue(it.isSuccess) }
+
+            // Then - the saved decision and its config version are served from memory
+            assertFalse(manager.needsConsent())
+            assertEquals(preferences, manager.getUserPreferences())
+            assertTrue(manager.isCategoryEnabled("dg-category-marketing"))
+        }
+
+    @Test
+    fun `queries after reset never read storage`() {
+        // Given
+        val diskReadsForbidden = AtomicBoolean(false)
+        val storage = strictStorage(diskReadsForbidden)
+        whenever(storage.loadPreferences()).thenReturn(
+            ConsentPreferences(
+                isCustomised = true,
+                cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = true)),
+            ),
+        )
+        val manager = ConsentManager(storage, mockConfigService, mockConsentService)
+        manager.warmUp()
+        diskReadsForbidden.set(true)
+
+        // When
+        manager.reset()
+
+        // Then
+        assertNull(manager.getUserPreferences())
+        assertFalse(manager.isCategoryEnabled("dg-category-marketing"))
+    }
+
+    // MARK: - Consent State Tests
+
+    @Test
+    fun `warmUp publishes saved preferences to the state without notifying listeners`() {
+        // Given
+        val notifier = ConsentChangeNotifier()
+        val received = mutableListOf<ConsentPreferences>()
+        notifier.addListener { received.add(it) }
+        val savedPreferences =
+            ConsentPreferences(
+                isCustomised = true,
+                cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = true)),
+            )
+        whenever(mockStorage.loadPreferences()).thenReturn(savedPreferences)
+        val manager = ConsentManager(mockStorage, mockConfigService, mockConsentService, notifier)
+
+        // When
+        manager.warmUp()
+
+        // Then
+        assertEquals(savedPreferences, notifier.preferences.value)
+        assertTrue(received.isEmpty())
+    }
+
+    @Test
+    fun `savePreferences and reset publish consent changes`() =
+        runTest {
+            // Given
+            val notifier = ConsentChangeNotifier()
+            val received = mutableListOf<ConsentPreferences>()
+            notifier.addListener { received.add(it) }
+            whenever(mockStorage.saveConsent(any(), any(), anyOrNull())).thenReturn("test-id")
+            val manager = ConsentManager(mockStorage, mockConfigService, mockConsentService, notifier)
+            manager.currentConfig = createMockConfigWithShowBanner(showBanner = true)
+            val preferences =
+                ConsentPreferences(
+                    isCustomised = true,
+                    cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = true)),
+                )
+
+            // When - the same decision is saved twice
+            manager.savePreferences(preferences) { }
+            manager.savePreferences(preferences.copy()) { }
+
+            // Then - only the actual change is delivered
+            assertEquals(listOf(preferences), received)
+            assertEquals(preferences, notifier.preferences.value)
+
+            // When
+            manager.reset()
+
+            // Then
+            assertNull(notifier.preferences.value)
+        }
+
+    @Test
+    fun `first save reports a rejected default category`() =
+        runTest {
+            // Given - marketing is on by default and nothing is saved yet
+            val notifier = ConsentChangeNotifier()
+            val received = mutableListOf<Pair<String, Boolean>>()
+            notifier.addCategoryListener("dg-category-marketing") { key, isEnabled -> received.add(key to isEnabled) }
+            whenever(mockStorage.saveConsent(any(), any(), anyOrNull())).thenReturn("test-id")
+            val manager = ConsentManager(mockStorage, mockConfigService, mockConsentService, notifier)
+            manager.currentConfig = createMockConfigWithInitialCategories(listOf("dg-category-marketing"))
+            val preferences =
+                ConsentPreferences(
+                    isCustomised = true,
+                    cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = false)),
+                )
+
+            // When
+            manager.savePreferences(preferences) { }
+
+            // Then
+            assertEquals(listOf("dg-category-marketing" to false), received)
+        }
+
+    @Test
+    fun `consent change is published when the backend save fails`() =
+        runTest {
+            // Given
+            val notifier = ConsentChangeNotifier()
+            val received = mutableListOf<ConsentPreferences>()
+            notifier.addListener { received.add(it) }
+            whenever(mockStorage.saveConsent(any(), any(), anyOrNull())).thenReturn("test-id")
+            whenever(mockConsentService.savePreferences(any(), any(), any()))
+                .thenAnswer { throw ConsentException.NetworkError("Offline") }
+            val manager = ConsentManager(mockStorage, mockConfigService, mockConsentService, notifier)
+            manager.currentConfig = createMockConfigWithShowBanner(showBanner = true)
+            val preferences =
+                ConsentPreferences(
+                    isCustomised = true,
+                    cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = true)),
+                )
+
+            // When
+            var result: Result<Unit>? = null
+            manager.savePreferences(preferences) { result = it }
+
+            // Then - the decision is committed locally, so it is published even though the send failed
+            assertTrue(result!!.exceptionOrNull() is ConsentException.NetworkError)
+            assertEquals(listOf(preferences), received)
+            assertEquals(preferences, notifier.preferences.value)
+            assertTrue(manager.isCategoryEnabled("dg-category-marketing"))
+        }
+
+    // MARK: - Config Index Tests
+
+    @Test
+    fun `config swap rebuilds the index once`() {
+        // Given
+        sut.currentConfig = createMockConfig(listOf(MockCategory("category_essential", alwaysOn = true)))
+        val defaults = sut.getDefaultPreferences()
+
+        // Then - repeated reads share the prebuilt values
+        assertSame(defaults, sut.getDefaultPreferences())
+        assertSame(sut.getEssentialCategories(), sut.getEssentialCategories())
+
+        // When
+        sut.currentConfig = createMockConfig(listOf(MockCategory("category_functional", alwaysOn = true)))
+
+        // Then
+        assertEquals(setOf("category_functional"), sut.getEssentialCategories())
+        assertSame(sut.currentConfig, sut.configIndex?.config)
+    }
+
     // MARK: - Reset Identifier Tests
 
     @Test
@@ -431,6 +909,19 @@ class ConsentManagerTests {
 
     // MARK: - Helper Methods
 
+    /**
+     * StrictMode-style guard: a storage mock whose load methods fail the test once reads are forbidden
+     */
+    private fun strictStorage(diskReadsForbidden: AtomicBoolean): ConsentStorage =
+        mock(
+            defaultAnswer = { invocation ->
+                if (diskReadsForbidden.get() && invocation.method.name.startsWith("load")) {
+                    throw AssertionError("Storage read after warm-up: ${invocation.method.name}")
+                }
+                RETURNS_DEFAULTS.answer(invocation)
+            },
+        )
+
     private fun createMockConfigWithInitialCategories(initialCategories: List<String>): ConsentConfig {
         return createBaseConfig().copy(
             initialCategories =
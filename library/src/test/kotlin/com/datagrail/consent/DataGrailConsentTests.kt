@@ -1,10 +1,17 @@
 package com.datagrail.consent
 
+import com.datagrail.consent.models.CategoryConsent
 import com.datagrail.consent.models.ConsentException
+import com.datagrail.consent.models.ConsentPreferences
+import com.datagrail.consent.network.HttpTransport
+import com.datagrail.consent.network.HttpTransportRequest
+import com.datagrail.consent.network.HttpTransportResponse
+import com.datagrail.consent.storage.ConsentStorage
 import com.datagrail.consent.utils.ConsentLogger
 import com.datagrail.consent.utils.LogLevel
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.test.StandardTestDispatcher
 import kotlinx.coroutines.test.resetMain
@@ -16,6 +23,14 @@ import org.junit.Before
 import org.junit.Test
 import org.mockito.Mock
 import org.mockito.MockitoAnnotations
+import org.mockito.kotlin.clearInvocations
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 
 /**
  * Tests for DataGrailConsent public API including URL validation and category detection
@@ -125,6 +140,163 @@ class DataGrailConsentTests {
         assertEquals("consent.datagrail.io", url.host)
     }
 
+    // MARK: - Async Initialization Tests
+
+    @Test
+    fun `initialize with asyncStorageInit defers storage setup and reports failure through callback`() =
+        runTest {
+            // Given
+            var storageCreated = false
+            var resultError: Throwable? = null
+            var timings: InitTimings? = null
+            val options =
+                ConsentOptions.Builder()
+                    .asyncStorageInit(true)
+                    .initTimingsListener { timings = it }
+                    .build()
+            sut.storageDispatcher = testDispatcher
+            sut.storageFactory = {
+                storageCreated = true
+                throw ConsentException.InvalidConfiguration("Failed to initialize encrypted storage")
+            }
+
+            try {
+                // When
+                sut.initialize(mockContext, "https://consent.example.com/config.json", options) { result ->
+                    result.fold(
+                        onSuccess = { },
+                        onFailure = { error -> resultError = error },
+                    )
+                }
+
+                // Then - nothing ran on the calling thread
+                assertFalse("Storage should not be created synchronously", storageCreated)
+                assertFalse(sut.isReady())
+                assertThrows(ConsentException.NotInitialized::class.java) { sut.shouldDisplayBanner() }
+
+                testScheduler.advanceUntilIdle()
+
+                assertTrue(storageCreated)
+                assertTrue(resultError is ConsentException.InvalidConfiguration)
+                assertFalse(sut.isReady())
+                assertNotNull(timings)
+                assertTrue(timings!!.asyncStorageInit)
+                assertFalse(timings!!.success)
+
+                try {
+                    sut.awaitReady()
+                    fail("Expected awaitReady to rethrow the storage failure")
+                } catch (e: ConsentException.InvalidConfiguration) {
+                    assertTrue(e.message!!.contains("encrypted storage"))
+                }
+            } finally {
+                sut.storageDispatcher = Dispatchers.IO
+                sut.storageFactory = ConsentStorage::create
+            }
+        }
+
+    @Test
+    fun `await queries wait for asynchronous storage setup and then answer from memory`() =
+        runTest {
+            // Given - saved consent and a config endpoint that cannot be reached
+            val storage = mock<ConsentStorage>()
+            whenever(storage.loadPreferences()).thenReturn(
+                ConsentPreferences(
+                    isCustomised = true,
+                    cookieOptions = listOf(CategoryConsent(gtmKey = "dg-category-marketing", isEnabled = true)),
+                ),
+            )
+            val offline =
+                object : HttpTransport {
+                    override fun execute(request: HttpTransportRequest): HttpTransportResponse {
+                        throw IOException("offline")
+                    }
+                }
+            val options =
+                ConsentOptions.Builder()
+                    .asyncStorageInit(true)
+                    .transport(offline)
+                    .retryPolicy(RetryPolicy.Builder().maxAttempts(1).build())
+                    .build()
+            sut.storageDispatcher = testDispatcher
+            sut.storageFactory = { storage }
+
+            try {
+                // When
+                sut.initialize(mockContext, "https://consent.example.com/config.json", options) { }
+                assertThrows(ConsentException.NotInitialized::class.java) {
+                    sut.isCategoryEnabled("dg-category-marketing")
+                }
+                val enabled = async { sut.awaitCategoryEnabled("dg-category-marketing") }
+                val hasConsent = async { sut.awaitUserConsent() }
+
+                // Then
+                assertTrue(enabled.await())
+                assertTrue(hasConsent.await())
+                testScheduler.advanceUntilIdle()
+
+                // Saved consent was read once during setup; queries no longer touch storage
+                clearInvocations(storage)
+                assertTrue(sut.isCategoryEnabled("dg-category-marketing"))
+                assertTrue(sut.hasUserConsent())
+                assertNotNull(sut.awaitCategories())
+                assertFalse(sut.awaitShouldDisplayBanner())
+                verify(storage, never()).loadPreferences()
+                verify(storage, never()).loadConfigVersion()
+            } finally {
+                sut.storageDispatcher = Dispatchers.IO
+                sut.storageFactory = ConsentStorage::create
+            }
+        }
+
+    @Test
+    fun `initialize sends requests through the transport from options`() =
+        runTest {
+            // Given
+            val requestedUrls = mutableListOf<String>()
+            val requested = CountDownLatch(1)
+            val transport =
+                object : HttpTransport {
+                    override fun execute(request: HttpTransportRequest): HttpTransportResponse {
+                        synchronized(requestedUrls) { requestedUrls.add(request.url) }
+                        requested.countDown()
+                        throw IOException("offline")
+                    }
+                }
+            val options = ConsentOptions.Builder().transport(transport).build()
+            sut.storageFactory = { mock() }
+
+            try {
+                // When
+                sut.initialize(mockContext, "https://consent.example.com/config.json", options) { }
+                testScheduler.advanceUntilIdle()
+
+                // Then
+                assertTrue("Config request should use the custom transport", requested.await(5, TimeUnit.SECONDS))
+                val firstUrl = synchronized(requestedUrls) { requestedUrls.first() }
+                assertEquals("https://consent.example.com/config.json", firstUrl)
+                assertNull("Metrics are only reported for the built-in transport", sut.getTransportMetrics())
+            } finally {
+                sut.storageFactory = ConsentStorage::create
+            }
+        }
+
+    @Test
+    fun `getTransportMetrics reports the built-in transport`() {
+        // Given
+        sut.storageFactory = { mock() }
+
+        try {
+            // When
+            sut.initialize(mockContext, "https://consent.example.com/config.json") { }
+
+            // Then
+            assertEquals(TransportMetrics(requestCount = 0, handshakeCount = 0), sut.getTransportMetrics())
+        } finally {
+            sut.storageFactory = ConsentStorage::create
+        }
+    }
+
     // MARK: - setLogLevel Tests
 
     @Test
@@ -0,0 +1,176 @@
+package com.datagrail.consent.models
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.IOException
+
+/**
+ * Tests for CategoryTable and ConsentBits:
+ * - Lookups and conversion back to ConsentPreferences
+ * - Equality and diffing
+ * - Binary encoding round trips, with and without the table keys, and rejection of bad input
+ */
+class ConsentBitsTest {
+    private val table = CategoryTable.of("v1", listOf("category_essential", "category_marketing", "category_analytics"))
+
+    private fun preferences(
+        vararg options: Pair<String, Boolean>,
+        isCustomised: Boolean = true,
+    ) = ConsentPreferences(
+        isCustomised = isCustomised,
+        cookieOptions = options.map { (key, isEnabled) -> CategoryConsent(gtmKey = key, isEnabled = isEnabled) },
+    )
+
+    // MARK: - Table
+
+    @Test
+    fun `table assigns indices in order and ignores duplicates`() {
+        val table = CategoryTable.of("v1", listOf("a", "b", "a", "c"))
+
+        assertEquals(listOf("a", "b", "c"), table.keys)
+        assertEquals(2, table.indexOf("c"))
+        assertEquals(-1, table.indexOf("missing"))
+    }
+
+    // MARK: - Lookups
+
+    @Test
+    fun `lookups match the data class`() {
+        val preferences = preferences("category_essential" to true, "category_marketing" to false, "other" to true)
+        val bits = ConsentBits.of(preferences, table)
+
+        for (key in listOf("category_essential", "category_marketing", "category_analytics", "other", "missing")) {
+            assertEquals(key, preferences.isCategoryEnabled(key), bits.isCategoryEnabled(key))
+        }
+    }
+
+    @Test
+    fun `first entry wins for duplicate keys`() {
+        val bits = ConsentBits.of(preferences("category_marketing" to true, "category_marketing" to false), table)
+
+        assertTrue(bits.isCategoryEnabled("category_marketing"))
+        assertEquals(preferences("category_marketing" to true), bits.toPreferences())
+    }
+
+    @Test
+    fun `conversion keeps listed categories and extras`() {
+        val preferences = preferences("other" to true, "category_analytics" to false, isCustomised = false)
+
+        val converted = ConsentBits.of(preferences, table).toPreferences()
+
+        // Table categories come first, in index order
+        assertEquals(preferences("category_analytics" to false, "other" to true, isCustomised = false), converted)
+    }
+
+    // MARK: - Equality and Diff
+
+    @Test
+    fun `equal preferences give equal bits`() {
+        val first = ConsentBits.of(preferences("category_marketing" to true, "category_essential" to true), table)
+        val second = ConsentBits.of(preferences("category_essential" to true, "category_marketing" to true), table)
+
+        assertEquals(first, second)
+        assertEquals(first.hashCode(), second.hashCode())
+        assertNotEquals(first, ConsentBits.of(preferences("category_marketing" to true), table))
+    }
+
+    @Test
+    fun `changed keys lists flipped categories`() {
+        val before = ConsentBits.of(preferences("category_marketing" to true, "other" to false), table)
+        val after = ConsentBits.of(preferences("category_analytics" to true, "other" to true), table)
+
+        assertEquals(setOf("category_marketing", "category_analytics", "other"), before.changedKeys(after))
+        assertTrue(before.changedKeys(before).isEmpty())
+    }
+
+    @Test
+    fun `changed keys compares by key across tables`() {
+        val before = ConsentBits.of(preferences("category_marketing" to true), table)
+        val after = ConsentBits.of(preferences("category_marketing" to true, "category_analytics" to true), "v2")
+
+        assertEquals(setOf("category_analytics"), before.changedKeys(after))
+    }
+
+    @Test
+    fun `changed keys against no consent lists enabled categories`() {
+        val bits = ConsentBits.of(preferences("category_marketing" to true, "category_analytics" to false), table)
+
+        assertEquals(setOf("category_marketing"), bits.changedKeys(null))
+    }
+
+    @Test
+    fun `equality compares by key across tables`() {
+        val preferences = preferences("category_marketing" to true, "category_analytics" to false)
+        val overConfig = ConsentBits.of(preferences, table)
+        val overOwnKeys = ConsentBits.of(preferences, "v1")
+
+        assertEquals(overConfig, overOwnKeys)
+        assertEquals(overConfig.hashCode(), overOwnKeys.hashCode())
+        assertNotEquals(overConfig, ConsentBits.of(preferences("category_marketing" to true), "v1"))
+    }
+
+    // MARK: - Encoding
+
+    @Test
+    fun `encoding round trips`() {
+        val keys = (0 until 70).map { "category_$it" }
+        val preferences = preferences(*keys.mapIndexed { i, key -> key to (i % 3 == 0) }.toTypedArray(), "x" to true)
+        val bits = ConsentBits.of(preferences, CategoryTable.of("v1", keys))
+
+        val decoded = ConsentBits.decode(bits.encode())
+
+        assertEquals(bits, decoded)
+        assertEquals("v1", decoded.table.version)
+        assertEquals(preferences, decoded.toPreferences())
+    }
+
+    @Test
+    fun `encoding against a known table round trips without the keys`() {
+        val preferences = preferences("category_marketing" to true, "category_analytics" to false, "x" to true)
+        val bits = ConsentBits.of(preferences, table)
+
+        val encoded = bits.encode(embedTable = false)
+        val decoded = ConsentBits.decode(encoded) { version -> table.takeIf { it.version == version } }
+
+        assertTrue(encoded.size < bits.encode().size)
+        assertEquals(bits, decoded)
+        assertSame(table, decoded.table)
+        assertEquals(preferences, decoded.toPreferences())
+    }
+
+    @Test(expected = IOException::class)
+    fun `encoding without keys needs the table`() {
+        val bytes = ConsentBits.of(preferences("category_marketing" to true), table).encode(embedTable = false)
+
+        ConsentBits.decode(bytes) { null }
+    }
+
+    @Test(expected = IOException::class)
+    fun `encoding without keys rejects a table of another size`() {
+        val bytes = ConsentBits.of(preferences("category_marketing" to true), table).encode(embedTable = false)
+
+        ConsentBits.decode(bytes) { version -> CategoryTable.of(version, listOf("category_marketing")) }
+    }
+
+    @Test
+    fun `table encoding round trips`() {
+        val decoded = CategoryTable.decode(table.encode())
+
+        assertTrue(decoded.sameAs(table))
+    }
+
+    @Test(expected = IOException::class)
+    fun `unknown format version is rejected`() {
+        val bytes = ConsentBits.of(preferences("category_marketing" to true), table).encode()
+        bytes[0] = 99
+
+        ConsentBits.decode(bytes)
+    }
+
+    @Test(expected = IOException::class)
+    fun `truncated bytes are rejected`() {
+        val bytes = ConsentBits.of(preferences("category_marketing" to true), table).encode()
+
+        ConsentBits.decode(bytes.copyOf(bytes.size - 3))
+    }
+}
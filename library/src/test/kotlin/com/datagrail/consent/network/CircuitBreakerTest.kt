@@ -0,0 +1,161 @@
+package com.datagrail.consent.network
+
+import com.datagrail.consent.models.ConsentException
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for CircuitBreaker state transitions:
+ * - Opening after consecutive endpoint failures
+ * - Short-circuiting while open
+ * - Half-open probing
+ * - Which errors count as endpoint failures
+ */
+class CircuitBreakerTest {
+    private var nowMs = 0L
+
+    private fun breaker(threshold: Int = 3) =
+        CircuitBreaker(failureThreshold = threshold, openDurationMs = 1_000, nanoTime = { nowMs * 1_000_000 })
+
+    private fun CircuitBreaker.fail(times: Int) =
+        repeat(times) {
+            assertTrue(tryAcquire())
+            onFailure()
+        }
+
+    // MARK: - Closed
+
+    @Test
+    fun `stays closed below the failure threshold`() {
+        val breaker = breaker()
+
+        breaker.fail(2)
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState)
+        assertTrue(breaker.tryAcquire())
+    }
+
+    @Test
+    fun `success resets the consecutive failure count`() {
+        val breaker = breaker()
+
+        breaker.fail(2)
+        breaker.onSuccess()
+        breaker.fail(2)
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState)
+    }
+
+    // MARK: - Open
+
+    @Test
+    fun `opens after consecutive failures and refuses requests`() {
+        val breaker = breaker()
+
+        breaker.fail(3)
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.currentState)
+        assertFalse(breaker.tryAcquire())
+    }
+
+    @Test
+    fun `call short-circuits without running the request while open`() =
+        runTest {
+            val breaker = breaker()
+            breaker.fail(3)
+            var requested = false
+
+            try {
+                breaker.call { requested = true }
+                fail("Expected NetworkError")
+            } catch (e: ConsentException.NetworkError) {
+                assertNull(e.statusCode)
+            }
+            assertFalse(requested)
+        }
+
+    // MARK: - Half-Open
+
+    @Test
+    fun `allows a single probe once the open duration has passed`() {
+        val breaker = breaker()
+        breaker.fail(3)
+
+        nowMs = 1_000
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.currentState)
+        assertTrue("First request is the probe", breaker.tryAcquire())
+        assertFalse("Others wait for the probe", breaker.tryAcquire())
+    }
+
+    @Test
+    fun `successful probe closes the circuit`() {
+        val breaker = breaker()
+        breaker.fail(3)
+        nowMs = 1_000
+
+        assertTrue(breaker.tryAcquire())
+        breaker.onSuccess()
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState)
+        assertTrue(breaker.tryAcquire())
+        assertTrue(breaker.tryAcquire())
+    }
+
+    @Test
+    fun `failed probe reopens the circuit for another open duration`() {
+        val breaker = breaker()
+        breaker.fail(3)
+        nowMs = 1_000
+
+        assertTrue(breaker.tryAcquire())
+        breaker.onFailure()
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.currentState)
+        nowMs = 1_999
+        assertFalse(breaker.tryAcquire())
+        nowMs = 2_000
+        assertTrue(breaker.tryAcquire())
+    }
+
+    @Test
+    fun `cancelled probe lets another request probe`() =
+        runTest {
+            val breaker = breaker()
+            breaker.fail(3)
+            nowMs = 1_000
+
+            try {
+                breaker.call { throw CancellationException("cancelled") }
+            } catch (_: CancellationException) {
+            }
+
+            assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.currentState)
+            assertTrue(breaker.tryAcquire())
+        }
+
+    // MARK: - Failure Classification
+
+    @Test
+    fun `client errors prove the endpoint is up`() =
+        runTest {
+            val breaker = breaker(threshold = 1)
+
+            try {
+                breaker.call { throw ConsentException.NetworkError("HTTP 400", statusCode = 400) }
+            } catch (_: ConsentException.NetworkError) {
+            }
+
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.currentState)
+        }
+
+    @Test
+    fun `endpoint failures are unreachable, 5xx and 429 responses`() {
+        assertTrue(CircuitBreaker.isEndpointFailure(ConsentException.NetworkError("timeout")))
+        assertTrue(CircuitBreaker.isEndpointFailure(ConsentException.NetworkError("HTTP 503", statusCode = 503)))
+        assertTrue(CircuitBreaker.isEndpointFailure(ConsentException.NetworkError("HTTP 429", statusCode = 429)))
+        assertFalse(CircuitBreaker.isEndpointFailure(ConsentException.NetworkError("HTTP 404", statusCode = 404)))
+    }
+}
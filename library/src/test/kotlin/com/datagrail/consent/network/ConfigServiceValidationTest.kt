@@ -2,6 +2,7 @@ package com.datagrail.consent.network
 
 import com.datagrail.consent.models.*
 import com.datagrail.consent.storage.ConsentStorage
+import kotlinx.coroutines.asCoroutineDispatcher
 import kotlinx.coroutines.test.runTest
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
@@ -13,12 +14,18 @@ import org.mockito.Mock
 import org.mockito.Mockito
 import org.mockito.MockitoAnnotations
 import org.mockito.kotlin.*
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+import java.security.MessageDigest
+import java.util.concurrent.Executors
 
 /**
  * Tests for ConfigService validation wiring:
  * - ConfigValidator.validate() is called after deserialization
  * - Validation failure falls back to cache
  * - Validation failure with no cache propagates error
+ * - Locale-pruned caches are only reused for their locale
+ * - Bodies identical to the cached one are neither revalidated nor re-cached
  */
 class ConfigServiceValidationTest {
     @Mock
@@ -53,13 +60,51 @@ class ConfigServiceValidationTest {
             val validConfig = ConsentServiceSecurityTest.createTestConfig()
             val configJson = json.encodeToString(validConfig)
 
-            whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull()))
-                .thenReturn(configJson)
+            stubResponses(HTTPResponse(200, emptyMap(), configJson))
 
             val result = configService.fetchConfig("https://example.com/config.json")
 
-            assertEquals(validConfig.version, result.version)
-            verify(mockStorage).saveConfigCache(any())
+            assertEquals(validConfig.version, result.header.version)
+            verify(mockStorage).saveConfigCache(any(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull())
+        }
+
+    @Test
+    fun `fetchConfig keeps only the encoded layout`() =
+        runTest {
+            val validConfig = ConsentServiceSecurityTest.createTestConfig()
+            stubResponses(HTTPResponse(200, emptyMap(), json.encodeToString(validConfig)))
+
+            val result = configService.fetchConfig("https://example.com/config.json")
+
+            assertNotNull(result.encodedLayout)
+            assertFalse(result.isLayoutLoaded)
+            assertEquals(validConfig, result.config)
+        }
+
+    @Test
+    fun `fetchConfig reads and writes the cache on the io dispatcher`() =
+        runTest {
+            val executor = Executors.newSingleThreadExecutor { Thread(it, "config-io") }
+            val ioService =
+                ConfigService(mockNetworkClient, mockStorage, ioDispatcher = executor.asCoroutineDispatcher())
+            val threads = mutableListOf<String>()
+            whenever(mockStorage.loadConfigContentHash()).thenAnswer {
+                threads.add(Thread.currentThread().name)
+                null
+            }
+            whenever(mockStorage.saveConfigCache(any(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull()))
+                .thenAnswer { threads.add(Thread.currentThread().name) }
+            val configJson = json.encodeToString(ConsentServiceSecurityTest.createTestConfig())
+            stubResponses(HTTPResponse(200, emptyMap(), configJson))
+
+            try {
+                ioService.fetchConfig("https://example.com/config.json")
+            } finally {
+                executor.shutdown()
+            }
+
+            assertTrue(threads.isNotEmpty())
+            assertEquals(setOf("config-io"), threads.toSet())
         }
 
     // MARK: - Validation Failure with Cache
@@ -72,15 +117,14 @@ class ConfigServiceValidationTest {
             val configJson = json.encodeToString(invalidConfig)
             val cachedConfig = ConsentServiceSecurityTest.createTestConfig().copy(version = "cached-v1")
 
-            whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull()))
-                .thenReturn(configJson)
-            whenever(mockStorage.loadConfigCache()).thenReturn(cachedConfig)
+            stubResponses(HTTPResponse(200, emptyMap(), configJson))
+            whenever(mockStorage.loadConfigCache()).thenReturn(LazyConfig.of(cachedConfig))
 
             val result = configService.fetchConfig("https://example.com/config.json")
 
-            assertEquals("cached-v1", result.version)
+            assertEquals("cached-v1", result.header.version)
             // Should NOT cache the invalid config
-            verify(mockStorage, never()).saveConfigCache(any())
+            verify(mockStorage, never()).saveConfigCache(any(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull())
         }
 
     @Test
@@ -90,13 +134,12 @@ class ConfigServiceValidationTest {
             val configJson = json.encodeToString(invalidConfig)
             val cachedConfig = ConsentServiceSecurityTest.createTestConfig()
 
-            whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull()))
-                .thenReturn(configJson)
-            whenever(mockStorage.loadConfigCache()).thenReturn(cachedConfig)
+            stubResponses(HTTPResponse(200, emptyMap(), configJson))
+            whenever(mockStorage.loadConfigCache()).thenReturn(LazyConfig.of(cachedConfig))
 
             val result = configService.fetchConfig("https://example.com/config.json")
 
-            assertEquals(cachedConfig.version, result.version)
+            assertEquals(cachedConfig.version, result.header.version)
         }
 
     // MARK: - Validation Failure without Cache
@@ -107,8 +150,7 @@ class ConfigServiceValidationTest {
             val invalidConfig = ConsentServiceSecurityTest.createTestConfig().copy(version = "")
             val configJson = json.encodeToString(invalidConfig)
 
-            whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull()))
-                .thenReturn(configJson)
+            stubResponses(HTTPResponse(200, emptyMap(), configJson))
             whenever(mockStorage.loadConfigCache()).thenReturn(null)
 
             try {
@@ -126,19 +168,19 @@ class ConfigServiceValidationTest {
         runTest {
             val cachedConfig = ConsentServiceSecurityTest.createTestConfig()
 
-            whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull()))
+            whenever(mockNetworkClient.stream<ConsentConfig>(any(), any(), anyOrNull(), anyOrNull(), any()))
                 .thenAnswer { throw ConsentException.NetworkError("timeout") }
-            whenever(mockStorage.loadConfigCache()).thenReturn(cachedConfig)
+            whenever(mockStorage.loadConfigCache()).thenReturn(LazyConfig.of(cachedConfig))
 
             val result = configService.fetchConfig("https://example.com/config.json")
 
-            assertEquals(cachedConfig.version, result.version)
+            assertEquals(cachedConfig.version, result.header.version)
         }
 
     @Test
     fun `fetchConfig with network failure and no cache throws NetworkError`() =
         runTest {
-            whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull()))
+            whenever(mockNetworkClient.stream<ConsentConfig>(any(), any(), anyOrNull(), anyOrNull(), any()))
                 .thenAnswer { throw ConsentException.NetworkError("timeout") }
             whenever(mockStorage.loadConfigCache()).thenReturn(null)
 
@@ -149,4 +191,255 @@ class ConfigServiceValidationTest {
                 assertTrue(e.message!!.contains("timeout"))
             }
         }
+
+    // MARK: - Conditional Requests
+
+    @Test
+    fun `fetchConfig stores ETag and Last-Modified with cached config`() =
+        runTest {
+            val validConfig = ConsentServiceSecurityTest.createTestConfig()
+            val headers = mapOf("etag" to "\"v1\"", "last-modified" to "Wed, 01 Apr 2026 00:00:00 GMT")
+
+            stubResponses(HTTPResponse(200, headers, json.encodeToString(validConfig)))
+
+            configService.fetchConfig("https://example.com/config.json")
+
+            verify(mockStorage)
+                .saveConfigCache(any(), eq("\"v1\""), eq("Wed, 01 Apr 2026 00:00:00 GMT"), any(), isNull())
+        }
+
+    @Test
+    fun `fetchConfig sends conditional headers when validators are stored`() =
+        runTest {
+            whenever(mockStorage.loadConfigETag()).thenReturn("\"v1\"")
+            whenever(mockStorage.loadConfigLastModified()).thenReturn("Wed, 01 Apr 2026 00:00:00 GMT")
+            whenever(mockStorage.loadConfigCache())
+                .thenReturn(LazyConfig.of(ConsentServiceSecurityTest.createTestConfig()))
+            stubResponses(HTTPResponse(304, emptyMap(), null))
+
+            configService.fetchConfig("https://example.com/config.json")
+
+            val headersCaptor = argumentCaptor<Map<String, String>>()
+            verify(mockNetworkClient).stream<ConsentConfig>(any(), any(), anyOrNull(), headersCaptor.capture(), any())
+            assertEquals("\"v1\"", headersCaptor.firstValue["If-None-Match"])
+            assertEquals("Wed, 01 Apr 2026 00:00:00 GMT", headersCaptor.firstValue["If-Modified-Since"])
+        }
+
+    @Test
+    fun `fetchConfig on 304 reuses cached config without re-caching`() =
+        runTest {
+            val cachedConfig = ConsentServiceSecurityTest.createTestConfig().copy(version = "cached-v1")
+            whenever(mockStorage.loadConfigETag()).thenReturn("\"v1\"")
+            whenever(mockStorage.loadConfigCache()).thenReturn(LazyConfig.of(cachedConfig))
+            stubResponses(HTTPResponse(304, emptyMap(), null))
+
+            val first = configService.fetchConfig("https://example.com/config.json")
+            val second = configService.fetchConfig("https://example.com/config.json")
+
+            assertEquals("cached-v1", first.header.version)
+            assertSame(first, second)
+            // Parsed config is kept in memory after the first 304
+            verify(mockStorage, times(1)).loadConfigCache()
+            verify(mockStorage, never()).saveConfigCache(any(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull())
+        }
+
+    @Test
+    fun `fetchConfig on 304 without cached body refetches unconditionally`() =
+        runTest {
+            val validConfig = ConsentServiceSecurityTest.createTestConfig()
+            whenever(mockStorage.loadConfigETag()).thenReturn("\"v1\"")
+            whenever(mockStorage.loadConfigCache()).thenReturn(null)
+            stubResponses(
+                HTTPResponse(304, emptyMap(), null),
+                HTTPResponse(200, emptyMap(), json.encodeToString(validConfig)),
+            )
+
+            val result = configService.fetchConfig("https://example.com/config.json")
+
+            assertEquals(validConfig.version, result.header.version)
+            verify(mockNetworkClient, times(2)).stream<ConsentConfig>(any(), any(), anyOrNull(), anyOrNull(), any())
+        }
+
+    // MARK: - Streaming Decode
+
+    @Test
+    fun `fetchConfig with malformed body falls back to cache as parse error`() =
+        runTest {
+            val cachedConfig = ConsentServiceSecurityTest.createTestConfig().copy(version = "cached-v1")
+            stubResponses(HTTPResponse(200, emptyMap(), "{not json"))
+            whenever(mockStorage.loadConfigCache()).thenReturn(LazyConfig.of(cachedConfig))
+
+            val result = configService.fetchConfig("https://example.com/config.json")
+
+            assertEquals("cached-v1", result.header.version)
+        }
+
+    @Test
+    fun `fetchConfig with malformed body and no cache throws ParseError`() =
+        runTest {
+            stubResponses(HTTPResponse(200, emptyMap(), "{not json"))
+            whenever(mockStorage.loadConfigCache()).thenReturn(null)
+
+            try {
+                configService.fetchConfig("https://example.com/config.json")
+                fail("Expected ParseError")
+            } catch (e: ConsentException.ParseError) {
+                // Expected - decode failures are not reported as network errors
+            }
+        }
+
+    // MARK: - Unchanged Content
+
+    @Test
+    fun `fetchConfig with unchanged body skips validation and re-caching`() =
+        runTest {
+            // Fails validation, so a result proves it was not validated again
+            val configJson = json.encodeToString(ConsentServiceSecurityTest.createTestConfig().copy(version = ""))
+            whenever(mockStorage.loadConfigContentHash()).thenReturn(sha256(configJson))
+            stubResponses(HTTPResponse(200, emptyMap(), configJson))
+
+            val result = configService.fetchConfig("https://example.com/config.json")
+
+            assertEquals("", result.header.version)
+            verify(mockStorage, never()).saveConfigCache(any(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull())
+        }
+
+    @Test
+    fun `fetchConfig with unchanged body and new ETag re-caches without validating`() =
+        runTest {
+            val configJson = json.encodeToString(ConsentServiceSecurityTest.createTestConfig().copy(version = ""))
+            whenever(mockStorage.loadConfigContentHash()).thenReturn(sha256(configJson))
+            whenever(mockStorage.loadConfigETag()).thenReturn("\"v1\"")
+            stubResponses(HTTPResponse(200, mapOf("etag" to "\"v2\""), configJson))
+
+            configService.fetchConfig("https://example.com/config.json")
+
+            verify(mockStorage).saveConfigCache(any(), eq("\"v2\""), isNull(), eq(sha256(configJson)), isNull())
+        }
+
+    @Test
+    fun `fetchConfig caches the body hash`() =
+        runTest {
+            val configJson = json.encodeToString(ConsentServiceSecurityTest.createTestConfig())
+            whenever(mockStorage.loadConfigContentHash()).thenReturn("stale")
+            stubResponses(HTTPResponse(200, emptyMap(), configJson))
+
+            configService.fetchConfig("https://example.com/config.json")
+
+            verify(mockStorage).saveConfigCache(any(), anyOrNull(), anyOrNull(), eq(sha256(configJson)), anyOrNull())
+        }
+
+    // MARK: - Locale Pruning
+
+    @Test
+    fun `fetchConfig with pruning records the locale in the cache write`() =
+        runTest {
+            val pruningService = ConfigService(mockNetworkClient, mockStorage, RetryPolicy.DEFAULT, true) { "fr" }
+            val configJson = json.encodeToString(ConsentServiceSecurityTest.createTestConfig())
+            stubResponses(HTTPResponse(200, emptyMap(), configJson))
+
+            pruningService.fetchConfig("https://example.com/config.json")
+
+            verify(mockStorage).saveConfigCache(any(), anyOrNull(), anyOrNull(), anyOrNull(), eq("fr"))
+        }
+
+    @Test
+    fun `fetchConfig skips conditional headers when the cache was pruned for another locale`() =
+        runTest {
+            val pruningService = ConfigService(mockNetworkClient, mockStorage, RetryPolicy.DEFAULT, true) { "fr" }
+            whenever(mockStorage.loadConfigCacheLocale()).thenReturn("de")
+            whenever(mockStorage.loadConfigETag()).thenReturn("\"v1\"")
+            val configJson = json.encodeToString(ConsentServiceSecurityTest.createTestConfig())
+            stubResponses(HTTPResponse(200, emptyMap(), configJson))
+
+            pruningService.fetchConfig("https://example.com/config.json")
+
+            verify(mockNetworkClient).stream<ConsentConfig>(any(), any(), anyOrNull(), isNull(), any())
+            verify(mockStorage).saveConfigCache(any(), anyOrNull(), anyOrNull(), anyOrNull(), eq("fr"))
+        }
+
+    @Test
+    fun `fetchConfig without pruning rewrites a pruned cache unpruned`() =
+        runTest {
+            val configJson = json.encodeToString(ConsentServiceSecurityTest.createTestConfig())
+            whenever(mockStorage.loadConfigContentHash()).thenReturn(sha256(configJson))
+            whenever(mockStorage.loadConfigCacheLocale()).thenReturn("de")
+            stubResponses(HTTPResponse(200, emptyMap(), configJson))
+
+            configService.fetchConfig("https://example.com/config.json")
+
+            // Same body, but the cached copy is missing other locales' translations
+            verify(mockStorage).saveConfigCache(any(), anyOrNull(), anyOrNull(), eq(sha256(configJson)), isNull())
+        }
+
+    @Test
+    fun `loadCachedConfig ignores cache pruned for another locale`() {
+        val pruningService = ConfigService(mockNetworkClient, mockStorage, RetryPolicy.DEFAULT, true) { "fr" }
+        whenever(mockStorage.loadConfigCacheLocale()).thenReturn("de")
+        whenever(mockStorage.loadConfigCache())
+            .thenReturn(LazyConfig.of(ConsentServiceSecurityTest.createTestConfig()))
+
+        assertNull(pruningService.loadCachedConfig())
+    }
+
+    // MARK: - Cached Config
+
+    @Test
+    fun `loadCachedConfig returns valid cache`() {
+        val cachedConfig = ConsentServiceSecurityTest.createTestConfig()
+        whenever(mockStorage.loadConfigCache()).thenReturn(LazyConfig.of(cachedConfig))
+
+        assertEquals(cachedConfig, configService.loadCachedConfig()?.config)
+        verifyNoInteractions(mockNetworkClient)
+    }
+
+    @Test
+    fun `loadCachedConfig leaves the layout undecoded`() {
+        val header = ConsentServiceSecurityTest.createTestConfig().header()
+        whenever(mockStorage.loadConfigCache())
+            .thenReturn(LazyConfig(header) { throw AssertionError("Layout decoded") })
+
+        val cached = configService.loadCachedConfig()
+
+        assertEquals(header, cached?.header)
+        assertFalse(cached!!.isLayoutLoaded)
+    }
+
+    @Test
+    fun `loadCachedConfig ignores cache that fails validation`() {
+        val invalidCache = ConsentServiceSecurityTest.createTestConfig().copy(version = "")
+        whenever(mockStorage.loadConfigCache()).thenReturn(LazyConfig.of(invalidCache))
+
+        assertNull(configService.loadCachedConfig())
+    }
+
+    @Test
+    fun `loadCachedConfig with no cache returns null`() {
+        whenever(mockStorage.loadConfigCache()).thenReturn(null)
+
+        assertNull(configService.loadCachedConfig())
+    }
+
+    // MARK: - Helpers
+
+    private fun sha256(body: String): String =
+        MessageDigest.getInstance("SHA-256").digest(body.toByteArray()).joinToString("") { "%02x".format(it) }
+
+    /**
+     * Stub NetworkClient.stream() to feed each body (in order) through the caller's decoder.
+     * A null body models a 304 response.
+     */
+    private suspend fun stubResponses(vararg responses: HTTPResponse<String?>) {
+        var call = 0
+        whenever(mockNetworkClient.stream<ConsentConfig>(any(), any(), anyOrNull(), anyOrNull(), any()))
+            .thenAnswer { invocation ->
+                val response = responses[minOf(call++, responses.size - 1)]
+                val decode = invocation.getArgument<(InputStream) -> ConsentConfig>(4)
+                HTTPResponse(
+                    response.statusCode,
+                    response.headers,
+                    response.body?.let { decode(ByteArrayInputStream(it.toByteArray())) },
+                )
+            }
+    }
 }
@@ -2,6 +2,9 @@ package com.datagrail.consent.network
 
 import com.datagrail.consent.models.*
 import com.datagrail.consent.storage.ConsentStorage
+import com.datagrail.consent.storage.EventQueueFile
+import com.datagrail.consent.storage.PendingEvent
+import kotlinx.coroutines.asCoroutineDispatcher
 import kotlinx.coroutines.test.runTest
 import org.junit.Assert.*
 import org.junit.Before
@@ -9,11 +12,12 @@ import org.junit.Test
 import org.mockito.Mock
 import org.mockito.MockitoAnnotations
 import org.mockito.kotlin.*
+import java.util.concurrent.Executors
 
 /**
  * Tests for ConsentService security enhancements:
  * - URL parameter encoding in saveOpen()
- * - Pending events queue cap (MAX_PENDING_EVENTS = 100)
+ * - Failed requests queued for retry (the queue cap is covered by EventQueueFileTest)
  */
 class ConsentServiceSecurityTest {
     @Mock
@@ -42,7 +46,7 @@ class ConsentServiceSecurityTest {
                 testConfig.copy(dgCustomerId = "customer&id=with spaces")
             whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull())).thenReturn("")
 
-            service.saveOpen(configWithSpecialChars)
+            service.saveOpen(configWithSpecialChars.header())
 
             val urlCaptor = argumentCaptor<String>()
             verify(mockNetworkClient).request(urlCaptor.capture(), any(), anyOrNull(), anyOrNull())
@@ -60,7 +64,7 @@ class ConsentServiceSecurityTest {
         runTest {
             whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull())).thenReturn("")
 
-            service.saveOpen(testConfig)
+            service.saveOpen(testConfig.header())
 
             val urlCaptor = argumentCaptor<String>()
             verify(mockNetworkClient).request(urlCaptor.capture(), any(), anyOrNull(), anyOrNull())
@@ -82,7 +86,7 @@ class ConsentServiceSecurityTest {
                 testConfig.copy(dgCustomerId = "<script>alert('xss')</script>")
             whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull())).thenReturn("")
 
-            service.saveOpen(configWithHtml)
+            service.saveOpen(configWithHtml.header())
 
             val urlCaptor = argumentCaptor<String>()
             verify(mockNetworkClient).request(urlCaptor.capture(), any(), anyOrNull(), anyOrNull())
@@ -92,14 +96,11 @@ class ConsentServiceSecurityTest {
             assertFalse("URL should not contain raw >", capturedUrl.contains("</script>"))
         }
 
-    // MARK: - Queue Cap Tests
+    // MARK: - Queue Tests
 
     @Test
-    fun `savePreferences caps pending events at 100 on failure`() =
+    fun `savePreferences queues event on failure`() =
         runTest {
-            // Set up 99 existing events
-            val existingEvents = (1..99).map { """{"type":"save_open","url":"https://x.com","timestamp":"$it"}""" }
-            whenever(mockStorage.loadPendingEvents()).thenReturn(existingEvents)
             whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull()))
                 .thenThrow(RuntimeException("network error"))
 
@@ -110,87 +111,128 @@ class ConsentServiceSecurityTest {
                 )
 
             try {
-                service.savePreferences(preferences, testConfig)
+                service.savePreferences(preferences, testConfig.header(), "test-unique-id")
             } catch (_: ConsentException.NetworkError) {
                 // Expected
             }
 
-            // 99 existing + 1 new = 100, which is at the cap
-            val eventsCaptor = argumentCaptor<List<String>>()
-            verify(mockStorage).savePendingEvents(eventsCaptor.capture())
-            assertEquals(100, eventsCaptor.firstValue.size)
+            val eventCaptor = argumentCaptor<PendingEvent>()
+            verify(mockStorage).appendPendingEvent(eventCaptor.capture())
+            val event = eventCaptor.firstValue
+            assertEquals(PendingEvent.TYPE_SAVE_PREFERENCES, event.type)
+            assertEquals("https://consent.example.com/save_preferences", event.url)
+            assertTrue("Body should carry the request", event.body!!.contains("test-unique-id"))
+            // Queueing never reads or rewrites the existing queue
+            verify(mockStorage, never()).loadPendingEvents()
         }
 
     @Test
-    fun `savePreferences drops oldest events when queue exceeds 100`() =
+    fun `savePreferences does not write local preferences`() =
         runTest {
-            // Set up 100 existing events
-            val existingEvents = (1..100).map { """{"type":"save_open","url":"https://x.com","timestamp":"$it"}""" }
-            whenever(mockStorage.loadPendingEvents()).thenReturn(existingEvents)
-            whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull()))
-                .thenThrow(RuntimeException("network error"))
-
-            val preferences =
-                ConsentPreferences(
-                    isCustomised = true,
-                    cookieOptions = listOf(CategoryConsent("cat1", true)),
-                )
-
-            try {
-                service.savePreferences(preferences, testConfig)
-            } catch (_: ConsentException.NetworkError) {
-                // Expected
-            }
+            whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull())).thenReturn("")
+            val preferences = ConsentPreferences(isCustomised = false, cookieOptions = emptyList())
 
-            // 100 existing + 1 new = 101 -> should be trimmed to 100, oldest dropped
-            val eventsCaptor = argumentCaptor<List<String>>()
-            verify(mockStorage).savePendingEvents(eventsCaptor.capture())
-            val savedEvents = eventsCaptor.firstValue
-            assertEquals(100, savedEvents.size)
+            service.savePreferences(preferences, testConfig.header(), "test-unique-id")
 
-            // The first existing event (timestamp "1") should have been dropped
-            assertFalse("Oldest event should be dropped", savedEvents.any { it.contains("\"timestamp\":\"1\"") })
-            // The newest existing event should still be present
-            assertTrue("Newest existing event should remain", savedEvents.any { it.contains("\"timestamp\":\"100\"") })
+            // The caller commits locally once; the service only talks to the backend
+            verifyNoInteractions(mockStorage)
         }
 
     @Test
-    fun `saveOpen caps pending events at 100 on failure`() =
+    fun `saveOpen queues event on failure without throwing`() =
         runTest {
-            val existingEvents = (1..100).map { """{"type":"save_open","url":"https://x.com","timestamp":"$it"}""" }
-            whenever(mockStorage.loadPendingEvents()).thenReturn(existingEvents)
             whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull()))
                 .thenThrow(RuntimeException("network error"))
 
-            service.saveOpen(testConfig)
+            service.saveOpen(testConfig.header())
 
-            val eventsCaptor = argumentCaptor<List<String>>()
-            verify(mockStorage).savePendingEvents(eventsCaptor.capture())
-            assertEquals(100, eventsCaptor.firstValue.size)
+            val eventCaptor = argumentCaptor<PendingEvent>()
+            verify(mockStorage).appendPendingEvent(eventCaptor.capture())
+            assertEquals(PendingEvent.TYPE_SAVE_OPEN, eventCaptor.firstValue.type)
+            assertNull(eventCaptor.firstValue.body)
+            // Keyed by user so repeated offline opens coalesce
+            assertEquals("test-unique-id", eventCaptor.firstValue.uniqueId)
         }
 
     @Test
-    fun `savePreferences with empty queue adds event normally`() =
+    fun `event queue is read and written on the io dispatcher`() =
         runTest {
-            whenever(mockStorage.loadPendingEvents()).thenReturn(emptyList())
+            val executor = Executors.newSingleThreadExecutor { Thread(it, "queue-io") }
+            val ioService =
+                ConsentService(
+                    mockNetworkClient,
+                    mockStorage,
+                    "consent.example.com",
+                    ioDispatcher = executor.asCoroutineDispatcher(),
+                )
+            val threads = mutableListOf<String>()
             whenever(mockNetworkClient.request(any(), any(), anyOrNull(), anyOrNull()))
                 .thenThrow(RuntimeException("network error"))
-
-            val preferences =
-                ConsentPreferences(
-                    isCustomised = true,
-                    cookieOptions = listOf(CategoryConsent("cat1", true)),
-                )
+            whenever(mockStorage.appendPendingEvent(any())).thenAnswer { threads.add(Thread.currentThread().name) }
+            whenever(mockStorage.loadPendingEvents()).thenAnswer {
+                threads.add(Thread.currentThread().name)
+                emptyList<EventQueueFile.Entry>()
+            }
 
             try {
-                service.savePreferences(preferences, testConfig)
-            } catch (_: ConsentException.NetworkError) {
-                // Expected
+                ioService.saveOpen(testConfig.header())
+                ioService.retryPendingRequests()
+            } finally {
+                executor.shutdown()
             }
 
-            val eventsCaptor = argumentCaptor<List<String>>()
-            verify(mockStorage).savePendingEvents(eventsCaptor.capture())
-            assertEquals(1, eventsCaptor.firstValue.size)
+            assertEquals(listOf("queue-io", "queue-io"), threads)
+        }
+
+    @Test
+    fun `retryPendingRequests acknowledges only delivered events`() =
+        runTest {
+            val delivered = PendingEvent(PendingEvent.TYPE_SAVE_OPEN, "https://x.com/ok", null, 1L)
+            val failing = PendingEvent(PendingEvent.TYPE_SAVE_OPEN, "https://x.com/fail", null, 2L)
+            val malformed = PendingEvent(PendingEvent.TYPE_SAVE_PREFERENCES, "https://x.com/prefs", null, 3L)
+            whenever(mockStorage.loadPendingEvents()).thenReturn(
+                listOf(
+                    EventQueueFile.Entry(1, delivered),
+                    EventQueueFile.Entry(2, failing),
+                    EventQueueFile.Entry(3, malformed),
+                ),
+            )
+            whenever(mockNetworkClient.request(eq("https://x.com/ok"), any(), anyOrNull(), anyOrNull())).thenReturn("")
+            whenever(mockNetworkClient.request(eq("https://x.com/fail"), any(), anyOrNull(), anyOrNull()))
+                .thenThrow(RuntimeException("network error"))
+
+            val (successCount, failureCount) = service.retryPendingRequests()
+
+            assertEquals(1, successCount)
+            assertEquals(1, failureCount)
+            verify(mockStorage).removePendingEvents(listOf(1L, 3L))
+        }
+
+    @Test
+    fun `retryPendingRequests drops events the backend rejects`() =
+        runTest {
+            val rejectedPrefs = PendingEvent(PendingEvent.TYPE_SAVE_PREFERENCES, "https://x.com/bad", "{}", 1L)
+            val laterPrefs = PendingEvent(PendingEvent.TYPE_SAVE_PREFERENCES, "https://x.com/ok", "{}", 2L)
+            val rejectedOpen = PendingEvent(PendingEvent.TYPE_SAVE_OPEN, "https://x.com/open", null, 3L)
+            whenever(mockStorage.loadPendingEvents()).thenReturn(
+                listOf(
+                    EventQueueFile.Entry(1, rejectedPrefs),
+                    EventQueueFile.Entry(2, laterPrefs),
+                    EventQueueFile.Entry(3, rejectedOpen),
+                ),
+            )
+            whenever(mockNetworkClient.request(eq("https://x.com/ok"), any(), anyOrNull(), anyOrNull())).thenReturn("")
+            whenever(mockNetworkClient.request(eq("https://x.com/bad"), any(), anyOrNull(), anyOrNull()))
+                .thenThrow(ConsentException.NetworkError("HTTP 400", statusCode = 400))
+            whenever(mockNetworkClient.request(eq("https://x.com/open"), any(), anyOrNull(), anyOrNull()))
+                .thenThrow(ConsentException.NetworkError("HTTP 404", statusCode = 404))
+
+            val (successCount, failureCount) = service.retryPendingRequests()
+
+            // Rejected events will never succeed: they are removed and do not hold back later preferences
+            assertEquals(1, successCount)
+            assertEquals(0, failureCount)
+            verify(mockStorage).removePendingEvents(listOf(1L, 2L, 3L))
         }
 
     // MARK: - Helpers
@@ -0,0 +1,296 @@
+package com.datagrail.consent.network
+
+import com.datagrail.consent.UploadBatchListener
+import com.datagrail.consent.UploadBatchStats
+import com.datagrail.consent.models.header
+import com.datagrail.consent.storage.ConsentStorage
+import com.datagrail.consent.storage.EventQueueFile
+import com.datagrail.consent.storage.PendingEvent
+import kotlinx.coroutines.async
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.mockito.kotlin.*
+
+/**
+ * Tests for ConsentService pending request uploads against FakeConsentBackend:
+ * - Bounded concurrency
+ * - Per-batch acknowledgement
+ * - Per-batch latency reporting
+ * - Preferences replayed in queue order
+ * - Circuit breaker during outages
+ */
+class ConsentServiceUploadTest {
+    private val latencyMs = 100L
+
+    private lateinit var backend: FakeConsentBackend
+    private lateinit var mockStorage: ConsentStorage
+
+    @Before
+    fun setUp() {
+        backend = FakeConsentBackend(latencyMs)
+        mockStorage = mock()
+    }
+
+    private fun entries(count: Int): List<EventQueueFile.Entry> =
+        (1..count).map { n ->
+            val url = "https://consent.example.com/save_open?n=$n"
+            EventQueueFile.Entry(n.toLong(), PendingEvent(PendingEvent.TYPE_SAVE_OPEN, url, null, n.toLong()))
+        }
+
+    private fun TestScope.service(
+        maxConcurrentUploads: Int,
+        listener: UploadBatchListener? = null,
+    ): ConsentService =
+        ConsentService(
+            backend.networkClient,
+            mockStorage,
+            "consent.example.com",
+            maxConcurrentUploads = maxConcurrentUploads,
+            uploadBatchListener = listener,
+            nanoTime = { testScheduler.currentTime * 1_000_000 },
+            ioDispatcher = StandardTestDispatcher(testScheduler),
+        )
+
+    // MARK: - Concurrency
+
+    @Test
+    fun `uploads are pipelined up to the concurrency limit`() =
+        runTest {
+            whenever(mockStorage.loadPendingEvents()).thenReturn(entries(25))
+
+            val (successCount, failureCount) = service(maxConcurrentUploads = 4).retryPendingRequests()
+
+            assertEquals(25, successCount)
+            assertEquals(0, failureCount)
+            assertEquals(25, backend.receivedUrls.size)
+            assertEquals(4, backend.peakInFlight)
+            // Batches of 10, 10, 5 take 3, 3 and 2 round trips instead of 25 serial ones
+            assertEquals(8 * latencyMs, testScheduler.currentTime)
+        }
+
+    @Test
+    fun `single concurrency uploads serially`() =
+        runTest {
+            whenever(mockStorage.loadPendingEvents()).thenReturn(entries(5))
+
+            service(maxConcurrentUploads = 1).retryPendingRequests()
+
+            assertEquals(1, backend.peakInFlight)
+            assertEquals(5 * latencyMs, testScheduler.currentTime)
+        }
+
+    @Test
+    fun `concurrent retry passes do not overlap`() =
+        runTest {
+            whenever(mockStorage.loadPendingEvents()).thenReturn(entries(8))
+            val service = service(maxConcurrentUploads = 4)
+
+            val first = async { service.retryPendingRequests() }
+            val second = async { service.retryPendingRequests() }
+            first.await()
+            second.await()
+
+            assertEquals("Second pass waits for the first", 4, backend.peakInFlight)
+            assertEquals(2 * 2 * latencyMs, testScheduler.currentTime)
+        }
+
+    // MARK: - Acknowledgement
+
+    @Test
+    fun `each batch is acknowledged as it completes`() =
+        runTest {
+            whenever(mockStorage.loadPendingEvents()).thenReturn(entries(25))
+
+            service(maxConcurrentUploads = 4).retryPendingRequests()
+
+            val idsCaptor = argumentCaptor<Collection<Long>>()
+            verify(mockStorage, times(3)).removePendingEvents(idsCaptor.capture())
+            assertEquals((1L..10L).toList(), idsCaptor.allValues[0].toList())
+            assertEquals((11L..20L).toList(), idsCaptor.allValues[1].toList())
+            assertEquals((21L..25L).toList(), idsCaptor.allValues[2].toList())
+        }
+
+    @Test
+    fun `failed uploads stay queued`() =
+        runTest {
+            val pending = entries(3)
+            whenever(mockStorage.loadPendingEvents()).thenReturn(pending)
+            backend.failingUrls.add(pending[1].event.url)
+
+            val (successCount, failureCount) = service(maxConcurrentUploads = 4).retryPendingRequests()
+
+            assertEquals(2, successCount)
+            assertEquals(1, failureCount)
+            verify(mockStorage).removePendingEvents(listOf(1L, 3L))
+        }
+
+    // MARK: - Latency Reporting
+
+    @Test
+    fun `batch stats report size, outcome, and latency`() =
+        runTest {
+            val pending = entries(12)
+            whenever(mockStorage.loadPendingEvents()).thenReturn(pending)
+            backend.failingUrls.add(pending[11].event.url)
+            val stats = mutableListOf<UploadBatchStats>()
+
+            service(maxConcurrentUploads = 5) { stats.add(it) }.retryPendingRequests()
+
+            assertEquals(
+                listOf(
+                    UploadBatchStats(0, eventCount = 10, successCount = 10, failureCount = 0, latencyMs = 200),
+                    UploadBatchStats(1, eventCount = 2, successCount = 1, failureCount = 1, latencyMs = 100),
+                ),
+                stats,
+            )
+        }
+
+    @Test
+    fun `empty queue makes no requests`() =
+        runTest {
+            whenever(mockStorage.loadPendingEvents()).thenReturn(emptyList())
+
+            assertEquals(Pair(0, 0), service(maxConcurrentUploads = 4).retryPendingRequests())
+            assertTrue(backend.receivedUrls.isEmpty())
+            verify(mockStorage, never()).removePendingEvents(any())
+        }
+
+    // MARK: - Coalescing
+
+    @Test
+    fun `replay sends one coalesced request per user and acknowledges every entry`() =
+        runTest {
+            val openUrl = "https://consent.example.com/save_open?sessionId=s1&uniqueId=u1"
+            val prefsUrl = "https://consent.example.com/save_preferences"
+            whenever(mockStorage.loadPendingEvents()).thenReturn(
+                listOf(
+                    EventQueueFile.Entry(1, PendingEvent(PendingEvent.TYPE_SAVE_OPEN, openUrl, null, 1L, "u1")),
+                    EventQueueFile.Entry(2, PendingEvent(PendingEvent.TYPE_SAVE_PREFERENCES, prefsUrl, "a", 2L, "u1")),
+                    EventQueueFile.Entry(3, PendingEvent(PendingEvent.TYPE_SAVE_OPEN, openUrl, null, 3L, "u1", 2)),
+                    EventQueueFile.Entry(4, PendingEvent(PendingEvent.TYPE_SAVE_PREFERENCES, prefsUrl, "b", 4L, "u1")),
+                ),
+            )
+
+            val (successCount, _) = service(maxConcurrentUploads = 4).retryPendingRequests()
+
+            assertEquals(2, successCount)
+            // The backend counts one open per request, each with its own session
+            val opens = backend.receivedUrls.filter { "save_open" in it }
+            assertEquals(3, opens.size)
+            assertEquals(3, opens.toSet().size)
+            assertTrue(openUrl in opens)
+            assertTrue(opens.all { it.endsWith("&uniqueId=u1") })
+            verify(backend.networkClient).request(eq(prefsUrl), any(), eq("b"), anyOrNull())
+            val idsCaptor = argumentCaptor<Collection<Long>>()
+            verify(mockStorage).removePendingEvents(idsCaptor.capture())
+            assertEquals(setOf(1L, 2L, 3L, 4L), idsCaptor.firstValue.toSet())
+        }
+
+    @Test
+    fun `partially sent opens are requeued with the unsent count`() =
+        runTest {
+            val openUrl = "https://consent.example.com/save_open?sessionId=s1&uniqueId=u1"
+            val event = PendingEvent(PendingEvent.TYPE_SAVE_OPEN, openUrl, null, 1L, "u1", 3)
+            whenever(mockStorage.loadPendingEvents()).thenReturn(listOf(EventQueueFile.Entry(7, event)))
+            backend.requestBudget.set(2)
+
+            assertEquals(Pair(0, 1), service(maxConcurrentUploads = 4).retryPendingRequests())
+
+            assertEquals(2, backend.receivedUrls.size)
+            verify(mockStorage).replacePendingEvents(listOf(7L), event.copy(count = 1))
+        }
+
+    // MARK: - Preference Order
+
+    private fun preferences(vararg urls: String): List<EventQueueFile.Entry> =
+        urls.mapIndexed { n, url ->
+            EventQueueFile.Entry(n + 1L, PendingEvent(PendingEvent.TYPE_SAVE_PREFERENCES, url, "{}", n.toLong()))
+        }
+
+    @Test
+    fun `preferences are sent one at a time in queue order`() =
+        runTest {
+            val urls = (1..3).map { "https://consent.example.com/save_preferences?n=$it" }
+            whenever(mockStorage.loadPendingEvents()).thenReturn(preferences(*urls.toTypedArray()))
+
+            assertEquals(Pair(3, 0), service(maxConcurrentUploads = 4).retryPendingRequests())
+
+            assertEquals(urls, backend.receivedUrls)
+            assertEquals(1, backend.peakInFlight)
+        }
+
+    @Test
+    fun `no preferences are sent after one fails`() =
+        runTest {
+            val first = "https://consent.example.com/save_preferences?n=1"
+            val second = "https://consent.example.com/save_preferences?n=2"
+            backend.failingUrls.add(first)
+            whenever(mockStorage.loadPendingEvents()).thenReturn(preferences(first, second))
+
+            assertEquals(Pair(0, 2), service(maxConcurrentUploads = 4).retryPendingRequests())
+
+            assertEquals(listOf(first), backend.receivedUrls)
+            verify(mockStorage).removePendingEvents(emptyList())
+        }
+
+    // MARK: - Circuit Breaker
+
+    private suspend fun tripCircuit(service: ConsentService) {
+        whenever(mockStorage.getOrCreateUniqueId()).thenReturn("user-1")
+        backend.down = true
+        repeat(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD) {
+            service.saveOpen(ConsentServiceSecurityTest.createTestConfig().header())
+        }
+        backend.down = false
+    }
+
+    @Test
+    fun `outage opens the circuit so new events are queued without a request`() =
+        runTest {
+            val service = service(maxConcurrentUploads = 4)
+            whenever(mockStorage.getOrCreateUniqueId()).thenReturn("user-1")
+            backend.down = true
+
+            repeat(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD + 3) {
+                service.saveOpen(ConsentServiceSecurityTest.createTestConfig().header())
+            }
+
+            verify(backend.networkClient, times(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD))
+                .request(any(), any(), anyOrNull(), anyOrNull())
+            verify(mockStorage, times(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD + 3)).appendPendingEvent(any())
+            // Only the requests that reached the network waited on it
+            assertEquals(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD * latencyMs, testScheduler.currentTime)
+        }
+
+    @Test
+    fun `open circuit keeps pending requests queued without uploading`() =
+        runTest {
+            val service = service(maxConcurrentUploads = 4)
+            tripCircuit(service)
+            whenever(mockStorage.loadPendingEvents()).thenReturn(entries(3))
+
+            assertEquals(Pair(0, 3), service.retryPendingRequests())
+
+            assertTrue(backend.receivedUrls.isEmpty())
+            verify(mockStorage, never()).removePendingEvents(any())
+        }
+
+    @Test
+    fun `probe after the open duration resumes uploads`() =
+        runTest {
+            val service = service(maxConcurrentUploads = 4)
+            tripCircuit(service)
+            testScheduler.advanceTimeBy(CircuitBreaker.DEFAULT_OPEN_DURATION_MS)
+            whenever(mockStorage.loadPendingEvents()).thenReturn(entries(3))
+
+            assertEquals(Pair(3, 0), service.retryPendingRequests())
+
+            assertEquals(3, backend.receivedUrls.size)
+            assertEquals("Probe batch is sent one request at a time", 1, backend.peakInFlight)
+            verify(mockStorage).removePendingEvents(listOf(1L, 2L, 3L))
+        }
+}
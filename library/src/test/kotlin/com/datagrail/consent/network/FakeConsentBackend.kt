@@ -0,0 +1,65 @@
+package com.datagrail.consent.network
+
+import com.datagrail.consent.models.ConsentException
+import kotlinx.coroutines.delay
+import org.mockito.kotlin.any
+import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.doSuspendableAnswer
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.wheneverBlocking
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * In-process stand-in for the privacy domain backend.
+ * Answers [networkClient] requests after a fixed latency (virtual time under runTest),
+ * records what it received, and tracks how many requests were in flight at once.
+ */
+internal class FakeConsentBackend(
+    private val latencyMs: Long,
+) {
+    val networkClient: NetworkClient = mock()
+
+    /** URLs of requests received, in completion order */
+    val receivedUrls: MutableList<String> = Collections.synchronizedList(mutableListOf())
+
+    /** URLs answered with a server error */
+    val failingUrls: MutableSet<String> = Collections.synchronizedSet(mutableSetOf())
+
+    /** When true, every request fails as if the backend were unreachable */
+    @Volatile
+    var down = false
+
+    /** Requests answered before the backend behaves as [down] */
+    val requestBudget = AtomicInteger(Int.MAX_VALUE)
+
+    private val inFlight = AtomicInteger(0)
+    private val peak = AtomicInteger(0)
+
+    /** Highest number of concurrent requests seen */
+    val peakInFlight: Int
+        get() = peak.get()
+
+    init {
+        wheneverBlocking {
+            networkClient.request(any(), any(), anyOrNull(), anyOrNull())
+        } doSuspendableAnswer { invocation ->
+            val url = invocation.getArgument<String>(0)
+            if (down || requestBudget.getAndDecrement() <= 0) {
+                delay(latencyMs)
+                throw ConsentException.NetworkError("Connection timed out")
+            }
+            peak.accumulateAndGet(inFlight.incrementAndGet(), ::maxOf)
+            try {
+                delay(latencyMs)
+                receivedUrls.add(url)
+                if (url in failingUrls) {
+                    throw ConsentException.NetworkError("HTTP 503", statusCode = 503)
+                }
+                ""
+            } finally {
+                inFlight.decrementAndGet()
+            }
+        }
+    }
+}
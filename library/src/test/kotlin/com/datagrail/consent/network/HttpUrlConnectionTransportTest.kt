@@ -0,0 +1,134 @@
+package com.datagrail.consent.network
+
+import com.datagrail.consent.TransportMetrics
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.mockito.kotlin.any
+import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+import java.net.Socket
+import javax.net.ssl.SSLSocketFactory
+
+/**
+ * Tests for HttpUrlConnectionTransport connection reuse against LocalHttpServer:
+ * - Response bodies are drained on close so the keep-alive connection is reused
+ * - Handshake counting and reuse ratio
+ */
+class HttpUrlConnectionTransportTest {
+    companion object {
+        private const val TIMEOUT_MS = 5_000
+    }
+
+    private lateinit var server: LocalHttpServer
+
+    private val largeBody = "x".repeat(20_000).toByteArray()
+
+    @Before
+    fun setUp() {
+        server =
+            LocalHttpServer { _, path ->
+                when (path) {
+                    "/large" -> 200 to largeBody
+                    "/error" -> 503 to """{"error":"unavailable"}""".toByteArray()
+                    "/not-modified" -> 304 to null
+                    else -> 200 to "ok".toByteArray()
+                }
+            }
+    }
+
+    @After
+    fun tearDown() {
+        server.close()
+    }
+
+    private fun url(path: String) = server.url(path)
+
+    private fun get(
+        transport: HttpUrlConnectionTransport,
+        path: String,
+    ) = transport.execute(HttpTransportRequest(url(path), "GET", emptyMap(), null, TIMEOUT_MS, TIMEOUT_MS))
+
+    // MARK: - Reuse
+
+    @Test
+    fun `unread bodies are drained on close so the connection is reused`() {
+        val transport = HttpUrlConnectionTransport()
+
+        repeat(5) {
+            // Close without reading anything
+            get(transport, "/large").close()
+        }
+
+        assertEquals(5, server.received.size)
+        assertEquals("All requests should share one connection", 1, server.connections)
+    }
+
+    @Test
+    fun `error and not-modified responses release the connection for reuse`() {
+        val transport = HttpUrlConnectionTransport()
+
+        get(transport, "/error").use { assertEquals(503, it.statusCode) }
+        get(transport, "/not-modified").use { assertEquals(304, it.statusCode) }
+        get(transport, "/ok").use { assertEquals("ok", it.body.bufferedReader().readText()) }
+
+        assertEquals(1, server.connections)
+    }
+
+    @Test
+    fun `post bodies are sent as given`() {
+        val transport = HttpUrlConnectionTransport()
+        val body = """{"a":1}""".toByteArray()
+
+        val headers = mapOf("Content-Type" to "application/json")
+        transport.execute(HttpTransportRequest(url("/ok"), "POST", headers, body, TIMEOUT_MS, TIMEOUT_MS))
+            .use { assertEquals(200, it.statusCode) }
+        get(transport, "/ok").close()
+
+        assertEquals("""{"a":1}""", String(server.received[0].body))
+        assertEquals(1, server.connections)
+    }
+
+    @Test
+    fun `response headers are keyed by lower-cased name`() {
+        get(HttpUrlConnectionTransport(), "/ok").use { response ->
+            assertEquals("2", response.headers["content-length"])
+        }
+    }
+
+    @Test
+    fun `metrics count requests`() {
+        val transport = HttpUrlConnectionTransport()
+
+        repeat(3) { get(transport, "/ok").close() }
+
+        // Plain HTTP opens no TLS connections
+        assertEquals(TransportMetrics(requestCount = 3, handshakeCount = 0), transport.metrics())
+    }
+
+    // MARK: - Handshake Counting
+
+    @Test
+    fun `counting socket factory counts every socket it creates`() {
+        val delegate = mock<SSLSocketFactory>()
+        val socket = mock<Socket>()
+        whenever(delegate.createSocket(any<Socket>(), any(), any(), any())).thenReturn(socket)
+        whenever(delegate.createSocket(anyOrNull<String>(), any())).thenReturn(socket)
+        var created = 0
+        val factory = CountingSSLSocketFactory(delegate) { created++ }
+
+        factory.createSocket(Socket(), "consent.example.com", 443, true)
+        factory.createSocket("consent.example.com", 443)
+
+        assertEquals(2, created)
+    }
+
+    @Test
+    fun `reuse ratio is the share of requests without a new handshake`() {
+        assertEquals(0.0, TransportMetrics(0, 0).reuseRatio, 0.0)
+        assertEquals(0.0, TransportMetrics(4, 4).reuseRatio, 0.0)
+        assertEquals(0.75, TransportMetrics(4, 1).reuseRatio, 0.0)
+    }
+}
@@ -0,0 +1,119 @@
+package com.datagrail.consent.network
+
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketException
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+/**
+ * Minimal HTTP/1.1 keep-alive server on the loopback interface for transport tests.
+ * Records which connection served each request so tests can check connection reuse.
+ * @param handler Maps a request path to (status code, body); a null body sends no body
+ */
+internal class LocalHttpServer(
+    private val handler: (method: String, path: String) -> Pair<Int, ByteArray?>,
+) : AutoCloseable {
+    /**
+     * A request as seen by the server
+     * @property connectionId Sequence number of the connection it arrived on
+     */
+    data class Received(
+        val method: String,
+        val path: String,
+        val connectionId: Int,
+        val body: ByteArray,
+    )
+
+    private val serverSocket = ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+    private val connectionCount = AtomicInteger(0)
+    private val sockets: MutableList<Socket> = Collections.synchronizedList(mutableListOf())
+
+    /** Requests received, in arrival order */
+    val received: MutableList<Received> = Collections.synchronizedList(mutableListOf())
+
+    /** Number of TCP connections accepted */
+    val connections: Int
+        get() = connectionCount.get()
+
+    init {
+        thread(isDaemon = true, name = "LocalHttpServer") {
+            while (!serverSocket.isClosed) {
+                val socket =
+                    try {
+                        serverSocket.accept()
+                    } catch (_: SocketException) {
+                        break
+                    }
+                sockets.add(socket)
+                val connectionId = connectionCount.incrementAndGet()
+                thread(isDaemon = true) { serve(socket, connectionId) }
+            }
+        }
+    }
+
+    fun url(path: String): String = "http://127.0.0.1:${serverSocket.localPort}$path"
+
+    override fun close() {
+        serverSocket.close()
+        synchronized(sockets) { sockets.forEach { it.close() } }
+    }
+
+    private fun serve(
+        socket: Socket,
+        connectionId: Int,
+    ) {
+        try {
+            val input = BufferedInputStream(socket.getInputStream())
+            val output = socket.getOutputStream()
+            while (true) {
+                val requestLine = readLine(input) ?: return
+                val (method, path) = requestLine.split(" ").let { it[0] to it[1] }
+
+                var contentLength = 0
+                while (true) {
+                    val header = readLine(input) ?: return
+                    if (header.isEmpty()) break
+                    val (name, value) = header.split(":", limit = 2).let { it[0].trim() to it[1].trim() }
+                    if (name.equals("Content-Length", ignoreCase = true)) contentLength = value.toInt()
+                }
+                val body = ByteArray(contentLength)
+                var read = 0
+                while (read < contentLength) {
+                    val n = input.read(body, read, contentLength - read)
+                    if (n < 0) return
+                    read += n
+                }
+                received.add(Received(method, path, connectionId, body))
+
+                val (status, responseBody) = handler(method, path)
+                val head = StringBuilder("HTTP/1.1 $status Status\r\n")
+                if (responseBody != null) head.append("Content-Length: ${responseBody.size}\r\n")
+                head.append("Connection: keep-alive\r\n\r\n")
+                output.write(head.toString().toByteArray())
+                responseBody?.let { output.write(it) }
+                output.flush()
+            }
+        } catch (_: SocketException) {
+            // Client closed the connection
+        } finally {
+            socket.close()
+        }
+    }
+
+    private fun readLine(input: InputStream): String? {
+        val line = ByteArrayOutputStream()
+        while (true) {
+            val b = input.read()
+            if (b < 0) return null
+            if (b == '\n'.code) break
+            if (b != '\r'.code) line.write(b)
+        }
+        return line.toString(Charsets.UTF_8.name())
+    }
+}
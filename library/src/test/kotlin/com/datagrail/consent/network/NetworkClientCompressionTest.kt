@@ -0,0 +1,88 @@
+package com.datagrail.consent.network
+
+import com.datagrail.consent.models.ConsentException
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.zip.DeflaterOutputStream
+
+/**
+ * Tests for NetworkClient compressed transfer:
+ * - Response decoding by Content-Encoding
+ * - Gzip request bodies
+ */
+class NetworkClientCompressionTest {
+    private val configJson = """{"version":"1.0.0","layout":{"consent_layers":{}}}""".repeat(50)
+
+    // MARK: - Response Decoding
+
+    @Test
+    fun `decodedStream passes identity responses through`() {
+        val bytes = configJson.toByteArray()
+
+        for (encoding in listOf(null, "", "identity")) {
+            val decoded = NetworkClient.decodedStream(ByteArrayInputStream(bytes), encoding)
+            assertEquals(configJson, decoded.bufferedReader().readText())
+        }
+    }
+
+    @Test
+    fun `decodedStream decompresses gzip responses`() {
+        val compressed = NetworkClient.gzip(configJson.toByteArray())
+
+        val decoded = NetworkClient.decodedStream(ByteArrayInputStream(compressed), "gzip")
+
+        assertEquals(configJson, decoded.bufferedReader().readText())
+    }
+
+    @Test
+    fun `decodedStream matches encoding case-insensitively`() {
+        val compressed = NetworkClient.gzip(configJson.toByteArray())
+
+        val decoded = NetworkClient.decodedStream(ByteArrayInputStream(compressed), " GZIP ")
+
+        assertEquals(configJson, decoded.bufferedReader().readText())
+    }
+
+    @Test
+    fun `decodedStream decompresses deflate responses`() {
+        val buffer = ByteArrayOutputStream()
+        DeflaterOutputStream(buffer).use { it.write(configJson.toByteArray()) }
+
+        val decoded = NetworkClient.decodedStream(ByteArrayInputStream(buffer.toByteArray()), "deflate")
+
+        assertEquals(configJson, decoded.bufferedReader().readText())
+    }
+
+    @Test
+    fun `decodedStream rejects unsupported encodings`() {
+        try {
+            NetworkClient.decodedStream(ByteArrayInputStream(ByteArray(0)), "br")
+            fail("Expected NetworkError for brotli")
+        } catch (e: ConsentException.NetworkError) {
+            assertTrue(e.message!!.contains("Content-Encoding"))
+        }
+    }
+
+    // MARK: - Request Compression
+
+    @Test
+    fun `gzip shrinks repetitive JSON bodies`() {
+        val bytes = configJson.toByteArray()
+
+        val compressed = NetworkClient.gzip(bytes)
+
+        assertTrue(
+            "Expected at least 5x compression, got ${bytes.size} -> ${compressed.size}",
+            compressed.size * 5 < bytes.size,
+        )
+    }
+
+    @Test
+    fun `advertised encodings are all decodable`() {
+        NetworkClient.ACCEPT_ENCODING.split(",").forEach { encoding ->
+            NetworkClient.decodedStream(ByteArrayInputStream(NetworkClient.gzip(ByteArray(0))), encoding.trim())
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.datagrail.consent.network
+
+import com.datagrail.consent.RetryPolicy
+import com.datagrail.consent.TimeoutPolicy
+import com.datagrail.consent.models.ConsentException
+import com.datagrail.consent.storage.ConsentStorage
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+import org.mockito.kotlin.mock
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+
+/**
+ * Tests for RetryPolicy and TimeoutPolicy handling:
+ * - Retry classification (4xx not retried)
+ * - Overall deadline bounding attempts, delays and socket timeouts
+ * - Attempts surfaced to callers
+ */
+class NetworkClientRetryTest {
+    private class StatusTransport(private val statusCode: Int) : HttpTransport {
+        val requests = mutableListOf<HttpTransportRequest>()
+
+        override fun execute(request: HttpTransportRequest): HttpTransportResponse {
+            requests.add(request)
+            return object : HttpTransportResponse {
+                override val statusCode = this@StatusTransport.statusCode
+                override val headers = emptyMap<String, String>()
+                override val body: InputStream = ByteArrayInputStream(ByteArray(0))
+
+                override fun close() {}
+            }
+        }
+    }
+
+    private val url = "https://consent.example.com/config.json"
+
+    // Deadlines follow the test scheduler's virtual clock
+    private fun TestScope.client(
+        transport: HttpTransport,
+        timeoutPolicy: TimeoutPolicy = TimeoutPolicy.DEFAULT,
+    ) = NetworkClient(false, transport, timeoutPolicy).also { client ->
+        client.nanoTime = { testScheduler.currentTime * 1_000_000 }
+    }
+
+    private fun policy(
+        maxAttempts: Int = 5,
+        deadlineMs: Long? = null,
+    ) = RetryPolicy.Builder().maxAttempts(maxAttempts).baseDelayMs(100).deadlineMs(deadlineMs).build()
+
+    // MARK: - Classification
+
+    @Test
+    fun `client errors are not retried`() =
+        runTest {
+            val transport = StatusTransport(404)
+            val client = client(transport)
+            var attempts = 0
+
+            try {
+                client.retryWithPolicy(policy(), onAttempt = { attempts = it }) { client.execute(url) }
+                fail("Expected NetworkError")
+            } catch (e: ConsentException.NetworkError) {
+                assertEquals(404, e.statusCode)
+            }
+
+            assertEquals(1, attempts)
+            assertEquals(1, transport.requests.size)
+            assertEquals("No backoff delay for a non-retryable error", 0L, currentTime)
+        }
+
+    @Test
+    fun `server errors are retried until attempts run out`() =
+        runTest {
+            val transport = StatusTransport(503)
+            val client = client(transport)
+            var attempts = 0
+
+            try {
+                client.retryWithPolicy(policy(maxAttempts = 3), onAttempt = { attempts = it }) { client.execute(url) }
+                fail("Expected NetworkError")
+            } catch (e: ConsentException.NetworkError) {
+                assertEquals(503, e.statusCode)
+            }
+
+            assertEquals(3, attempts)
+            assertEquals(3, transport.requests.size)
+        }
+
+    @Test
+    fun `retryable classification`() {
+        val policy = RetryPolicy.DEFAULT
+
+        assertTrue(policy.isRetryable(ConsentException.NetworkError("timeout")))
+        assertTrue(policy.isRetryable(ConsentException.NetworkError("HTTP 500", statusCode = 500)))
+        assertTrue(policy.isRetryable(ConsentException.NetworkError("HTTP 408", statusCode = 408)))
+        assertTrue(policy.isRetryable(ConsentException.NetworkError("HTTP 429", statusCode = 429)))
+        assertTrue(policy.isRetryable(RuntimeException("parse")))
+        assertFalse(policy.isRetryable(ConsentException.NetworkError("HTTP 400", statusCode = 400)))
+        assertFalse(policy.isRetryable(ConsentException.NetworkError("HTTP 403", statusCode = 403)))
+    }
+
+    // MARK: - Deadline
+
+    @Test
+    fun `deadline stops retries before a delay would pass it`() =
+        runTest {
+            val client = client(StatusTransport(200))
+            var attempts = 0
+
+            try {
+                client.retryWithPolicy(policy(maxAttempts = 10, deadlineMs = 1000), onAttempt = { attempts = it }) {
+                    throw ConsentException.NetworkError("offline")
+                }
+                fail("Expected NetworkError")
+            } catch (_: ConsentException.NetworkError) {
+            }
+
+            // Delays of 200-250 and 400-500 fit; the third (800-1000) would end past the deadline
+            assertEquals(3, attempts)
+            assertTrue("Gave up at ${currentTime}ms", currentTime <= 1000)
+        }
+
+    @Test
+    fun `socket timeouts are shortened to the time left before the deadline`() =
+        runTest {
+            val transport = StatusTransport(200)
+            val client = client(transport)
+
+            client.retryWithPolicy(policy(deadlineMs = 5_000)) {
+                delay(2_000)
+                client.execute(url)
+            }
+
+            val request = transport.requests.single()
+            assertEquals(3_000, request.connectTimeoutMs)
+            assertEquals(3_000, request.readTimeoutMs)
+        }
+
+    @Test
+    fun `timeout policy applies without a deadline`() =
+        runTest {
+            val transport = StatusTransport(200)
+            val timeouts = TimeoutPolicy.Builder().connectTimeoutMs(2_000).readTimeoutMs(4_000).build()
+
+            client(transport, timeouts).execute(url)
+
+            val request = transport.requests.single()
+            assertEquals(2_000, request.connectTimeoutMs)
+            assertEquals(4_000, request.readTimeoutMs)
+        }
+
+    @Test
+    fun `request after the deadline fails without reaching the transport`() =
+        runTest {
+            val transport = StatusTransport(200)
+            val client = client(transport)
+
+            try {
+                client.retryWithPolicy(policy(maxAttempts = 1, deadlineMs = 1_000)) {
+                    delay(1_000)
+                    client.execute(url)
+                }
+                fail("Expected NetworkError")
+            } catch (e: ConsentException.NetworkError) {
+                assertTrue(e.message!!.contains("deadline"))
+            }
+            assertTrue(transport.requests.isEmpty())
+        }
+
+    // MARK: - Config Fetch
+
+    @Test
+    fun `config fetch records attempts and does not retry client errors`() =
+        runTest {
+            val transport = StatusTransport(404)
+            val configService = ConfigService(client(transport), mock<ConsentStorage>(), policy())
+
+            try {
+                configService.fetchConfigWithRetry(url)
+                fail("Expected NetworkError")
+            } catch (e: ConsentException.NetworkError) {
+                assertEquals(404, e.statusCode)
+            }
+
+            assertEquals(1, configService.lastFetchAttempts)
+            assertEquals(1, transport.requests.size)
+        }
+
+    // MARK: - Builders
+
+    @Test
+    fun `policy builders reject invalid values`() {
+        assertThrows(IllegalArgumentException::class.java) { RetryPolicy.Builder().maxAttempts(0) }
+        assertThrows(IllegalArgumentException::class.java) { RetryPolicy.Builder().baseDelayMs(-1) }
+        assertThrows(IllegalArgumentException::class.java) { RetryPolicy.Builder().deadlineMs(0) }
+        assertThrows(IllegalArgumentException::class.java) { TimeoutPolicy.Builder().connectTimeoutMs(0) }
+        assertThrows(IllegalArgumentException::class.java) { TimeoutPolicy.Builder().readTimeoutMs(0) }
+    }
+}
@@ -0,0 +1,162 @@
+package com.datagrail.consent.network
+
+import com.datagrail.consent.models.ConsentException
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Tests for NetworkClient on top of an HttpTransport:
+ * - Request headers and body encoding handed to the transport
+ * - Responses closed on every path so their connection can be reused
+ */
+class NetworkClientTransportTest {
+    private class FakeResponse(
+        override val statusCode: Int,
+        override val headers: Map<String, String> = emptyMap(),
+        bytes: ByteArray = ByteArray(0),
+    ) : HttpTransportResponse {
+        var closed = false
+        override val body: InputStream = ByteArrayInputStream(bytes)
+
+        override fun close() {
+            closed = true
+        }
+    }
+
+    private class FakeTransport(private val respond: (HttpTransportRequest) -> HttpTransportResponse) : HttpTransport {
+        val requests = mutableListOf<HttpTransportRequest>()
+
+        override fun execute(request: HttpTransportRequest): HttpTransportResponse {
+            requests.add(request)
+            return respond(request)
+        }
+    }
+
+    private val url = "https://consent.example.com/config.json"
+
+    // MARK: - Requests
+
+    @Test
+    fun `requests carry accept-encoding and default content type`() =
+        runTest {
+            val transport = FakeTransport { FakeResponse(200) }
+            val client = NetworkClient(false, transport)
+
+            client.execute(url, HTTPMethod.POST, """{"a":1}""")
+
+            val request = transport.requests.single()
+            assertEquals("POST", request.method)
+            assertEquals(NetworkClient.ACCEPT_ENCODING, request.headers["Accept-Encoding"])
+            assertEquals("application/json", request.headers["Content-Type"])
+            assertEquals("""{"a":1}""", String(request.body!!))
+        }
+
+    @Test
+    fun `caller content type is kept`() =
+        runTest {
+            val transport = FakeTransport { FakeResponse(200) }
+            val client = NetworkClient(false, transport)
+
+            client.execute(url, HTTPMethod.POST, "x", mapOf("content-type" to "text/plain"))
+
+            val headers = transport.requests.single().headers
+            assertEquals("text/plain", headers["content-type"])
+            assertNull(headers["Content-Type"])
+        }
+
+    @Test
+    fun `large bodies are gzipped when compression is enabled`() =
+        runTest {
+            val transport = FakeTransport { FakeResponse(200) }
+            val client = NetworkClient(true, transport)
+            val body = "x".repeat(NetworkClient.MIN_COMPRESSIBLE_BODY_BYTES)
+
+            client.execute(url, HTTPMethod.POST, body)
+
+            val request = transport.requests.single()
+            assertEquals("gzip", request.headers["Content-Encoding"])
+            assertArrayEquals(NetworkClient.gzip(body.toByteArray()), request.body)
+        }
+
+    // MARK: - Response Release
+
+    @Test
+    fun `successful response is decoded and closed`() =
+        runTest {
+            val response = FakeResponse(200, mapOf("etag" to "\"v1\""), "hello".toByteArray())
+            val client = NetworkClient(false, FakeTransport { response })
+
+            val result = client.execute(url)
+
+            assertEquals("hello", result.body)
+            assertEquals("\"v1\"", result.header("ETag"))
+            assertTrue(response.closed)
+        }
+
+    @Test
+    fun `gzip responses are decoded`() =
+        runTest {
+            val compressed = NetworkClient.gzip("hello".toByteArray())
+            val response = FakeResponse(200, mapOf("content-encoding" to "gzip"), compressed)
+            val client = NetworkClient(false, FakeTransport { response })
+
+            assertEquals("hello", client.execute(url).body)
+            assertTrue(response.closed)
+        }
+
+    @Test
+    fun `not modified response is closed`() =
+        runTest {
+            val response = FakeResponse(304)
+            val client = NetworkClient(false, FakeTransport { response })
+
+            assertEquals(304, client.execute(url).statusCode)
+            assertTrue(response.closed)
+        }
+
+    @Test
+    fun `error response is closed`() =
+        runTest {
+            val response = FakeResponse(500, bytes = "secret error".toByteArray())
+            val client = NetworkClient(false, FakeTransport { response })
+
+            try {
+                client.execute(url)
+                fail("Expected NetworkError")
+            } catch (e: ConsentException.NetworkError) {
+                assertEquals("HTTP 500", e.message)
+            }
+            assertTrue(response.closed)
+        }
+
+    @Test
+    fun `response is closed when decoding fails`() =
+        runTest {
+            val response = FakeResponse(200, bytes = "not a number".toByteArray())
+            val client = NetworkClient(false, FakeTransport { response })
+
+            try {
+                client.stream(url) { it.bufferedReader().readText().toInt() }
+                fail("Expected NumberFormatException")
+            } catch (_: NumberFormatException) {
+            }
+            assertTrue(response.closed)
+        }
+
+    @Test
+    fun `transport failures map to network errors`() =
+        runTest {
+            val client = NetworkClient(false, FakeTransport { throw IOException("reset") })
+
+            try {
+                client.execute(url)
+                fail("Expected NetworkError")
+            } catch (e: ConsentException.NetworkError) {
+                assertTrue(e.cause is IOException)
+            }
+        }
+}
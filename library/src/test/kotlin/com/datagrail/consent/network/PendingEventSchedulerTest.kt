@@ -0,0 +1,171 @@
+package com.datagrail.consent.network
+
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for PendingEventScheduler against a fake connectivity source:
+ * - Draining on start and when connectivity returns
+ * - No work while offline
+ * - Backoff between cycles while events stay queued
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class PendingEventSchedulerTest {
+    private class FakeConnectivityMonitor(online: Boolean) : ConnectivityMonitor {
+        val online = MutableStateFlow(online)
+
+        override fun observe(): Flow<Boolean> = online
+    }
+
+    private val baseBackoffMs = 1_000L
+    private val maxBackoffMs = 4_000L
+
+    // Virtual times at which drain cycles started
+    private val drainTimes = mutableListOf<Long>()
+    private var scheduler: PendingEventScheduler? = null
+
+    @After
+    fun tearDown() {
+        scheduler?.stop()
+    }
+
+    // Each drain reports the next queued failure count; once exhausted the queue is empty
+    private fun TestScope.startScheduler(
+        connectivity: ConnectivityMonitor,
+        failureCounts: List<Int> = emptyList(),
+    ): PendingEventScheduler {
+        val remaining = ArrayDeque(failureCounts)
+        return PendingEventScheduler(
+            connectivity,
+            drain = {
+                drainTimes.add(testScheduler.currentTime)
+                Pair(0, remaining.removeFirstOrNull() ?: 0)
+            },
+            baseBackoffMs = baseBackoffMs,
+            maxBackoffMs = maxBackoffMs,
+            dispatcher = StandardTestDispatcher(testScheduler),
+        ).also {
+            scheduler = it
+            it.start()
+        }
+    }
+
+    // MARK: - Connectivity
+
+    @Test
+    fun `drains once on start when online`() =
+        runTest {
+            startScheduler(FakeConnectivityMonitor(online = true))
+
+            testScheduler.advanceUntilIdle()
+
+            assertEquals(listOf(0L), drainTimes)
+        }
+
+    @Test
+    fun `does nothing while offline and drains when connectivity returns`() =
+        runTest {
+            val connectivity = FakeConnectivityMonitor(online = false)
+            startScheduler(connectivity)
+
+            testScheduler.advanceTimeBy(60_000)
+            assertTrue(drainTimes.isEmpty())
+
+            connectivity.online.value = true
+            testScheduler.advanceUntilIdle()
+
+            assertEquals(listOf(60_000L), drainTimes)
+        }
+
+    // MARK: - Backoff
+
+    @Test
+    fun `backs off between cycles while events stay queued`() =
+        runTest {
+            startScheduler(FakeConnectivityMonitor(online = true), failureCounts = listOf(2, 2, 2, 2))
+
+            testScheduler.advanceUntilIdle()
+
+            assertEquals(5, drainTimes.size)
+            val gaps = drainTimes.zipWithNext { a, b -> b - a }
+            // 1s, 2s, 4s, then capped at 4s, each with up to 25% jitter
+            val expected = listOf(1_000L, 2_000L, 4_000L, 4_000L)
+            gaps.zip(expected).forEach { (gap, base) ->
+                assertTrue("Gap $gap should be within [$base, ${base * 5 / 4}]", gap in base..base * 5 / 4)
+            }
+        }
+
+    @Test
+    fun `going offline cancels the backoff and reconnecting drains immediately`() =
+        runTest {
+            val connectivity = FakeConnectivityMonitor(online = true)
+            startScheduler(connectivity, failureCounts = listOf(1, 1))
+            testScheduler.advanceTimeBy(500)
+
+            connectivity.online.value = false
+            testScheduler.advanceTimeBy(10_000)
+            assertEquals("No retry while offline", 1, drainTimes.size)
+
+            connectivity.online.value = true
+            testScheduler.advanceUntilIdle()
+
+            assertEquals(3, drainTimes.size)
+            assertEquals(10_500L, drainTimes[1])
+            // Backoff restarts from the base after reconnecting
+            assertTrue(drainTimes[2] - drainTimes[1] in baseBackoffMs..baseBackoffMs * 5 / 4)
+        }
+
+    @Test
+    fun `drain errors are retried with backoff`() =
+        runTest {
+            var calls = 0
+            scheduler =
+                PendingEventScheduler(
+                    FakeConnectivityMonitor(online = true),
+                    drain = {
+                        calls++
+                        if (calls == 1) throw IllegalStateException("storage unavailable")
+                        Pair(1, 0)
+                    },
+                    baseBackoffMs = baseBackoffMs,
+                    dispatcher = StandardTestDispatcher(testScheduler),
+                ).also { it.start() }
+
+            testScheduler.advanceUntilIdle()
+
+            assertEquals(2, calls)
+        }
+
+    @Test
+    fun `stop cancels scheduled cycles`() =
+        runTest {
+            val connectivity = FakeConnectivityMonitor(online = true)
+            startScheduler(connectivity, failureCounts = listOf(1, 1, 1)).also {
+                testScheduler.advanceTimeBy(100)
+                it.stop()
+            }
+
+            connectivity.online.value = false
+            connectivity.online.value = true
+            testScheduler.advanceUntilIdle()
+
+            assertEquals(1, drainTimes.size)
+        }
+
+    @Test
+    fun `start is idempotent`() =
+        runTest {
+            startScheduler(FakeConnectivityMonitor(online = true)).start()
+
+            testScheduler.advanceUntilIdle()
+
+            assertEquals(1, drainTimes.size)
+        }
+}
@@ -0,0 +1,94 @@
+package com.datagrail.consent.storage
+
+import com.datagrail.consent.models.ConsentConfig
+import com.datagrail.consent.models.LazyConfig
+import kotlinx.serialization.json.Json
+import org.junit.Assert.*
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import javax.crypto.Cipher
+import javax.crypto.KeyGenerator
+import javax.crypto.spec.GCMParameterSpec
+
+/**
+ * Compares cold-start config cache reads:
+ * - Legacy: AES-GCM encrypted JSON string (as stored by EncryptedSharedPreferences)
+ * - Current: memory-mapped ConfigCacheFile with AES-GCM encrypted CBOR
+ *
+ * Timings are printed for inspection only; assertions cover correctness, not speed.
+ * Skipped unless the build is run with `-Pbenchmarks`, so the default test task stays fast.
+ */
+class ConfigCacheBenchmarkTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val json =
+        Json {
+            ignoreUnknownKeys = true
+            encodeDefaults = true
+        }
+
+    private val iterations = 200
+
+    @Before
+    fun requireBenchmarks() {
+        assumeTrue("Benchmarks run with -Pbenchmarks", System.getProperty("datagrail.benchmarks") == "true")
+    }
+
+    @Test
+    fun `binary cache file decodes the same config as the legacy JSON cache`() {
+        val configJson = File(javaClass.classLoader?.getResource("test-config.json")?.file ?: "").readText()
+        val config = json.decodeFromString<ConsentConfig>(configJson)
+
+        val generator = KeyGenerator.getInstance("AES")
+        generator.init(256)
+        val key = generator.generateKey()
+
+        // Legacy: encrypted JSON blob
+        val legacyJson = json.encodeToString(ConsentConfig.serializer(), config)
+        val encryptCipher = Cipher.getInstance("AES/GCM/NoPadding")
+        encryptCipher.init(Cipher.ENCRYPT_MODE, key)
+        val legacyIv = encryptCipher.iv
+        val legacyCiphertext = encryptCipher.doFinal(legacyJson.toByteArray(Charsets.UTF_8))
+
+        fun readLegacy(): ConsentConfig {
+            val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+            cipher.init(Cipher.DECRYPT_MODE, key, GCMParameterSpec(128, legacyIv))
+            return json.decodeFromString(String(cipher.doFinal(legacyCiphertext), Charsets.UTF_8))
+        }
+
+        // Current: binary cache file
+        val file = File(tempFolder.root, ConfigCacheFile.FILE_NAME)
+        ConfigCacheFile(file) { key }.write(LazyConfig.of(config), "\"etag\"", null)
+
+        fun readBinary(): ConsentConfig? = ConfigCacheFile(file) { key }.read()
+
+        assertEquals(config, readLegacy())
+        assertEquals(config, readBinary())
+
+        // Warm up the JIT before timing
+        repeat(iterations) {
+            readLegacy()
+            readBinary()
+        }
+
+        val legacyNs = measure { readLegacy() }
+        val binaryNs = measure { readBinary() }
+
+        println(
+            "Config cache read (avg of $iterations): " +
+                "legacy JSON ${legacyNs / iterations / 1000}us (${legacyCiphertext.size} bytes), " +
+                "binary ${binaryNs / iterations / 1000}us (${file.length()} bytes)",
+        )
+    }
+
+    private inline fun measure(block: () -> Unit): Long {
+        val start = System.nanoTime()
+        repeat(iterations) { block() }
+        return System.nanoTime() - start
+    }
+}
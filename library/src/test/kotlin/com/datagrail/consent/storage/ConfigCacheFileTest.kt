@@ -0,0 +1,203 @@
+package com.datagrail.consent.storage
+
+import com.datagrail.consent.models.ConsentConfig
+import com.datagrail.consent.models.LazyConfig
+import com.datagrail.consent.network.ConsentServiceSecurityTest
+import kotlinx.serialization.json.Json
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+
+/**
+ * Tests for ConfigCacheFile:
+ * - Encrypted round trip
+ * - Header decoded eagerly, layout on demand
+ * - Header validators readable without decryption
+ * - Tampered or corrupt files are discarded
+ */
+class ConfigCacheFileTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var file: File
+    private lateinit var key: SecretKey
+    private lateinit var cache: ConfigCacheFile
+
+    @Before
+    fun setUp() {
+        file = File(tempFolder.root, ConfigCacheFile.FILE_NAME)
+        key = newKey()
+        cache = ConfigCacheFile(file) { key }
+    }
+
+    private fun newKey(): SecretKey {
+        val generator = KeyGenerator.getInstance("AES")
+        generator.init(256)
+        return generator.generateKey()
+    }
+
+    // MARK: - Round Trip
+
+    @Test
+    fun `read returns null when no cache exists`() {
+        assertNull(cache.read())
+        assertEquals(ConfigCacheFile.Validators(null, null), cache.readValidators())
+    }
+
+    @Test
+    fun `write then read returns the same config`() {
+        val config = ConsentServiceSecurityTest.createTestConfig()
+
+        cache.write(LazyConfig.of(config), "\"v1\"", "Wed, 01 Apr 2026 00:00:00 GMT")
+
+        assertEquals(config, ConfigCacheFile(file) { key }.read())
+    }
+
+    @Test
+    fun `full sample config round trips`() {
+        val configJson = File(javaClass.classLoader?.getResource("test-config.json")?.file ?: "").readText()
+        val config = Json { ignoreUnknownKeys = true }.decodeFromString<ConsentConfig>(configJson)
+
+        cache.write(LazyConfig.of(config), "\"etag\"", null)
+
+        assertEquals(config, ConfigCacheFile(file) { key }.read())
+    }
+
+    @Test
+    fun `lazy read decodes the layout only on first use`() {
+        val config = ConsentServiceSecurityTest.createTestConfig()
+        cache.write(LazyConfig.of(config), null, null)
+
+        val lazy = ConfigCacheFile(file) { key }.readLazy()
+
+        assertEquals(config.version, lazy?.header?.version)
+        assertFalse(lazy!!.isLayoutLoaded)
+        assertEquals(config.layout, lazy.layout)
+        assertTrue(lazy.isLayoutLoaded)
+        assertEquals(config, lazy.config)
+    }
+
+    @Test
+    fun `compact config keeps only the encoded layout`() {
+        val config = ConsentServiceSecurityTest.createTestConfig()
+        val compact = LazyConfig.compact(config)
+
+        cache.write(compact, null, null)
+
+        assertEquals(config, compact.config)
+        assertFalse("Reading the config keeps no decoded layout", compact.isLayoutLoaded)
+        assertEquals(config, ConfigCacheFile(file) { key }.read())
+    }
+
+    @Test
+    fun `config is not stored in plaintext`() {
+        val config = ConsentServiceSecurityTest.createTestConfig()
+
+        cache.write(LazyConfig.of(config), null, null)
+
+        val contents = String(file.readBytes(), Charsets.ISO_8859_1)
+        assertFalse(contents.contains(config.dgCustomerId))
+    }
+
+    @Test
+    fun `overwrite replaces the previous config and leaves no temp file`() {
+        val config = ConsentServiceSecurityTest.createTestConfig()
+
+        cache.write(LazyConfig.of(config), "\"v1\"", null)
+        cache.write(LazyConfig.of(config.copy(version = "2.0.0")), "\"v2\"", null)
+
+        assertEquals("2.0.0", cache.read()?.version)
+        assertEquals("\"v2\"", cache.readValidators().etag)
+        assertEquals(listOf(ConfigCacheFile.FILE_NAME), tempFolder.root.list()?.toList())
+    }
+
+    // MARK: - Validators
+
+    @Test
+    fun `validators are read from the header without the key`() {
+        val config = LazyConfig.of(ConsentServiceSecurityTest.createTestConfig())
+        cache.write(config, "\"abc\"", "Wed, 01 Apr 2026 00:00:00 GMT")
+
+        val keyless = ConfigCacheFile(file) { throw AssertionError("Key must not be needed for validators") }
+        val validators = keyless.readValidators()
+
+        assertEquals("\"abc\"", validators.etag)
+        assertEquals("Wed, 01 Apr 2026 00:00:00 GMT", validators.lastModified)
+    }
+
+    @Test
+    fun `content hash is stored in the header`() {
+        cache.write(LazyConfig.of(ConsentServiceSecurityTest.createTestConfig()), null, null, "abc123")
+
+        val keyless = ConfigCacheFile(file) { throw AssertionError("Key must not be needed for validators") }
+
+        assertEquals("abc123", keyless.readValidators().contentHash)
+    }
+
+    @Test
+    fun `pruned locale is stored in the header`() {
+        cache.write(LazyConfig.of(ConsentServiceSecurityTest.createTestConfig()), null, null, "abc123", "fr")
+
+        val keyless = ConfigCacheFile(file) { throw AssertionError("Key must not be needed for validators") }
+
+        assertEquals("fr", keyless.readValidators().locale)
+        assertNotNull(ConfigCacheFile(file) { key }.read())
+    }
+
+    // MARK: - Corruption
+
+    @Test
+    fun `file with another format version is discarded`() {
+        cache.write(LazyConfig.of(ConsentServiceSecurityTest.createTestConfig()), "\"abc\"", null)
+        val bytes = file.readBytes()
+        bytes[4] = 2
+        file.writeBytes(bytes)
+
+        assertEquals(ConfigCacheFile.Validators(null, null), ConfigCacheFile(file) { key }.readValidators())
+        assertNull(ConfigCacheFile(file) { key }.read())
+        assertFalse(file.exists())
+    }
+
+    @Test
+    fun `tampered header fails authentication and discards the file`() {
+        cache.write(LazyConfig.of(ConsentServiceSecurityTest.createTestConfig()), "\"abc\"", null)
+        val bytes = file.readBytes()
+        // Flip a byte inside the etag, which is authenticated as associated data
+        bytes[8] = (bytes[8].toInt() xor 0x01).toByte()
+        file.writeBytes(bytes)
+
+        assertNull(ConfigCacheFile(file) { key }.read())
+        assertFalse(file.exists())
+    }
+
+    @Test
+    fun `truncated file is discarded`() {
+        cache.write(LazyConfig.of(ConsentServiceSecurityTest.createTestConfig()), null, null)
+        file.writeBytes(file.readBytes().copyOf(file.length().toInt() / 2))
+
+        assertNull(ConfigCacheFile(file) { key }.read())
+        assertFalse(file.exists())
+    }
+
+    @Test
+    fun `file encrypted with another key is discarded`() {
+        cache.write(LazyConfig.of(ConsentServiceSecurityTest.createTestConfig()), null, null)
+        val otherKey = newKey()
+
+        assertNull(ConfigCacheFile(file) { otherKey }.read())
+        assertFalse(file.exists())
+    }
+
+    @Test
+    fun `unrecognized file is discarded`() {
+        file.writeText("{\"version\":\"1.0.0\"}")
+
+        assertNull(cache.read())
+        assertEquals(ConfigCacheFile.Validators(null, null), ConfigCacheFile(file) { key }.readValidators())
+    }
+}
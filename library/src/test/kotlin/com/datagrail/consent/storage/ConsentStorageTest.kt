@@ -2,20 +2,31 @@ package com.datagrail.consent.storage
 
 import android.content.SharedPreferences
 import com.datagrail.consent.models.CategoryConsent
+import com.datagrail.consent.models.CategoryTable
+import com.datagrail.consent.models.ConsentBits
+import com.datagrail.consent.models.ConsentException
 import com.datagrail.consent.models.ConsentPreferences
+import com.datagrail.consent.models.LazyConfig
+import com.datagrail.consent.network.ConsentServiceSecurityTest
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
 import org.junit.After
 import org.junit.Assert.*
 import org.junit.Before
+import org.junit.Rule
 import org.junit.Test
+import org.junit.rules.TemporaryFolder
 import org.junit.runner.RunWith
 import org.mockito.Mock
 import org.mockito.Mockito
 import org.mockito.junit.MockitoJUnitRunner
 import org.mockito.kotlin.any
+import org.mockito.kotlin.argumentCaptor
 import org.mockito.kotlin.whenever
+import kotlin.io.encoding.Base64
+import kotlin.io.encoding.ExperimentalEncodingApi
 
+@OptIn(ExperimentalEncodingApi::class)
 @RunWith(MockitoJUnitRunner::class)
 class ConsentStorageTest {
     @Mock
@@ -26,6 +37,9 @@ class ConsentStorageTest {
 
     private val json = Json { ignoreUnknownKeys = true }
 
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
     private lateinit var storage: ConsentStorage
 
     @Before
@@ -34,8 +48,9 @@ class ConsentStorageTest {
         whenever(mockEditor.putString(any(), any())).thenReturn(mockEditor)
         whenever(mockEditor.remove(any())).thenReturn(mockEditor)
         whenever(mockEditor.apply()).then { }
+        whenever(mockEditor.commit()).thenReturn(true)
 
-        storage = ConsentStorage(mockSharedPreferences)
+        storage = ConsentStorage(mockSharedPreferences, tempFolder.root)
     }
 
     @After
@@ -56,16 +71,140 @@ class ConsentStorageTest {
 
         storage.savePreferences(prefs)
 
-        // Verify putString was called with the correct key
+        // Verify putString was called with the correct key, and the JSON form of older SDKs is removed
         Mockito.verify(mockEditor).putString(
-            Mockito.eq("datagrail_consent_preferences"),
+            Mockito.eq("datagrail_consent_preferences_bits"),
             any(),
         )
+        Mockito.verify(mockEditor, Mockito.never()).putString(Mockito.eq("datagrail_consent_preferences"), any())
+        Mockito.verify(mockEditor).remove("datagrail_consent_preferences")
+        Mockito.verify(mockEditor).apply()
+    }
+
+    @Test
+    fun testSaveConsentWritesOnce() {
+        val prefs = ConsentPreferences(isCustomised = true, cookieOptions = listOf(CategoryConsent("c", true)))
+        whenever(mockSharedPreferences.getString("datagrail_consent_id", null)).thenReturn(null)
+
+        val uniqueId = storage.saveConsent(prefs, "1.2.3")
+
+        // Preferences, version and the new unique id share one editor and one disk write
+        Mockito.verify(mockSharedPreferences, Mockito.times(1)).edit()
+        Mockito.verify(mockEditor).putString(Mockito.eq("datagrail_consent_preferences_bits"), any())
+        Mockito.verify(mockEditor).remove("datagrail_consent_preferences")
+        Mockito.verify(mockEditor).putString("datagrail_consent_version", "1.2.3")
+        Mockito.verify(mockEditor).putString("datagrail_consent_id", uniqueId)
+        Mockito.verify(mockEditor, Mockito.times(1)).apply()
+    }
+
+    @Test
+    fun testSaveConsentKeepsExistingUniqueId() {
+        val prefs = ConsentPreferences(isCustomised = false, cookieOptions = emptyList())
+        whenever(mockSharedPreferences.getString("datagrail_consent_id", null)).thenReturn("existing-id")
+
+        assertEquals("existing-id", storage.saveConsent(prefs, "1.2.3"))
+
+        Mockito.verify(mockEditor, Mockito.never()).putString(Mockito.eq("datagrail_consent_id"), any())
+        Mockito.verify(mockEditor, Mockito.times(1)).apply()
+    }
+
+    @Test
+    fun testSavedPreferencesLoadBack() {
+        val prefs =
+            ConsentPreferences(
+                isCustomised = true,
+                cookieOptions =
+                    listOf(
+                        CategoryConsent("category_essential", true),
+                        CategoryConsent("category_marketing", false),
+                    ),
+            )
+        val written = argumentCaptor<String>()
+        storage.saveConsent(prefs, "1.2.3")
+        Mockito.verify(mockEditor).putString(Mockito.eq("datagrail_consent_preferences_bits"), written.capture())
+
+        whenever(mockSharedPreferences.getString("datagrail_consent_preferences_bits", null))
+            .thenReturn(written.firstValue)
+
+        assertEquals(prefs, storage.loadPreferences())
+    }
+
+    @Test
+    fun testSavedPreferencesOverConfigTableLoadBack() {
+        val prefs =
+            ConsentPreferences(
+                isCustomised = true,
+                cookieOptions = listOf(CategoryConsent("category_marketing", true), CategoryConsent("other", false)),
+            )
+        val table = CategoryTable.of("1.2.3", listOf("category_essential", "category_marketing"))
+        val bits = argumentCaptor<String>()
+        val tables = argumentCaptor<String>()
+
+        storage.saveConsent(prefs, "1.2.3", table)
+        storage.saveConsent(prefs, "1.2.3", table)
+
+        // The table is written once per config version; the bits only reference it
+        Mockito.verify(mockEditor, Mockito.times(2))
+            .putString(Mockito.eq("datagrail_consent_preferences_bits"), bits.capture())
+        Mockito.verify(mockEditor).putString(Mockito.eq("datagrail_consent_category_table"), tables.capture())
+        assertTrue(bits.firstValue.length < Base64.encode(ConsentBits.of(prefs, table).encode()).length)
+
+        whenever(mockSharedPreferences.getString("datagrail_consent_preferences_bits", null))
+            .thenReturn(bits.firstValue)
+        whenever(mockSharedPreferences.getString("datagrail_consent_category_table", null))
+            .thenReturn(tables.firstValue)
+
+        val reloaded = ConsentStorage(mockSharedPreferences, tempFolder.root)
+        assertEquals(
+            ConsentPreferences(
+                isCustomised = true,
+                cookieOptions = listOf(CategoryConsent("category_marketing", true), CategoryConsent("other", false)),
+            ),
+            reloaded.loadPreferences(),
+        )
+    }
+
+    @Test
+    fun testPreferencesWithoutTheirTableAreNotLoaded() {
+        val prefs = ConsentPreferences(isCustomised = true, cookieOptions = listOf(CategoryConsent("c", true)))
+        val table = CategoryTable.of("1.2.3", listOf("c"))
+        whenever(mockSharedPreferences.getString("datagrail_consent_preferences_bits", null))
+            .thenReturn(Base64.encode(ConsentBits.of(prefs, table).encode(embedTable = false)))
+
+        assertNull(storage.loadPreferences())
+    }
+
+    @Test
+    fun testJsonSavedByAnEarlierVersionOverridesOlderBits() {
+        // Downgrade, save on the earlier SDK, upgrade: the bits predate the JSON
+        val older = ConsentPreferences(isCustomised = true, cookieOptions = listOf(CategoryConsent("c", true)))
+        val newer = ConsentPreferences(isCustomised = true, cookieOptions = listOf(CategoryConsent("c", false)))
+        Mockito.lenient().`when`(mockSharedPreferences.getString("datagrail_consent_preferences_bits", null))
+            .thenReturn(Base64.encode(ConsentBits.of(older, "1.2.3").encode()))
+        whenever(mockSharedPreferences.getString("datagrail_consent_preferences", null))
+            .thenReturn(json.encodeToString(newer))
+
+        assertEquals(newer, storage.loadPreferences())
+
+        // Migrated: the bits are rewritten from the JSON, which is removed in the same write
+        val bits = argumentCaptor<String>()
+        Mockito.verify(mockEditor).putString(Mockito.eq("datagrail_consent_preferences_bits"), bits.capture())
+        Mockito.verify(mockEditor, Mockito.atLeastOnce()).remove("datagrail_consent_preferences")
         Mockito.verify(mockEditor).apply()
+        assertEquals(newer, ConsentBits.decode(Base64.decode(bits.firstValue)).toPreferences())
+    }
+
+    @Test
+    fun testLoadCorruptEncodedPreferences() {
+        whenever(mockSharedPreferences.getString("datagrail_consent_preferences_bits", null))
+            .thenReturn("ff00")
+
+        assertNull(storage.loadPreferences())
     }
 
     @Test
     fun testLoadPreferences() {
+        // JSON written by earlier versions is read and migrated to bits
         val prefs =
             ConsentPreferences(
                 isCustomised = true,
@@ -149,4 +288,174 @@ class ConsentStorageTest {
         Mockito.verify(mockEditor).clear()
         Mockito.verify(mockEditor).apply()
     }
+
+    @Test
+    fun testClearAllDeletesConfigCacheFile() {
+        whenever(mockEditor.clear()).thenReturn(mockEditor)
+        storage.saveConfigCache(LazyConfig.of(ConsentServiceSecurityTest.createTestConfig()))
+        val cacheFile = java.io.File(tempFolder.root, ConfigCacheFile.FILE_NAME)
+        assertTrue(cacheFile.exists())
+
+        storage.clearAll()
+
+        assertFalse(cacheFile.exists())
+        assertNull(storage.loadConfigETag())
+    }
+
+    @Test
+    fun testSaveConfigCacheWritesFileNotPreferences() {
+        val config = ConsentServiceSecurityTest.createTestConfig()
+
+        storage.saveConfigCache(LazyConfig.of(config), "\"abc\"", "Wed, 01 Apr 2026 00:00:00 GMT")
+
+        assertTrue(java.io.File(tempFolder.root, ConfigCacheFile.FILE_NAME).exists())
+        // Only the cache data key goes into preferences, never the config itself
+        Mockito.verify(mockEditor).putString(Mockito.eq("datagrail_consent_config_cache_key"), any())
+        Mockito.verify(mockEditor, Mockito.never()).putString(Mockito.eq("datagrail_consent_config_cache"), any())
+        assertEquals(config, storage.loadConfigCache()?.config)
+    }
+
+    @Test
+    fun testNewFileKeyIsCommittedBeforeTheFileIsWritten() {
+        whenever(mockEditor.commit()).thenReturn(false)
+
+        try {
+            storage.saveConfigCache(LazyConfig.of(ConsentServiceSecurityTest.createTestConfig()))
+            fail("Expected StorageError")
+        } catch (e: ConsentException.StorageError) {
+            // Expected: the key could not be stored
+        }
+
+        Mockito.verify(mockEditor, Mockito.never()).apply()
+        assertFalse(java.io.File(tempFolder.root, ConfigCacheFile.FILE_NAME).exists())
+    }
+
+    @Test
+    fun testLoadConfigValidators() {
+        val config = ConsentServiceSecurityTest.createTestConfig()
+        storage.saveConfigCache(LazyConfig.of(config), "\"abc\"", "Wed, 01 Apr 2026 00:00:00 GMT")
+
+        assertEquals("\"abc\"", storage.loadConfigETag())
+        assertEquals("Wed, 01 Apr 2026 00:00:00 GMT", storage.loadConfigLastModified())
+    }
+
+    @Test
+    fun testLoadConfigValidatorsWhenNoCache() {
+        assertNull(storage.loadConfigETag())
+        assertNull(storage.loadConfigLastModified())
+    }
+
+    @Test
+    fun testLoadConfigCacheMigratesLegacyPreferencesEntry() {
+        val config = ConsentServiceSecurityTest.createTestConfig()
+        val legacyJson = Json { encodeDefaults = true }.encodeToString(config)
+        whenever(mockSharedPreferences.getString("datagrail_consent_config_cache", null)).thenReturn(legacyJson)
+
+        val loaded = storage.loadConfigCache()
+
+        assertEquals(config, loaded?.config)
+        Mockito.verify(mockEditor).remove("datagrail_consent_config_cache")
+        Mockito.verify(mockEditor).remove("datagrail_consent_config_etag")
+        Mockito.verify(mockEditor).remove("datagrail_consent_config_last_modified")
+        assertTrue(java.io.File(tempFolder.root, ConfigCacheFile.FILE_NAME).exists())
+        // Legacy validators are dropped so the next fetch is unconditional
+        assertNull(storage.loadConfigETag())
+    }
+
+    // MARK: - Store Separation
+
+    @Test
+    fun testHotStateWritesDoNotTouchEventQueue() {
+        storage.saveConfigVersion("1.2.3")
+        storage.saveLocaleCode("en")
+        storage.getOrCreateUniqueId()
+
+        assertFalse(java.io.File(tempFolder.root, EventQueueFile.FILE_NAME).exists())
+    }
+
+    @Test
+    fun testPendingEventsUseQueueFileNotPreferences() {
+        val event = PendingEvent(PendingEvent.TYPE_SAVE_OPEN, "https://x.com", null, 1L)
+
+        storage.appendPendingEvent(event)
+
+        assertTrue(java.io.File(tempFolder.root, EventQueueFile.FILE_NAME).exists())
+        Mockito.verify(mockEditor, Mockito.never()).putString(Mockito.eq("datagrail_consent_pending_events"), any())
+        assertEquals(listOf(event), storage.loadPendingEvents().map { it.event })
+    }
+
+    @Test
+    fun testRemovePendingEvents() {
+        storage.appendPendingEvent(PendingEvent(PendingEvent.TYPE_SAVE_OPEN, "https://x.com/1", null, 1L))
+        storage.appendPendingEvent(PendingEvent(PendingEvent.TYPE_SAVE_OPEN, "https://x.com/2", null, 2L))
+        val first = storage.loadPendingEvents().first()
+
+        storage.removePendingEvents(listOf(first.id))
+
+        assertEquals(listOf("https://x.com/2"), storage.loadPendingEvents().map { it.event.url })
+    }
+
+    @Test
+    fun testLoadPendingEventsMigratesLegacyQueue() {
+        val legacy =
+            json.encodeToString(
+                listOf(
+                    """{"type":"save_open","url":"https://x.com","timestamp":"5"}""",
+                    """{"type":"save_preferences","url":"https://y.com","body":"{}","timestamp":"6"}""",
+                    "not json",
+                ),
+            )
+        whenever(mockSharedPreferences.getString("datagrail_consent_pending_events", null)).thenReturn(legacy)
+
+        val events = storage.loadPendingEvents().map { it.event }
+
+        assertEquals(
+            listOf(
+                PendingEvent(PendingEvent.TYPE_SAVE_OPEN, "https://x.com", null, 5L),
+                PendingEvent(PendingEvent.TYPE_SAVE_PREFERENCES, "https://y.com", "{}", 6L),
+            ),
+            events,
+        )
+        Mockito.verify(mockEditor).remove("datagrail_consent_pending_events")
+    }
+
+    @Test
+    fun testLegacyQueueMigrationRecoversUniqueIds() {
+        val legacy =
+            json.encodeToString(
+                listOf(
+                    json.encodeToString(
+                        mapOf("type" to "save_open", "url" to "https://x.com/save_open?sessionId=s&uniqueId=u%201"),
+                    ),
+                    json.encodeToString(
+                        mapOf(
+                            "type" to "save_preferences",
+                            "url" to "https://y.com",
+                            "body" to "{\"uniqueId\":\"u2\"}",
+                        ),
+                    ),
+                ),
+            )
+        whenever(mockSharedPreferences.getString("datagrail_consent_pending_events", null)).thenReturn(legacy)
+
+        val events = storage.loadPendingEvents().map { it.event }
+
+        assertEquals(listOf("u 1", "u2"), events.map { it.uniqueId })
+    }
+
+    @Test
+    fun testAppendPendingEventSupersedesQueuedPreferences() {
+        val prefsUrl = "https://x.com/save_preferences"
+        val openUrl = "https://x.com/save_open"
+        storage.appendPendingEvent(PendingEvent(PendingEvent.TYPE_SAVE_PREFERENCES, prefsUrl, "old", 1L, "user"))
+        storage.appendPendingEvent(PendingEvent(PendingEvent.TYPE_SAVE_OPEN, openUrl, null, 2L, "user"))
+        storage.appendPendingEvent(PendingEvent(PendingEvent.TYPE_SAVE_OPEN, openUrl, null, 3L, "user"))
+        storage.appendPendingEvent(PendingEvent(PendingEvent.TYPE_SAVE_PREFERENCES, prefsUrl, "new", 4L, "user"))
+
+        val events = storage.loadPendingEvents().map { it.event }
+
+        assertEquals(2, events.size)
+        assertEquals(2, events[0].count)
+        assertEquals("new", events[1].body)
+    }
 }
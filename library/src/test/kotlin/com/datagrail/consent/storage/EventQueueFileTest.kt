@@ -0,0 +1,224 @@
+package com.datagrail.consent.storage
+
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+
+/**
+ * Tests for EventQueueFile:
+ * - Append, acknowledge, and replay across reopen
+ * - Queue cap
+ * - Compaction
+ * - Recovery from process death mid-write
+ */
+class EventQueueFileTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var file: File
+    private lateinit var key: SecretKey
+
+    @Before
+    fun setUp() {
+        file = File(tempFolder.root, EventQueueFile.FILE_NAME)
+        val generator = KeyGenerator.getInstance("AES")
+        generator.init(256)
+        key = generator.generateKey()
+    }
+
+    // Simulates a fresh process opening the same file
+    private fun open(maxEvents: Int = 100) = EventQueueFile(file, maxEvents) { key }
+
+    private fun event(n: Int) = PendingEvent(PendingEvent.TYPE_SAVE_OPEN, "https://x.com/$n", null, n.toLong())
+
+    private fun urls(queue: EventQueueFile) = queue.entries().map { it.event.url }
+
+    // MARK: - Append / Remove
+
+    @Test
+    fun `appended events survive reopen in order`() {
+        val queue = open()
+        queue.append(listOf(event(1)))
+        queue.append(listOf(event(2), event(3)))
+
+        assertEquals(listOf("https://x.com/1", "https://x.com/2", "https://x.com/3"), urls(open()))
+    }
+
+    @Test
+    fun `append does not rewrite existing records`() {
+        val queue = open()
+        queue.append(listOf(event(1)))
+        val before = file.readBytes()
+
+        queue.append(listOf(event(2)))
+
+        val after = file.readBytes()
+        assertTrue(after.size > before.size)
+        assertArrayEquals(before, after.copyOf(before.size))
+    }
+
+    @Test
+    fun `removed events stay removed after reopen`() {
+        val queue = open()
+        queue.append(listOf(event(1), event(2), event(3)))
+        val ids = queue.entries().map { it.id }
+
+        queue.remove(listOf(ids[0], ids[2]))
+
+        assertEquals(listOf("https://x.com/2"), urls(queue))
+        assertEquals(listOf("https://x.com/2"), urls(open()))
+    }
+
+    @Test
+    fun `removing every event deletes the file`() {
+        val queue = open()
+        queue.append(listOf(event(1), event(2)))
+
+        queue.remove(queue.entries().map { it.id })
+
+        assertEquals(0, queue.size)
+        assertFalse(file.exists())
+    }
+
+    @Test
+    fun `ids stay unique across reopen`() {
+        open().append(listOf(event(1)))
+        val reopened = open()
+        reopened.append(listOf(event(2)))
+
+        val ids = reopened.entries().map { it.id }
+        assertEquals(ids.distinct(), ids)
+    }
+
+    @Test
+    fun `events are not stored in plaintext`() {
+        open().append(listOf(event(1)))
+
+        assertFalse(String(file.readBytes(), Charsets.ISO_8859_1).contains("x.com"))
+    }
+
+    // MARK: - Cap
+
+    @Test
+    fun `queue reaching the cap keeps every event`() {
+        val queue = open()
+        queue.append((1..99).map { event(it) })
+
+        queue.append(listOf(event(100)))
+
+        assertEquals(100, queue.size)
+    }
+
+    @Test
+    fun `queue over the cap drops the oldest events`() {
+        val queue = open()
+        queue.append((1..100).map { event(it) })
+
+        queue.append(listOf(event(101)))
+
+        val urls = urls(open())
+        assertEquals(100, urls.size)
+        assertFalse("Oldest event should be dropped", urls.contains("https://x.com/1"))
+        assertEquals("https://x.com/101", urls.last())
+    }
+
+    // MARK: - Compaction
+
+    @Test
+    fun `compaction shrinks the log and keeps live events`() {
+        val queue = open()
+        repeat(50) { n ->
+            queue.append(listOf(event(n)))
+            if (n % 10 != 0) {
+                queue.remove(listOf(queue.entries().last().id))
+            }
+        }
+
+        val liveUrls = (0 until 50 step 10).map { "https://x.com/$it" }
+        assertEquals(liveUrls, urls(queue))
+        assertEquals(liveUrls, urls(open()))
+        // Without compaction the log would hold all 50 adds plus 45 removes
+        val single = EventQueueFile(File(tempFolder.root, "single.log"), 100) { key }
+        single.append(listOf(event(10)))
+        val recordSize = File(tempFolder.root, "single.log").length()
+        assertTrue("Log should have been compacted, size ${file.length()}", file.length() < recordSize * 30)
+    }
+
+    // MARK: - Process Death
+
+    @Test
+    fun `torn append at any offset loses only the partial record`() {
+        val queue = open()
+        queue.append(listOf(event(1), event(2)))
+        val intact = file.readBytes()
+        queue.append(listOf(event(3)))
+        val full = file.readBytes()
+
+        for (cut in intact.size until full.size) {
+            file.writeBytes(full.copyOf(cut))
+
+            val recovered = open()
+            assertEquals("cut at $cut", listOf("https://x.com/1", "https://x.com/2"), urls(recovered))
+            assertEquals("Partial record should be truncated", intact.size.toLong(), file.length())
+
+            // Later appends are readable after recovery
+            recovered.append(listOf(event(4)))
+            assertEquals(listOf("https://x.com/1", "https://x.com/2", "https://x.com/4"), urls(open()))
+        }
+    }
+
+    @Test
+    fun `corrupt tail is discarded`() {
+        val queue = open()
+        queue.append(listOf(event(1)))
+        queue.append(listOf(event(2)))
+        val bytes = file.readBytes()
+        // Flip a byte inside the last record
+        bytes[bytes.size - 6] = (bytes[bytes.size - 6].toInt() xor 0xFF).toByte()
+        file.writeBytes(bytes)
+
+        assertEquals(listOf("https://x.com/1"), urls(open()))
+    }
+
+    @Test
+    fun `torn acknowledgement redelivers the event`() {
+        val queue = open()
+        queue.append(listOf(event(1), event(2)))
+        val beforeAck = file.length()
+        queue.remove(listOf(queue.entries().first().id))
+
+        // Process dies partway through writing the REMOVE record
+        file.writeBytes(file.readBytes().copyOf(beforeAck.toInt() + 3))
+
+        assertEquals(listOf("https://x.com/1", "https://x.com/2"), urls(open()))
+    }
+
+    @Test
+    fun `leftover compaction temp file is ignored`() {
+        open().append(listOf(event(1)))
+        val tempFile = File(tempFolder.root, "${EventQueueFile.FILE_NAME}.tmp")
+        tempFile.writeBytes(ByteArray(10) { 0x7F })
+
+        assertEquals(listOf("https://x.com/1"), urls(open()))
+        assertFalse(tempFile.exists())
+    }
+
+    @Test
+    fun `events encrypted with a lost key are dropped`() {
+        open().append(listOf(event(1)))
+        val generator = KeyGenerator.getInstance("AES")
+        generator.init(256)
+        val otherKey = generator.generateKey()
+
+        val queue = EventQueueFile(file, 100) { otherKey }
+
+        assertEquals(0, queue.size)
+        queue.append(listOf(event(2)))
+        assertEquals(listOf("https://x.com/2"), urls(queue))
+    }
+}
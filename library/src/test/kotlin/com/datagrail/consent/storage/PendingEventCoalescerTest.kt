@@ -0,0 +1,99 @@
+package com.datagrail.consent.storage
+
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for PendingEventCoalescer enqueue-time merging and replay-time coalescing
+ */
+class PendingEventCoalescerTest {
+    private fun prefs(
+        uniqueId: String?,
+        body: String,
+    ) = PendingEvent(PendingEvent.TYPE_SAVE_PREFERENCES, "https://x.com/save_preferences", body, 0L, uniqueId)
+
+    private fun open(
+        uniqueId: String?,
+        session: String,
+        count: Int = 1,
+    ): PendingEvent {
+        val url = "https://x.com/save_open?sessionId=$session"
+        return PendingEvent(PendingEvent.TYPE_SAVE_OPEN, url, null, 0L, uniqueId, count)
+    }
+
+    private fun entries(vararg events: PendingEvent) =
+        events.mapIndexed { index, event -> EventQueueFile.Entry(index + 1L, event) }
+
+    // MARK: - Merge
+
+    @Test
+    fun `newer preferences supersede queued ones for the same user`() {
+        val queued = entries(prefs("u1", "old"), prefs("u2", "other"), open("u1", "s1"))
+
+        val (event, supersededIds) = PendingEventCoalescer.merge(queued, prefs("u1", "new"))
+
+        assertEquals("new", event.body)
+        assertEquals(listOf(1L), supersededIds)
+    }
+
+    @Test
+    fun `banner opens collapse into a counted aggregate`() {
+        val queued = entries(open("u1", "s1"), open("u1", "s2", count = 3), prefs("u1", "p"))
+
+        val (event, supersededIds) = PendingEventCoalescer.merge(queued, open("u1", "s3"))
+
+        assertEquals(5, event.count)
+        assertTrue("Latest open is kept", event.url.endsWith("s3"))
+        assertEquals(listOf(1L, 2L), supersededIds)
+    }
+
+    @Test
+    fun `coalesced open count is capped`() {
+        val queued = entries(open("u1", "s1", count = PendingEventCoalescer.MAX_OPEN_COUNT), open("u1", "s2"))
+
+        val (event, _) = PendingEventCoalescer.merge(queued, open("u1", "s3", count = Int.MAX_VALUE))
+        val replayed = PendingEventCoalescer.coalesce(queued).single().event
+
+        assertEquals(PendingEventCoalescer.MAX_OPEN_COUNT, event.count)
+        assertEquals(PendingEventCoalescer.MAX_OPEN_COUNT, replayed.count)
+    }
+
+    @Test
+    fun `events without a uniqueId are never merged`() {
+        val queued = entries(open(null, "s1"), prefs(null, "old"))
+
+        assertEquals(emptyList<Long>(), PendingEventCoalescer.merge(queued, open(null, "s2")).second)
+        assertEquals(emptyList<Long>(), PendingEventCoalescer.merge(queued, prefs(null, "new")).second)
+    }
+
+    // MARK: - Replay
+
+    @Test
+    fun `replay keeps the latest preferences and sums opens per user`() {
+        val queued =
+            entries(
+                prefs("u1", "first"),
+                open("u1", "s1"),
+                prefs("u2", "only"),
+                open("u1", "s2", count = 2),
+                prefs("u1", "second"),
+            )
+
+        val groups = PendingEventCoalescer.coalesce(queued)
+
+        assertEquals(3, groups.size)
+        // Ordered by each group's most recent entry
+        assertEquals(PendingEventCoalescer.Group(prefs("u2", "only"), listOf(3L)), groups[0])
+        assertEquals(PendingEventCoalescer.Group(open("u1", "s2", count = 3), listOf(2L, 4L)), groups[1])
+        assertEquals(PendingEventCoalescer.Group(prefs("u1", "second"), listOf(1L, 5L)), groups[2])
+    }
+
+    @Test
+    fun `replay leaves unkeyed events alone`() {
+        val queued = entries(open(null, "s1"), open(null, "s2"))
+
+        val groups = PendingEventCoalescer.coalesce(queued)
+
+        assertEquals(listOf(listOf(1L), listOf(2L)), groups.map { it.ids })
+    }
+}
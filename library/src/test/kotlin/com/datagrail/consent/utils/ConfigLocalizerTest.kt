@@ -0,0 +1,110 @@
+package com.datagrail.consent.utils
+
+import com.datagrail.consent.models.*
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Tests for ConfigLocalizer:
+ * - Resolution order (locale, then "en", then first)
+ * - Projection keeps only the resolved translation in every translation field
+ * - Untouched elements and layers keep their identity
+ */
+class ConfigLocalizerTest {
+    private fun translations(vararg locales: String) =
+        locales.associateWith { locale ->
+            ElementTranslation(id = "t-$locale", locale = locale, value = "text $locale")
+        }
+
+    private fun layout(vararg elements: ConsentLayerElement) =
+        Layout(
+            id = "layout",
+            name = "layout",
+            description = "",
+            status = "published",
+            defaultLayout = true,
+            collapsedOnMobile = false,
+            firstLayerId = "first",
+            gpcDntLayerId = "first",
+            consentLayers =
+                mapOf(
+                    "first" to
+                        ConsentLayer(
+                            id = "first",
+                            name = "first",
+                            position = "bottom",
+                            showCloseButton = true,
+                            bannerApiId = "first",
+                            elements = elements.toList(),
+                        ),
+                ),
+        )
+
+    // MARK: - Resolve
+
+    @Test
+    fun `resolve prefers the locale, then english, then the first entry`() {
+        assertEquals("text fr", ConfigLocalizer.resolve(translations("en", "fr"), "fr")?.value)
+        assertEquals("text en", ConfigLocalizer.resolve(translations("de", "en"), "fr")?.value)
+        assertEquals("text de", ConfigLocalizer.resolve(translations("de", "es"), "fr")?.value)
+        assertNull(ConfigLocalizer.resolve(emptyMap<String, ElementTranslation>(), "fr"))
+        assertNull(ConfigLocalizer.resolve(null as Map<String, ElementTranslation>?, "fr"))
+    }
+
+    // MARK: - Projection
+
+    @Test
+    fun `projection keeps only the resolved translations`() {
+        val element =
+            ConsentLayerElement(
+                id = "element",
+                order = 1,
+                type = "ConsentLayerCategoryElement",
+                translations = translations("en", "fr", "de"),
+                links = listOf(LinkItem(id = "link", order = 1, translations = translations("en", "de"))),
+                trackingDetailsLinkTranslations =
+                    listOf(
+                        TrackingDetailsLinkTranslation(locale = "en", value = "details en"),
+                        TrackingDetailsLinkTranslation(locale = "fr", value = "details fr"),
+                    ),
+                browserSignalNoticeTranslations =
+                    mapOf(
+                        "en" to BrowserSignalNoticeTranslation(locale = "en"),
+                        "fr" to BrowserSignalNoticeTranslation(locale = "fr"),
+                    ),
+            )
+
+        val projected = ConfigLocalizer.localize(layout(element), "fr").consentLayers.getValue("first").elements[0]
+
+        assertEquals(setOf("fr"), projected.translations?.keys)
+        assertEquals(setOf("en"), projected.links?.single()?.translations?.keys)
+        assertEquals(listOf("details fr"), projected.trackingDetailsLinkTranslations?.map { it.value })
+        assertEquals(setOf("fr"), projected.browserSignalNoticeTranslations?.keys)
+    }
+
+    @Test
+    fun `projection resolves to the same strings as the full layout`() {
+        val element =
+            ConsentLayerElement(id = "element", order = 1, type = "text", translations = translations("en", "fr"))
+        val layout = layout(element)
+
+        for (locale in listOf("en", "fr", "ja")) {
+            val projected = ConfigLocalizer.localize(layout, locale).consentLayers.getValue("first").elements[0]
+
+            assertEquals(
+                ConfigLocalizer.resolve(element.translations, locale),
+                ConfigLocalizer.resolve(projected.translations, locale),
+            )
+        }
+    }
+
+    @Test
+    fun `single locale elements and layers keep their identity`() {
+        val element = ConsentLayerElement(id = "element", order = 1, type = "text", translations = translations("en"))
+        val layout = layout(element)
+
+        val projected = ConfigLocalizer.localize(layout, "fr")
+
+        assertSame(layout.consentLayers.getValue("first"), projected.consentLayers.getValue("first"))
+    }
+}
@@ -93,8 +93,75 @@ class ConfigValidatorTest {
         ConfigValidator.validate(config)
     }
 
+    @Test
+    fun testInvalidCategoryPrimitiveFails() {
+        val category =
+            ConsentLayerCategory(
+                id = "cat1",
+                consentCategoryId = "cc1",
+                order = 1,
+                hidden = false,
+                primitive = "dg-category-unknown",
+                alwaysOn = false,
+                gtmKey = "category_unknown",
+                uuids = emptyList(),
+                cookiePatterns = emptyList(),
+                translations = mapOf("en" to CategoryTranslation(name = "Unknown")),
+                showTrackingDetailsLink = false,
+            )
+        val config =
+            withElements(
+                ConsentLayerElement(
+                    id = "categories",
+                    order = 2,
+                    type = "ConsentLayerCategoryElement",
+                    consentLayerCategories = listOf(category),
+                ),
+            )
+
+        try {
+            ConfigValidator.validate(config)
+            fail("Expected ValidationError")
+        } catch (e: ConsentException.ValidationError) {
+            assertTrue(e.message?.contains("dg-category-unknown") == true)
+        }
+    }
+
+    @Test
+    fun testOpenLayerButtonWithUnknownTargetFails() {
+        val config =
+            withElements(
+                ConsentLayerElement(
+                    id = "button",
+                    order = 2,
+                    type = "ConsentLayerButtonElement",
+                    buttonAction = "open_layer",
+                    targetConsentLayer = "missing",
+                    translations = mapOf("en" to ElementTranslation("t2", "en", "Open")),
+                ),
+            )
+
+        try {
+            ConfigValidator.validate(config)
+            fail("Expected ValidationError")
+        } catch (e: ConsentException.ValidationError) {
+            assertTrue(e.message?.contains("'missing' does not exist") == true)
+        }
+    }
+
     // MARK: - Helper Methods
 
+    private fun withElements(vararg elements: ConsentLayerElement): ConsentConfig {
+        val config = createValidConfig()
+        val layer = config.layout.consentLayers.getValue("layer1")
+        return config.copy(
+            layout =
+                config.layout.copy(
+                    consentLayers = mapOf("layer1" to layer.copy(elements = layer.elements + elements)),
+                ),
+        )
+    }
+
     private fun createValidConfig(): ConsentConfig {
         val element =
             ConsentLayerElement(